@@ -0,0 +1,108 @@
+package nl.tudelft.ewi.gitolite;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@code GroupCommit} collects entries for a batch. The batch is flushed as soon as
+ * it holds {@code batchSize} entries, or {@code window} milliseconds after its first entry
+ * was enlisted, whichever comes first.
+ *
+ * <p>Entries that are enlisted while a flush is running are not flushed on a timer of their own.
+ * They are collected until the running flush finishes, so that with a {@code window} of {@code 0}
+ * the first entry is flushed immediately, and the entries that arrive during its flush are
+ * flushed together in the next batch.</p>
+ *
+ * @param <T> Type of the batched entries.
+ * @author Jan-Willem Gmelig Meyling
+ */
+class GroupCommit<T> {
+
+	/**
+	 * The executor on which the flushes are scheduled.
+	 */
+	private final ScheduledExecutorService scheduler;
+
+	/**
+	 * Time in milliseconds after which a batch is flushed.
+	 */
+	private final long window;
+
+	/**
+	 * Maximum number of entries in a batch.
+	 */
+	private final int batchSize;
+
+	/**
+	 * Task that {@link GroupCommit#drain() drains} and applies the batch.
+	 */
+	private final Runnable flush;
+
+	/**
+	 * The entries for the current batch.
+	 */
+	private List<T> pending = Lists.newArrayList();
+
+	/**
+	 * Whether a scheduled flush is running.
+	 */
+	private boolean running = false;
+
+	GroupCommit(ScheduledExecutorService scheduler, long window, int batchSize, Runnable flush) {
+		Preconditions.checkArgument(window >= 0, "Window should not be negative");
+		Preconditions.checkArgument(batchSize > 0, "Batch size should be positive");
+		this.scheduler = Preconditions.checkNotNull(scheduler);
+		this.window = window;
+		this.batchSize = batchSize;
+		this.flush = Preconditions.checkNotNull(flush);
+	}
+
+	/**
+	 * Add an entry to the current batch, and schedule a flush if required.
+	 * @param entry Entry to add.
+	 */
+	synchronized void enlist(T entry) {
+		pending.add(entry);
+		if(pending.size() >= batchSize) {
+			scheduler.execute(this::run);
+		}
+		else if(pending.size() == 1 && !running) {
+			scheduler.schedule(this::run, window, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Run the flush, and schedule the next flush for the entries that were enlisted in the meantime.
+	 */
+	private void run() {
+		synchronized (this) {
+			running = true;
+		}
+		try {
+			flush.run();
+		}
+		finally {
+			synchronized (this) {
+				running = false;
+				if(!pending.isEmpty() && !scheduler.isShutdown()) {
+					scheduler.schedule(this::run, window, TimeUnit.MILLISECONDS);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Take the entries for the current batch, and start a new batch.
+	 * @return the entries in the batch, may be empty if the batch was already flushed.
+	 */
+	synchronized List<T> drain() {
+		List<T> batch = pending;
+		pending = Lists.newArrayList();
+		return batch;
+	}
+
+}
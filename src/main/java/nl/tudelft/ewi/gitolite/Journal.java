@@ -0,0 +1,205 @@
+package nl.tudelft.ewi.gitolite;
+
+import com.google.common.collect.Lists;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only file of {@link JournalRecord JournalRecords}. The records of a write operation are
+ * appended as a single entry with the sequence number of the write operation, framed with its
+ * length and a CRC32 checksum, so that an entry that was only partially written before a crash
+ * is detected and discarded when the journal is {@link Journal#read() read}.
+ *
+ * <p>When some of the write operations are pushed while others are still waiting to be pushed, a
+ * {@link JournalRecord.Type#PUSHED PUSHED} marker is appended, so that the pushed write operations
+ * are not replayed again.</p>
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+@Slf4j
+class Journal implements Closeable {
+
+	private final File file;
+
+	private final FileChannel channel;
+
+	/**
+	 * Sequence number of the last write operation in the journal, or {@code 0} if it was not read.
+	 */
+	private long lastSequence = 0;
+
+	Journal(File file) throws IOException {
+		this.file = file;
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+			StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.channel.position(channel.size());
+	}
+
+	/**
+	 * Read the records of the write operations in the journal that were not pushed. A partially
+	 * written entry at the end of the journal is truncated.
+	 * @return the records in the order in which they were appended.
+	 * @throws IOException If an I/O error occurs.
+	 */
+	synchronized List<JournalRecord> read() throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+		while(buffer.hasRemaining() && channel.read(buffer, buffer.position()) >= 0);
+		buffer.flip();
+
+		List<Entry> entries = Lists.newArrayList();
+		long pushed = 0;
+		CRC32 crc = new CRC32();
+		while(buffer.remaining() >= Integer.BYTES + Long.BYTES) {
+			int start = buffer.position();
+			int length = buffer.getInt();
+			long checksum = buffer.getLong();
+			if(length < 0 || length > buffer.remaining()) {
+				buffer.position(start);
+				break;
+			}
+			byte[] payload = new byte[length];
+			buffer.get(payload);
+			crc.reset();
+			crc.update(payload);
+			if(crc.getValue() != checksum) {
+				buffer.position(start);
+				break;
+			}
+			Entry entry = Entry.read(new DataInputStream(new ByteArrayInputStream(payload)));
+			lastSequence = Math.max(lastSequence, entry.sequence);
+			if(entry.isPushedMarker()) {
+				pushed = Math.max(pushed, entry.sequence);
+			}
+			else {
+				entries.add(entry);
+			}
+		}
+
+		if(buffer.position() < channel.size()) {
+			log.warn("Truncating incomplete record at offset {} in {}", buffer.position(), file);
+			channel.truncate(buffer.position());
+		}
+		channel.position(buffer.position());
+
+		List<JournalRecord> records = Lists.newArrayList();
+		for(Entry entry : entries) {
+			if(entry.sequence > pushed) {
+				records.addAll(entry.records);
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * @return the sequence number of the last write operation in the journal when it was
+	 *    {@link Journal#read() read}, or {@code 0} if the journal was empty.
+	 */
+	synchronized long getLastSequence() {
+		return lastSequence;
+	}
+
+	/**
+	 * Append the records of a write operation to the journal, and force them to the storage device.
+	 * @param sequence The sequence number of the write operation.
+	 * @param records The records to append.
+	 * @throws IOException If an I/O error occurs.
+	 */
+	synchronized void append(long sequence, List<JournalRecord> records) throws IOException {
+		ByteArrayOutputStream entry = new ByteArrayOutputStream();
+		DataOutputStream entryOutput = new DataOutputStream(entry);
+		entryOutput.writeLong(sequence);
+		entryOutput.writeInt(records.size());
+		for(JournalRecord record : records) {
+			byte[] payload = record.toBytes();
+			entryOutput.writeInt(payload.length);
+			entryOutput.write(payload);
+		}
+		entryOutput.flush();
+
+		byte[] payload = entry.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(bytes);
+		output.writeInt(payload.length);
+		output.writeLong(crc.getValue());
+		output.write(payload);
+		output.flush();
+
+		ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+		while(buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		channel.force(false);
+	}
+
+	/**
+	 * Mark the write operations up to a sequence number as pushed, so that they are not replayed
+	 * when the journal is read.
+	 * @param sequence The sequence number of the last pushed write operation.
+	 * @throws IOException If an I/O error occurs.
+	 */
+	synchronized void markPushed(long sequence) throws IOException {
+		append(sequence, Collections.singletonList(JournalRecord.of(JournalRecord.Type.PUSHED)));
+	}
+
+	/**
+	 * Remove all records from the journal, once their changes are pushed.
+	 * @throws IOException If an I/O error occurs.
+	 */
+	synchronized void truncate() throws IOException {
+		channel.truncate(0);
+		channel.force(false);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * The records of a write operation.
+	 */
+	private static class Entry {
+
+		private final long sequence;
+
+		private final List<JournalRecord> records;
+
+		private Entry(long sequence, List<JournalRecord> records) {
+			this.sequence = sequence;
+			this.records = records;
+		}
+
+		boolean isPushedMarker() {
+			return records.stream().anyMatch(record -> record.getType() == JournalRecord.Type.PUSHED);
+		}
+
+		static Entry read(DataInputStream input) throws IOException {
+			long sequence = input.readLong();
+			int size = input.readInt();
+			List<JournalRecord> records = Lists.newArrayListWithCapacity(size);
+			for(int i = 0; i < size; i++) {
+				byte[] payload = new byte[input.readInt()];
+				input.readFully(payload);
+				records.add(JournalRecord.read(new DataInputStream(new ByteArrayInputStream(payload))));
+			}
+			return new Entry(sequence, records);
+		}
+
+	}
+
+}
@@ -0,0 +1,445 @@
+package nl.tudelft.ewi.gitolite;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import lombok.SneakyThrows;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import nl.tudelft.ewi.gitolite.config.Config;
+import nl.tudelft.ewi.gitolite.config.ConfigImpl;
+import nl.tudelft.ewi.gitolite.keystore.KeyHolder;
+import nl.tudelft.ewi.gitolite.keystore.KeyStore;
+import nl.tudelft.ewi.gitolite.keystore.PersistedKey;
+import nl.tudelft.ewi.gitolite.objects.Identifiable;
+import nl.tudelft.ewi.gitolite.objects.Identifier;
+import nl.tudelft.ewi.gitolite.parser.TokenizerBasedParser;
+import nl.tudelft.ewi.gitolite.parser.rules.AccessRule;
+import nl.tudelft.ewi.gitolite.parser.rules.GroupRule;
+import nl.tudelft.ewi.gitolite.parser.rules.RepositoryRule;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * A logical write operation in the {@link Journal}. Rules are stored as a configuration snippet
+ * that contains the rule and the groups it depends on. Records only describe the changes of a
+ * single writer, so that they can be replayed on a {@code Config} that contains the changes of
+ * other writers. Whether a record still has to be replayed is decided by the sequence number of
+ * its write operation in the journal.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+@Slf4j
+@Value
+class JournalRecord {
+
+	private static final Joiner JOINER = Joiner.on(' ');
+
+	private static final Splitter SPLITTER = Splitter.on(' ').omitEmptyStrings();
+
+	enum Type {
+		/**
+		 * Add the groups and repository rules in the snippet, to the partition in the second
+		 * argument if present.
+		 */
+		ADD_RULES,
+		/**
+		 * Delete the group in the snippet.
+		 */
+		DELETE_GROUP,
+		/**
+		 * Delete the repository rule in the snippet.
+		 */
+		DELETE_REPOSITORY,
+		/**
+		 * Delete the uses of an identifier, or of the group in the snippet.
+		 */
+		DELETE_IDENTIFIER,
+		/**
+		 * Remove all rules.
+		 */
+		CLEAR,
+		/**
+		 * Put a key, unless a key with the same user and name exists.
+		 */
+		PUT_KEY,
+		/**
+		 * Delete a key.
+		 */
+		DELETE_KEY,
+		/**
+		 * Change the members of a group that was changed in place. The arguments are the pattern of
+		 * the group, the index of its definition among the definitions of the group, the added and
+		 * removed members, the added and removed groups, and a snippet with the added groups.
+		 */
+		UPDATE_GROUP,
+		/**
+		 * Replace a repository rule that was changed in place. The arguments are the rule as it was
+		 * written before the change, its patterns, and a snippet with the changed rule.
+		 */
+		UPDATE_REPOSITORY,
+		/**
+		 * Marks the write operations up to the sequence number of this record as pushed.
+		 */
+		PUSHED
+	}
+
+	Type type;
+
+	List<String> arguments;
+
+	static JournalRecord of(Type type, String... arguments) {
+		return new JournalRecord(type, ImmutableList.copyOf(arguments));
+	}
+
+	/**
+	 * Create a snippet for a group and the groups it depends on.
+	 * @param groupRule The group.
+	 * @return the snippet.
+	 */
+	static String snippet(GroupRule groupRule) {
+		ConfigImpl snippet = new ConfigImpl();
+		snippet.addGroup(groupRule);
+		return snippet(snippet);
+	}
+
+	/**
+	 * Create a snippet for a repository rule and the groups it depends on.
+	 * @param repositoryRule The repository rule.
+	 * @return the snippet.
+	 */
+	static String snippet(RepositoryRule repositoryRule) {
+		ConfigImpl snippet = new ConfigImpl();
+		snippet.addRepositoryRule(repositoryRule);
+		return snippet(snippet);
+	}
+
+	/**
+	 * Create a snippet for groups and the groups they depend on.
+	 * @param groupRules The groups.
+	 * @return the snippet.
+	 */
+	static String snippet(Collection<? extends GroupRule> groupRules) {
+		ConfigImpl snippet = new ConfigImpl();
+		groupRules.forEach(snippet::addGroup);
+		return snippet(snippet);
+	}
+
+	@SneakyThrows
+	static String snippet(Config config) {
+		StringWriter writer = new StringWriter();
+		config.write(writer);
+		return writer.toString();
+	}
+
+	private static Config parse(String snippet) throws IOException {
+		List<GroupRule> groupRules = Lists.newArrayList();
+		List<RepositoryRule> repositoryRules = Lists.newArrayList();
+		new TokenizerBasedParser(new StringReader(snippet)).parse(repositoryRules, groupRules);
+		return new ConfigImpl(groupRules, repositoryRules);
+	}
+
+	private static List<RepositoryRule> repositoryRules(Config config) {
+		return config.getRules().stream()
+			.filter(RepositoryRule.class::isInstance)
+			.map(RepositoryRule.class::cast)
+			.collect(Collectors.toList());
+	}
+
+	private static GroupRule parseGroup(String snippet, String pattern) throws IOException {
+		return findGroup(parse(snippet), pattern);
+	}
+
+	/**
+	 * Apply this record.
+	 * @param config The {@code Config} to apply the record to.
+	 * @param keyStore The {@code KeyStore} to apply the record to.
+	 * @throws IOException If an I/O error occurs.
+	 */
+	void apply(Config config, KeyStore keyStore) throws IOException {
+		switch (type) {
+			case ADD_RULES:
+				Config snippet = parse(arguments.get(0));
+				List<RepositoryRule> repositoryRules = repositoryRules(snippet);
+				// Without repository rules, the groups that no other group in the snippet refers to were added themselves
+				Map<GroupRule, GroupRule> definitions = addGroups(config, snippet,
+					repositoryRules.isEmpty() ? roots(snippet) : Collections.emptySet());
+				String partition = arguments.size() > 1 ? arguments.get(1) : Config.MAIN_PARTITION;
+				for(RepositoryRule repositoryRule : repositoryRules) {
+					config.addRepositoryRule(referToDefinitions(repositoryRule, definitions), partition);
+				}
+				break;
+			case UPDATE_GROUP:
+				updateGroup(config);
+				break;
+			case UPDATE_REPOSITORY:
+				updateRepositoryRule(config);
+				break;
+			case DELETE_GROUP:
+				config.deleteGroup(parseGroup(arguments.get(1), arguments.get(0)));
+				break;
+			case DELETE_REPOSITORY:
+				repositoryRules(parse(arguments.get(0))).forEach(config::deleteRepositoryRule);
+				break;
+			case DELETE_IDENTIFIER:
+				String pattern = arguments.get(0);
+				Identifiable identifiable = arguments.get(1).isEmpty() ?
+					Identifier.valueOf(pattern) : parseGroup(arguments.get(1), pattern);
+				config.deleteIdentifierUses(identifiable);
+				break;
+			case CLEAR:
+				config.clear();
+				break;
+			case PUT_KEY:
+				if(findKeys(keyStore, arguments.get(0), arguments.get(1)).isEmpty()) {
+					keyStore.put(new KeyHolder(arguments.get(0), arguments.get(1), arguments.get(2)));
+				}
+				break;
+			case DELETE_KEY:
+				for(PersistedKey key : findKeys(keyStore, arguments.get(0), arguments.get(1))) {
+					key.delete();
+				}
+				break;
+			case PUSHED:
+				break;
+			default:
+				throw new IllegalStateException("Unknown record type " + type);
+		}
+	}
+
+	/**
+	 * Create a record for a group that was changed in place.
+	 * @param groupRule The group after the change.
+	 * @param index The index of the definition among the definitions of the group.
+	 * @param members The members of the group before the change.
+	 * @param groups The groups of the group before the change.
+	 * @return the record.
+	 */
+	static JournalRecord updateGroup(GroupRule groupRule, int index, List<Identifier> members, List<GroupRule> groups) {
+		List<Identifier> addedMembers = Lists.newArrayList(groupRule.getMembers());
+		addedMembers.removeAll(members);
+		List<Identifier> removedMembers = Lists.newArrayList(members);
+		removedMembers.removeAll(groupRule.getMembers());
+		List<GroupRule> addedGroups = groupRule.getGroups().stream()
+			.filter(group -> groups.stream().noneMatch(previous -> previous.getPattern().equals(group.getPattern())))
+			.collect(Collectors.toList());
+		List<GroupRule> removedGroups = groups.stream()
+			.filter(previous -> groupRule.getGroups().stream().noneMatch(group -> group.getPattern().equals(previous.getPattern())))
+			.collect(Collectors.toList());
+		return of(Type.UPDATE_GROUP, groupRule.getPattern(), Integer.toString(index),
+			patterns(addedMembers), patterns(removedMembers), patterns(addedGroups), patterns(removedGroups),
+			addedGroups.isEmpty() ? "" : snippet(addedGroups));
+	}
+
+	/**
+	 * Create a record for a repository rule that was changed in place.
+	 * @param repositoryRule The repository rule after the change.
+	 * @param previous The repository rule as it was written before the change.
+	 * @param patterns The patterns of the repository rule before the change.
+	 * @return the record.
+	 */
+	static JournalRecord updateRepositoryRule(RepositoryRule repositoryRule, String previous, List<String> patterns) {
+		return of(Type.UPDATE_REPOSITORY, previous, JOINER.join(patterns), snippet(repositoryRule));
+	}
+
+	private void updateGroup(Config config) throws IOException {
+		String pattern = arguments.get(0);
+		GroupRule groupRule = config.getGroupRules().stream()
+			.filter(group -> group.getPattern().equals(pattern))
+			.skip(Integer.parseInt(arguments.get(1)))
+			.findFirst().orElse(null);
+		if(groupRule == null) {
+			log.info("Group {} no longer exists, skipping its update", pattern);
+			return;
+		}
+
+		List<Identifier> members = groupRule.getMembers();
+		SPLITTER.split(arguments.get(3)).forEach(member -> members.remove(Identifier.valueOf(member)));
+		SPLITTER.split(arguments.get(2)).forEach(member -> {
+			Identifier identifier = Identifier.valueOf(member);
+			if(!members.contains(identifier)) {
+				members.add(identifier);
+			}
+		});
+
+		List<GroupRule> groups = groupRule.getGroups();
+		SPLITTER.split(arguments.get(5)).forEach(removed -> groups.removeIf(group -> group.getPattern().equals(removed)));
+		if(arguments.get(4).isEmpty()) {
+			return;
+		}
+		Config snippet = parse(arguments.get(6));
+		for(String added : SPLITTER.split(arguments.get(4))) {
+			if(groups.stream().anyMatch(group -> group.getPattern().equals(added))) {
+				continue;
+			}
+			// Refer to the existing definition of the group, and only add the journaled definition if there is none
+			GroupRule group = findGroup(config, added);
+			if(group == null) {
+				group = findGroup(snippet, added);
+				config.addGroup(group);
+			}
+			groups.add(group);
+		}
+	}
+
+	private void updateRepositoryRule(Config config) throws IOException {
+		String previous = arguments.get(0);
+		Identifiable[] identifiables = Lists.newArrayList(SPLITTER.split(arguments.get(1))).stream()
+			.map(Identifier::valueOf)
+			.toArray(Identifiable[]::new);
+		RepositoryRule repositoryRule = config.getRepositoryRule(identifiables).stream()
+			.filter(rule -> rule.toString().equals(previous))
+			.findFirst().orElse(null);
+		if(repositoryRule == null) {
+			log.info("Repository rule for {} was changed on the remote, skipping its update", arguments.get(1));
+			return;
+		}
+
+		Config snippet = parse(arguments.get(2));
+		Map<GroupRule, GroupRule> definitions = addGroups(config, snippet, Collections.emptySet());
+		RepositoryRule changed = referToDefinitions(repositoryRules(snippet).get(0), definitions);
+		repositoryRule.getIdentifiables().clear();
+		repositoryRule.getIdentifiables().addAll(changed.getIdentifiables());
+		repositoryRule.getRules().clear();
+		repositoryRule.getRules().addAll(changed.getRules());
+		repositoryRule.getConfigKeys().clear();
+		repositoryRule.getConfigKeys().addAll(changed.getConfigKeys());
+	}
+
+	/**
+	 * Add the groups of a snippet that the config does not define. The groups that the config already
+	 * defines, for example after a rebase on a remote that defines them as well, are not defined again.
+	 * @param config The config to add the groups to.
+	 * @param snippet The parsed snippet.
+	 * @param added The groups that were added themselves, which are added even if the config defines them.
+	 * @return the definitions in the config to refer to instead of the groups of the snippet, by identity.
+	 */
+	private static Map<GroupRule, GroupRule> addGroups(Config config, Config snippet, Set<GroupRule> added) {
+		Map<GroupRule, GroupRule> definitions = Maps.newIdentityHashMap();
+		// The groups of a snippet are in definition order, so the groups they refer to come first
+		for(GroupRule group : snippet.getGroupRules()) {
+			GroupRule definition = added.contains(group) ? null : findLastGroup(config, group.getPattern());
+			if(definition != null) {
+				definitions.put(group, definition);
+			}
+			else {
+				group.getGroups().replaceAll(member -> definitions.getOrDefault(member, member));
+				config.addGroup(group);
+			}
+		}
+		return definitions;
+	}
+
+	/**
+	 * @return the groups of a snippet that no other group of the snippet refers to, by identity.
+	 */
+	private static Set<GroupRule> roots(Config snippet) {
+		Set<GroupRule> roots = Sets.newIdentityHashSet();
+		roots.addAll(snippet.getGroupRules());
+		snippet.getGroupRules().forEach(group -> group.getGroups().forEach(roots::remove));
+		return roots;
+	}
+
+	/**
+	 * Let a repository rule of a snippet refer to the definitions of its groups in the config.
+	 * @param repositoryRule The repository rule of the snippet.
+	 * @param definitions The definitions to refer to, by the groups of the snippet.
+	 * @return the repository rule.
+	 */
+	private static RepositoryRule referToDefinitions(RepositoryRule repositoryRule, Map<GroupRule, GroupRule> definitions) {
+		if(definitions.isEmpty()) {
+			return repositoryRule;
+		}
+		repositoryRule.getIdentifiables().replaceAll(identifiable -> definitions.containsKey(identifiable) ?
+			definitions.get(identifiable) : identifiable);
+		repositoryRule.getRules().replaceAll(rule -> {
+			if(rule.getMembers().getOwnGroupsStream().noneMatch(definitions::containsKey)) {
+				return rule;
+			}
+			List<GroupRule> groups = rule.getMembers().getOwnGroupsStream()
+				.map(group -> definitions.getOrDefault(group, group))
+				.collect(Collectors.toList());
+			List<Identifier> members = rule.getMembers().getOwnMembersStream()
+				.collect(Collectors.toList());
+			return new AccessRule(rule.getPermission(), rule.getRefex(), groups, members);
+		});
+		return repositoryRule;
+	}
+
+	/**
+	 * @return the last definition of a group in a config, which the rules after it refer to.
+	 */
+	private static GroupRule findLastGroup(Config config, String pattern) {
+		return config.getGroupRules().stream()
+			.filter(group -> group.getPattern().equals(pattern))
+			.reduce((first, second) -> second).orElse(null);
+	}
+
+	private static GroupRule findGroup(Config config, String pattern) {
+		return config.getGroupRules().stream()
+			.filter(group -> group.getPattern().equals(pattern))
+			.findFirst().orElse(null);
+	}
+
+	private static String patterns(Collection<? extends Identifiable> identifiables) {
+		return JOINER.join(identifiables.stream().map(Identifiable::getPattern).iterator());
+	}
+
+	private static List<PersistedKey> findKeys(KeyStore keyStore, String user, String name) {
+		return keyStore.getKeys(user).stream()
+			.filter(key -> key.getName().equals(name))
+			.collect(Collectors.toList());
+	}
+
+	/**
+	 * @return the serialized record.
+	 * @throws IOException If an I/O error occurs.
+	 */
+	byte[] toBytes() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(bytes);
+		output.writeByte(type.ordinal());
+		output.writeInt(arguments.size());
+		for(String argument : arguments) {
+			byte[] value = argument.getBytes(StandardCharsets.UTF_8);
+			output.writeInt(value.length);
+			output.write(value);
+		}
+		output.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Read a serialized record.
+	 * @param input The input to read from.
+	 * @return the record.
+	 * @throws IOException If an I/O error occurs.
+	 */
+	static JournalRecord read(DataInput input) throws IOException {
+		Type type = Type.values()[input.readByte()];
+		int size = input.readInt();
+		List<String> arguments = Lists.newArrayListWithCapacity(size);
+		for(int i = 0; i < size; i++) {
+			byte[] value = new byte[input.readInt()];
+			input.readFully(value);
+			arguments.add(new String(value, StandardCharsets.UTF_8));
+		}
+		return new JournalRecord(type, ImmutableList.copyOf(arguments));
+	}
+
+}
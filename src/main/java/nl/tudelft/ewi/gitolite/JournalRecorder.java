@@ -0,0 +1,378 @@
+package nl.tudelft.ewi.gitolite;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import lombok.RequiredArgsConstructor;
+import lombok.Value;
+import nl.tudelft.ewi.gitolite.JournalRecord.Type;
+import nl.tudelft.ewi.gitolite.config.Config;
+import nl.tudelft.ewi.gitolite.keystore.Key;
+import nl.tudelft.ewi.gitolite.keystore.KeyStore;
+import nl.tudelft.ewi.gitolite.keystore.PersistedKey;
+import nl.tudelft.ewi.gitolite.objects.Identifiable;
+import nl.tudelft.ewi.gitolite.objects.Identifier;
+import nl.tudelft.ewi.gitolite.parser.rules.GroupRule;
+import nl.tudelft.ewi.gitolite.parser.rules.RepositoryRule;
+import nl.tudelft.ewi.gitolite.parser.rules.Rule;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Records the changes made through a {@link Config} and {@link KeyStore} as {@link JournalRecord JournalRecords}.
+ *
+ * <p>Changes to the rules themselves, for example adding a member to a {@link GroupRule}, are not
+ * made through the {@code Config}. The recorder therefore keeps a snapshot of every rule that is
+ * obtained from the {@code Config}, and records the differences with the snapshot as an update of
+ * that rule before the next operation on the {@code Config}, and when the
+ * {@link JournalRecorder#getRecords(Config) records} are retrieved.</p>
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+class JournalRecorder {
+
+	private final List<JournalRecord> configRecords = Lists.newArrayList();
+
+	private final List<JournalRecord> keyStoreRecords = Lists.newArrayList();
+
+	/**
+	 * Snapshots of the groups that were obtained from the {@code Config}, by identity.
+	 */
+	private final Map<GroupRule, GroupSnapshot> groupSnapshots = Maps.newIdentityHashMap();
+
+	/**
+	 * Snapshots of the repository rules that were obtained from the {@code Config}, by identity.
+	 */
+	private final Map<RepositoryRule, RepositorySnapshot> repositorySnapshots = Maps.newIdentityHashMap();
+
+	/**
+	 * @param config The {@code Config} to record the changes for.
+	 * @return a {@code Config} that records its changes.
+	 */
+	Config record(Config config) {
+		return new RecordingConfig(config);
+	}
+
+	/**
+	 * @param keyStore The {@code KeyStore} to record the changes for.
+	 * @return a {@code KeyStore} that records its changes.
+	 */
+	KeyStore record(KeyStore keyStore) {
+		return new RecordingKeyStore(keyStore);
+	}
+
+	/**
+	 * @param config The {@code Config} after the changes were made.
+	 * @return the recorded changes.
+	 */
+	List<JournalRecord> getRecords(Config config) {
+		recordUpdates(config);
+		List<JournalRecord> records = Lists.newArrayList(configRecords);
+		records.addAll(keyStoreRecords);
+		return records;
+	}
+
+	private <T extends Rule> T track(T rule) {
+		if(rule instanceof GroupRule && rule != GroupRule.ALL) {
+			groupSnapshots.putIfAbsent((GroupRule) rule, new GroupSnapshot((GroupRule) rule));
+		}
+		else if(rule instanceof RepositoryRule) {
+			repositorySnapshots.putIfAbsent((RepositoryRule) rule, new RepositorySnapshot((RepositoryRule) rule));
+		}
+		return rule;
+	}
+
+	private <T extends Collection<? extends Rule>> T trackAll(T rules) {
+		rules.forEach(this::track);
+		return rules;
+	}
+
+	/**
+	 * Record the changes to the tracked rules since their snapshots were taken.
+	 * @param config The {@code Config} that contains the rules.
+	 */
+	private void recordUpdates(Config config) {
+		groupSnapshots.replaceAll((groupRule, snapshot) -> {
+			if(snapshot.isUpToDate(groupRule)) {
+				return snapshot;
+			}
+			int index = getDefinitionIndex(config, groupRule);
+			if(index >= 0) {
+				configRecords.add(JournalRecord.updateGroup(groupRule, index, snapshot.getMembers(), snapshot.getGroups()));
+			}
+			return new GroupSnapshot(groupRule);
+		});
+		repositorySnapshots.replaceAll((repositoryRule, snapshot) -> {
+			if(snapshot.isUpToDate(repositoryRule)) {
+				return snapshot;
+			}
+			configRecords.add(JournalRecord.updateRepositoryRule(repositoryRule, snapshot.getText(), snapshot.getPatterns()));
+			return new RepositorySnapshot(repositoryRule);
+		});
+	}
+
+	/**
+	 * Take new snapshots of the tracked rules, after an operation that changed them was recorded.
+	 */
+	private void refreshSnapshots() {
+		groupSnapshots.replaceAll((groupRule, snapshot) -> new GroupSnapshot(groupRule));
+		repositorySnapshots.replaceAll((repositoryRule, snapshot) -> new RepositorySnapshot(repositoryRule));
+	}
+
+	/**
+	 * @return the index of a group among the definitions of the group in a {@code Config}, or
+	 *    {@code -1} if the {@code Config} does not contain the group.
+	 */
+	private static int getDefinitionIndex(Config config, GroupRule groupRule) {
+		int index = 0;
+		for(GroupRule definition : config.getGroupRules()) {
+			if(definition == groupRule) {
+				return index;
+			}
+			if(definition.getPattern().equals(groupRule.getPattern())) {
+				index++;
+			}
+		}
+		return -1;
+	}
+
+	@Value
+	private static class GroupSnapshot {
+
+		List<Identifier> members;
+
+		List<GroupRule> groups;
+
+		GroupSnapshot(GroupRule groupRule) {
+			this.members = Lists.newArrayList(groupRule.getMembers());
+			this.groups = Lists.newArrayList(groupRule.getGroups());
+		}
+
+		boolean isUpToDate(GroupRule groupRule) {
+			return members.equals(groupRule.getMembers()) && patterns(groups).equals(patterns(groupRule.getGroups()));
+		}
+
+		private static List<String> patterns(List<GroupRule> groups) {
+			return groups.stream().map(GroupRule::getPattern).collect(Collectors.toList());
+		}
+
+	}
+
+	@Value
+	private static class RepositorySnapshot {
+
+		String text;
+
+		List<String> patterns;
+
+		RepositorySnapshot(RepositoryRule repositoryRule) {
+			this.text = repositoryRule.toString();
+			this.patterns = repositoryRule.getIdentifiables().stream()
+				.map(Identifiable::getPattern)
+				.collect(Collectors.toList());
+		}
+
+		boolean isUpToDate(RepositoryRule repositoryRule) {
+			return text.equals(repositoryRule.toString());
+		}
+
+	}
+
+	@RequiredArgsConstructor
+	private class RecordingConfig implements Config {
+
+		private final Config delegate;
+
+		@Override
+		public GroupRule getGroup(String name) {
+			GroupRule groupRule = delegate.getGroup(name);
+			return groupRule == null ? null : track(groupRule);
+		}
+
+		@Override
+		public void addGroup(GroupRule groupRule) {
+			recordUpdates(delegate);
+			configRecords.add(JournalRecord.of(Type.ADD_RULES, JournalRecord.snippet(groupRule)));
+			delegate.addGroup(groupRule);
+			track(groupRule);
+		}
+
+		@Override
+		public boolean deleteGroup(GroupRule groupRule) {
+			recordUpdates(delegate);
+			configRecords.add(JournalRecord.of(Type.DELETE_GROUP, groupRule.getPattern(), JournalRecord.snippet(groupRule)));
+			boolean deleted = delegate.deleteGroup(groupRule);
+			refreshSnapshots();
+			return deleted;
+		}
+
+		@Override
+		public Collection<? extends GroupRule> getGroupRules() {
+			return trackAll(delegate.getGroupRules());
+		}
+
+		@Override
+		public void deleteIdentifierUses(Identifiable identifier) {
+			String snippet = identifier instanceof GroupRule ? JournalRecord.snippet((GroupRule) identifier) : "";
+			recordUpdates(delegate);
+			configRecords.add(JournalRecord.of(Type.DELETE_IDENTIFIER, identifier.getPattern(), snippet));
+			delegate.deleteIdentifierUses(identifier);
+			refreshSnapshots();
+		}
+
+		@Override
+		public Collection<? extends RepositoryRule> getRepositoryRule(Identifiable... identifiables) {
+			return trackAll(delegate.getRepositoryRule(identifiables));
+		}
+
+		@Override
+		public RepositoryRule getFirstRepositoryRule(Identifiable... identifiables) {
+			RepositoryRule repositoryRule = delegate.getFirstRepositoryRule(identifiables);
+			return repositoryRule == null ? null : track(repositoryRule);
+		}
+
+		@Override
+		public void addRepositoryRule(RepositoryRule repositoryRule) {
+			recordUpdates(delegate);
+			configRecords.add(JournalRecord.of(Type.ADD_RULES, JournalRecord.snippet(repositoryRule)));
+			delegate.addRepositoryRule(repositoryRule);
+			track(repositoryRule);
+		}
+
+		@Override
+		public void addRepositoryRule(RepositoryRule repositoryRule, String partition) {
+			recordUpdates(delegate);
+			configRecords.add(JournalRecord.of(Type.ADD_RULES, JournalRecord.snippet(repositoryRule), partition));
+			delegate.addRepositoryRule(repositoryRule, partition);
+			track(repositoryRule);
+		}
+
+		@Override
+		public boolean deleteRepositoryRule(RepositoryRule rule) {
+			recordUpdates(delegate);
+			configRecords.add(JournalRecord.of(Type.DELETE_REPOSITORY, JournalRecord.snippet(rule)));
+			boolean deleted = delegate.deleteRepositoryRule(rule);
+			refreshSnapshots();
+			return deleted;
+		}
+
+		@Override
+		public Collection<Rule> getRules() {
+			return trackAll(delegate.getRules());
+		}
+
+		@Override
+		public String getPartition(RepositoryRule repositoryRule) {
+			return delegate.getPartition(repositoryRule);
+		}
+
+		@Override
+		public Collection<String> getPartitions() {
+			return delegate.getPartitions();
+		}
+
+		@Override
+		public void clear() {
+			recordUpdates(delegate);
+			configRecords.add(JournalRecord.of(Type.CLEAR));
+			delegate.clear();
+			groupSnapshots.clear();
+			repositorySnapshots.clear();
+		}
+
+		@Override
+		public Config copy() {
+			return delegate.copy();
+		}
+
+		@Override
+		public void write(Writer writer) throws IOException {
+			delegate.write(writer);
+		}
+
+		@Override
+		public void write(String partition, Writer writer) throws IOException {
+			delegate.write(partition, writer);
+		}
+
+		@Override
+		public void write(String partition, Writer writer, boolean canonical) throws IOException {
+			delegate.write(partition, writer, canonical);
+		}
+
+	}
+
+	@RequiredArgsConstructor
+	private class RecordingKeyStore implements KeyStore {
+
+		private final KeyStore delegate;
+
+		@Override
+		public PersistedKey getKey(String user, String name) {
+			return new RecordingKey(delegate.getKey(user, name));
+		}
+
+		@Override
+		public Collection<? extends PersistedKey> getKeys(String user) {
+			return delegate.getKeys(user).stream()
+				.map(RecordingKey::new)
+				.collect(Collectors.toList());
+		}
+
+		@Override
+		public PersistedKey put(Key key) throws IOException {
+			PersistedKey persistedKey = delegate.put(key);
+			keyStoreRecords.add(JournalRecord.of(Type.PUT_KEY, key.getUser(), key.getName(), key.getContents()));
+			return new RecordingKey(persistedKey);
+		}
+
+		@Override
+		public Collection<String> getUsers() {
+			return delegate.getUsers();
+		}
+
+		@Override
+		public void scan() throws IOException {
+			delegate.scan();
+		}
+
+		@Override
+		public Collection<String> pollChangedFiles() {
+			return delegate.pollChangedFiles();
+		}
+
+	}
+
+	@RequiredArgsConstructor
+	private class RecordingKey implements PersistedKey {
+
+		private final PersistedKey key;
+
+		@Override
+		public String getUser() {
+			return key.getUser();
+		}
+
+		@Override
+		public String getName() {
+			return key.getName();
+		}
+
+		@Override
+		public String getContents() throws IOException {
+			return key.getContents();
+		}
+
+		@Override
+		public void delete() throws IOException {
+			keyStoreRecords.add(JournalRecord.of(Type.DELETE_KEY, getUser(), getName()));
+			key.delete();
+		}
+
+	}
+
+}
@@ -0,0 +1,113 @@
+package nl.tudelft.ewi.gitolite;
+
+import com.google.common.collect.Queues;
+import lombok.RequiredArgsConstructor;
+import nl.tudelft.ewi.gitolite.keystore.Key;
+import nl.tudelft.ewi.gitolite.keystore.KeyHolder;
+import nl.tudelft.ewi.gitolite.keystore.KeyStore;
+import nl.tudelft.ewi.gitolite.keystore.PersistedKey;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.stream.Collectors;
+
+/**
+ * A {@link KeyStore} decorator that records the keys that are added and deleted,
+ * so that these changes can be {@link KeyStoreTransaction#rollback() rolled back}.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+@RequiredArgsConstructor
+class KeyStoreTransaction implements KeyStore {
+
+	private final KeyStore delegate;
+
+	private final Deque<Undo> undoLog = Queues.newArrayDeque();
+
+	@Override
+	public PersistedKey getKey(String user, String name) {
+		return new TransactionKey(delegate.getKey(user, name));
+	}
+
+	@Override
+	public Collection<? extends PersistedKey> getKeys(String user) {
+		return delegate.getKeys(user).stream()
+			.map(TransactionKey::new)
+			.collect(Collectors.toList());
+	}
+
+	@Override
+	public PersistedKey put(Key key) throws IOException {
+		PersistedKey persistedKey = delegate.put(key);
+		undoLog.push(persistedKey::delete);
+		return new TransactionKey(persistedKey);
+	}
+
+	@Override
+	public Collection<String> getUsers() {
+		return delegate.getUsers();
+	}
+
+	@Override
+	public void scan() throws IOException {
+		delegate.scan();
+	}
+
+	@Override
+	public long getVersion() {
+		return delegate.getVersion();
+	}
+
+	@Override
+	public Collection<String> pollChangedFiles() {
+		return delegate.pollChangedFiles();
+	}
+
+	/**
+	 * Undo the changes made through this {@code KeyStoreTransaction}, in reverse order.
+	 * @throws IOException If an I/O error occurs.
+	 */
+	void rollback() throws IOException {
+		while(!undoLog.isEmpty()) {
+			undoLog.pop().undo();
+		}
+	}
+
+	private interface Undo {
+		void undo() throws IOException;
+	}
+
+	/**
+	 * A {@link PersistedKey} that records its deletion.
+	 */
+	@RequiredArgsConstructor
+	private class TransactionKey implements PersistedKey {
+
+		private final PersistedKey key;
+
+		@Override
+		public String getUser() {
+			return key.getUser();
+		}
+
+		@Override
+		public String getName() {
+			return key.getName();
+		}
+
+		@Override
+		public String getContents() throws IOException {
+			return key.getContents();
+		}
+
+		@Override
+		public void delete() throws IOException {
+			KeyHolder backup = new KeyHolder(getUser(), getName(), getContents());
+			key.delete();
+			undoLog.push(() -> delegate.put(backup));
+		}
+
+	}
+
+}
@@ -1,17 +1,53 @@
 package nl.tudelft.ewi.gitolite;
 
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.googlecode.concurentlocks.ReadWriteUpdateLock;
 import com.googlecode.concurentlocks.ReentrantReadWriteUpdateLock;
-import lombok.AllArgsConstructor;
 import lombok.SneakyThrows;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
 import nl.tudelft.ewi.gitolite.config.Config;
+import nl.tudelft.ewi.gitolite.config.ConfigCompactor;
+import nl.tudelft.ewi.gitolite.config.ConfigImpl;
+import nl.tudelft.ewi.gitolite.config.UnmodifiableConfig;
 import nl.tudelft.ewi.gitolite.git.GitManager;
+import nl.tudelft.ewi.gitolite.git.PushRejectedException;
 import nl.tudelft.ewi.gitolite.keystore.KeyStore;
+import nl.tudelft.ewi.gitolite.parser.TokenizerBasedParser;
+import nl.tudelft.ewi.gitolite.util.AtomicFiles;
+import nl.tudelft.ewi.gitolite.util.FsyncPolicy;
 
-import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
@@ -20,10 +56,64 @@ import java.util.function.Function;
  * {@link GitManager}, in order to {@link ManagedConfig#applyChanges() apply} changes
  * to the remote config.
  *
+ * <p>By default every write operation is committed and pushed before it returns. When a
+ * {@link ManagedConfigFactory#batchSize() batch size} or {@link ManagedConfigFactory#batchWindow() batch window}
+ * is configured, write operations are applied to the in-memory {@code Config} and {@code KeyStore}
+ * and are then committed and pushed together with the other write operations in the same batch.
+ * Write operations still only return after their changes were pushed to the remote.</p>
+ *
+ * <p>The {@code Async} variants of the write operations run on the
+ * {@link ManagedConfigFactory#writeExecutor() write executor}, and return a {@code CompletableFuture}
+ * that completes when the changes are pushed to the remote. If the changes could not be applied,
+ * the future completes exceptionally with the cause, for example a {@link nl.tudelft.ewi.gitolite.git.GitException}
+ * or {@link nl.tudelft.ewi.gitolite.git.ServiceUnavailable}.</p>
+ *
+ * <p>{@link ManagedConfig#readConfig(Consumer) readConfig} operates on an immutable copy of the {@code Config}
+ * as it was last pushed to the remote, so read operations never wait for writers or for each other.
+ * {@link ManagedConfig#readKeyStore(Function) readKeyStore} shares a {@code ReadLock} with the other readers.
+ * Read operations that perform write operations, or that need the changes that are not pushed yet, use
+ * {@link ManagedConfig#readConfigForUpdate(Consumer) readConfigForUpdate} or
+ * {@link ManagedConfig#readKeyStoreForUpdate(Function) readKeyStoreForUpdate} instead, which operate on the live
+ * {@code Config} and {@code KeyStore} under an exclusive {@code UpdateLock} that can be upgraded to a write operation.</p>
+ *
+ * <p>In {@link ManagedConfigFactory#pipelined() pipelined} mode, the write lock is only held while the
+ * write operation changes the in-memory {@code Config} and a copy of the result is taken. Writing the
+ * configuration file, committing and pushing happen on a background thread, while subsequent write
+ * operations proceed. Changes are pushed in the order in which they were made, and write operations
+ * still only complete after their changes were pushed. Note that key files are written to the working
+ * directory by the write operation itself, so they may be pushed along with an earlier batch.</p>
+ *
+ * <p>Changes are only written, committed and pushed if the serialized {@code Config} differs from the
+ * configuration that was last pushed, or if the {@link KeyStore#getVersion() KeyStore changed}. Write
+ * operations that turn out to be a no-op, for example ensuring that a group exists, do not cause a push.
+ * If the configuration is {@link Config#getPartitions() partitioned} over included files, only the files
+ * of the partitions that changed are rewritten.</p>
+ *
+ * <p>A {@link ManagedConfig#writeTransaction(ThrowingBiConsumer) transaction} changes both the {@code Config}
+ * and the {@code KeyStore} within a single {@code WriteLock}, and applies the changes in a single commit and
+ * push. If the transaction or the push fails, the in-memory {@code Config} and the {@code KeyStore} are
+ * rolled back to their state before the transaction.</p>
+ *
+ * <p>If the remote rejects a push because another client pushed in the meantime, the {@code ManagedConfig}
+ * {@link GitManager#resetToRemote() resets} to the remote, reparses the configuration file, rescans the
+ * {@code KeyStore} and replays the write operations that were not pushed yet, in their original order.
+ * The push is then retried, up to {@link ManagedConfigFactory#pushRetries() pushRetries} times with an
+ * exponential backoff. Write operations are replayed, so they should only depend on the {@code Config}
+ * and {@code KeyStore} they operate on.</p>
+ *
+ * <p>If a {@link ManagedConfigFactory#journal() journal} is configured, the changes made by the write operations
+ * are appended to the journal as logical records, and the journal is forced to the storage device before the
+ * changes are applied to the {@code ManagedConfig}. Synchronous write operations then no longer wait for the
+ * push: the changes are committed and pushed in the background, and the journal is truncated once no changes
+ * are waiting to be pushed. Failed pushes are reported through the futures of the asynchronous write
+ * operations and the {@link ManagedConfig#getPushFuture() push future}. If the JVM stops before the changes
+ * were pushed, the journal is replayed and pushed when the {@code ManagedConfig} is initialized again.
+ * Transactions are not journaled, as they are pushed before they return.</p>
+ *
  * @author Jan-Willem Gmelig Meyling
  */
-@AllArgsConstructor
-public class ManagedConfig {
+@Slf4j
+public class ManagedConfig implements Closeable {
 
 	/**
 	 * The configuration folder.
@@ -35,6 +125,11 @@ public class ManagedConfig {
 	 */
 	public static final String GITOLITE_CONF_FILE = "gitolite.conf";
 
+	/**
+	 * The key folder.
+	 */
+	public static final String KEYDIR_REL_PATH = "keydir";
+
 	/**
 	 * The {@code GitManager} to use.
 	 */
@@ -46,9 +141,9 @@ public class ManagedConfig {
 	private final KeyStore keyStore;
 
 	/**
-	 * The {@code Config}.
+	 * The {@code Config}. Guarded by the {@code WriteLock}, as a rollback replaces it.
 	 */
-	private final Config config;
+	private Config config;
 
 	/**
 	 * Locks used for operations on the {@code Config} and {@code KeyStore}.
@@ -56,46 +151,892 @@ public class ManagedConfig {
 	private final ReadWriteUpdateLock readWriteLock = new ReentrantReadWriteUpdateLock();
 
 	/**
-	 * Commit and push changes to the remote.
+	 * Immutable copy of the {@code Config} as it was last pushed to the remote.
+	 */
+	private volatile Config snapshot;
+
+	/**
+	 * Number of update locks held by the current thread.
+	 */
+	private final ThreadLocal<Integer> updateLockHolds = ThreadLocal.withInitial(() -> 0);
+
+	/**
+	 * Number of read locks held by the current thread, which cannot be upgraded to a write lock.
+	 */
+	private final ThreadLocal<Integer> readLockHolds = ThreadLocal.withInitial(() -> 0);
+
+	/**
+	 * Executor that flushes the batches, or {@code null} if batching is disabled.
+	 */
+	private final ScheduledExecutorService scheduler;
+
+	/**
+	 * Pending batch of write operations, or {@code null} if batching is disabled.
+	 */
+	private final GroupCommit<PendingChange> groupCommit;
+
+	/**
+	 * Whether the changes are written, committed and pushed outside the {@code WriteLock}.
+	 */
+	private final boolean pipelined;
+
+	/**
+	 * Lock that orders the pushes in pipelined mode.
+	 */
+	private final Object pipelineLock = new Object();
+
+	/**
+	 * Whether a write operation could not be journaled in pipelined mode, and the {@code Config} still has
+	 * to be rebased to revert it. Set under the {@code WriteLock}.
+	 */
+	private volatile boolean rebasePending;
+
+	/**
+	 * Hash function used to detect changes to the configuration file.
+	 */
+	private static final HashFunction CONFIG_HASH_FUNCTION = Hashing.sha256();
+
+	/**
+	 * Hashes of the partitions of the configuration that was last pushed. Guarded by the
+	 * {@code WriteLock}, or by the {@code pipelineLock} in pipelined mode.
+	 */
+	private Map<String, HashCode> pushedConfigHashes;
+
+	/**
+	 * Version of the {@code KeyStore} that was last pushed. Guarded by the {@code WriteLock},
+	 * or by the {@code pipelineLock} in pipelined mode.
+	 */
+	private long pushedKeyStoreVersion;
+
+	/**
+	 * Executor for the asynchronous write operations.
+	 */
+	private final Executor writeExecutor;
+
+	/**
+	 * The default executor for the asynchronous write operations, or {@code null} if
+	 * an executor was provided.
+	 */
+	private final ExecutorService defaultWriteExecutor;
+
+	/**
+	 * Write operations that were applied in memory, but not pushed yet, in the order in which
+	 * they were applied. Guarded by its own monitor.
+	 */
+	private final Deque<UnpushedChange> unpushed = new ArrayDeque<>();
+
+	/**
+	 * Sequence number of the last write operation. Guarded by the {@code WriteLock}.
+	 */
+	private long sequence;
+
+	/**
+	 * Future that completes when the last write operation is pushed.
+	 */
+	private volatile CompletableFuture<Void> pushFuture = CompletableFuture.completedFuture(null);
+
+	/**
+	 * Number of times the {@code Config} was rebased on the remote. Guarded by the {@code WriteLock}.
+	 */
+	private long rebases;
+
+	/**
+	 * Maximum number of times a rejected push is retried.
+	 */
+	private final int pushRetries;
+
+	/**
+	 * Initial delay in milliseconds before a rejected push is retried.
+	 */
+	private final long retryBackoff;
+
+	/**
+	 * Number of pushes that were rejected by the remote.
+	 */
+	private final AtomicLong rejectedPushes = new AtomicLong();
+
+	/**
+	 * Number of write operations that were replayed after a rejected push.
+	 */
+	private final AtomicLong replayedChanges = new AtomicLong();
+
+	/**
+	 * Whether the configuration is parsed in parallel when it is reloaded from the remote.
+	 */
+	private final boolean parallelParse;
+
+	/**
+	 * Whether the configuration is written and reloaded through the {@code GitManager}, instead of
+	 * in the working directory.
+	 */
+	private final boolean loadFromTree;
+
+	/**
+	 * Whether the configuration is written in canonical order.
+	 */
+	private final boolean canonicalOrder;
+
+	/**
+	 * Compacts a copy of the configuration before it is written, or {@code null} if it is written as is.
+	 */
+	private final ConfigCompactor compactor;
+
+	/**
+	 * What is forced to the storage device when a configuration file is written.
+	 */
+	private final FsyncPolicy fsyncPolicy;
+
+	/**
+	 * Paths of the files that were written or deleted, but not committed yet.
+	 */
+	private final Set<String> uncommittedPaths = new TreeSet<>();
+
+	/**
+	 * Journal for the write operations that were not pushed yet, or {@code null} if journaling is disabled.
+	 */
+	private final Journal journal;
+
+	/**
+	 * Records the changes of the current write operation to the journal. Guarded by the {@code WriteLock}.
+	 */
+	private JournalRecorder recorder;
+
+	/**
+	 * Resources that are closed with this {@code ManagedConfig}, such as the lock on a cached repository.
+	 */
+	private final List<Closeable> resources = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Create a new {@code ManagedConfig} that applies every write operation immediately.
+	 * @param gitManager The {@code GitManager} to use.
+	 * @param keyStore The {@code KeyStore} to use.
+	 * @param config The {@code Config} to use.
+	 */
+	public ManagedConfig(GitManager gitManager, KeyStore keyStore, Config config) {
+		this(gitManager, keyStore, config, new ManagedConfigFactory());
+	}
+
+	/**
+	 * Create a new {@code ManagedConfig}.
+	 * @param gitManager The {@code GitManager} to use.
+	 * @param keyStore The {@code KeyStore} to use.
+	 * @param config The {@code Config} to use.
+	 * @param settings The {@code ManagedConfigFactory} that holds the settings for this {@code ManagedConfig}.
+	 */
+	@SneakyThrows
+	protected ManagedConfig(GitManager gitManager, KeyStore keyStore, Config config, ManagedConfigFactory settings) {
+		this.gitManager = gitManager;
+		this.keyStore = keyStore;
+		this.config = config;
+		this.canonicalOrder = settings.canonicalOrder();
+		this.compactor = settings.compactConfig() ? new ConfigCompactor() : null;
+		this.pushedConfigHashes = hash(serialize(config));
+		this.pushedKeyStoreVersion = keyStore.getVersion();
+		publishSnapshot();
+		this.pipelined = settings.pipelined();
+		this.pushRetries = settings.pushRetries();
+		this.retryBackoff = settings.retryBackoff();
+		this.parallelParse = settings.parallelParse();
+		this.loadFromTree = settings.loadFromTree() || gitManager.isBare();
+		this.fsyncPolicy = settings.fsyncPolicy();
+		this.journal = settings.journal() != null ? new Journal(settings.journal()) : null;
+		List<JournalRecord> recovered = journal != null ? journal.read() : Collections.emptyList();
+		this.sequence = journal != null ? journal.getLastSequence() : 0;
+
+		if(pipelined || journal != null || settings.batchSize() > 0 || settings.batchWindow() > 0) {
+			this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+				.setNameFormat("gitolite-group-commit-%d")
+				.setDaemon(true)
+				.build());
+			this.groupCommit = new GroupCommit<>(scheduler, settings.batchWindow(),
+				settings.batchSize() > 0 ? settings.batchSize() : Integer.MAX_VALUE, this::flush);
+		}
+		else {
+			this.scheduler = null;
+			this.groupCommit = null;
+		}
+
+		if(settings.writeExecutor() != null) {
+			this.writeExecutor = settings.writeExecutor();
+			this.defaultWriteExecutor = null;
+		}
+		else {
+			this.defaultWriteExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+				.setNameFormat("gitolite-write-%d")
+				.setDaemon(true)
+				.build());
+			this.writeExecutor = defaultWriteExecutor;
+		}
+
+		if(!recovered.isEmpty()) {
+			recover(recovered);
+		}
+	}
+
+	/**
+	 * Replay the journaled write operations that were not pushed before the JVM stopped on the remote
+	 * config, and push them. Commits for the write operations that were not pushed are discarded, so
+	 * that every journaled write operation is applied exactly once.
+	 * @param records The journaled records.
 	 */
 	@SneakyThrows
+	private void recover(List<JournalRecord> records) {
+		log.info("Recovering {} journaled changes", records.size());
+		Callable<Void> replay = () -> {
+			for(JournalRecord record : records) {
+				record.apply(config, keyStore);
+			}
+			return null;
+		};
+		synchronized (unpushed) {
+			unpushed.add(new UnpushedChange(++sequence, replay));
+		}
+		rebase();
+		try {
+			applyChanges();
+		}
+		catch (Exception e) {
+			log.warn("Failed to push the recovered changes, they are pushed with the next change", e);
+		}
+	}
+
+	/**
+	 * Commit and push changes to the remote.
+	 */
 	protected void applyChanges() {
+		for(int attempt = 1;; attempt++) {
+			try {
+				if(applyChanges(config, keyStore.getVersion(), keyStore.pollChangedFiles())) {
+					publishSnapshot();
+				}
+				removeUnpushed(Long.MAX_VALUE);
+				return;
+			}
+			catch (PushRejectedException e) {
+				backoff(e, attempt);
+				rebase();
+			}
+		}
+	}
+
+	/**
+	 * Write a {@code Config} to the configuration file, and commit and push the changes to the remote.
+	 * Nothing is written, committed or pushed if neither the {@code Config} nor the {@code KeyStore}
+	 * changed since the last push.
+	 * @param config The {@code Config} to write.
+	 * @param keyStoreVersion The version of the {@code KeyStore} to push.
+	 * @param changedKeyFiles The key files that changed since the last call, or {@code null} if the
+	 *    {@code KeyStore} does not track them.
+	 * @return true if the changes were pushed, false if there were no changes.
+	 */
+	@SneakyThrows
+	protected boolean applyChanges(Config config, long keyStoreVersion, Collection<String> changedKeyFiles) {
+		Map<String, String> contents = serialize(config);
+		Map<String, HashCode> configHashes = hash(contents);
+		List<String> changedPartitions = contents.keySet().stream()
+			.filter(partition -> pushedConfigHashes == null ||
+				!configHashes.get(partition).equals(pushedConfigHashes.get(partition)))
+			.collect(Collectors.toList());
+
+		if(changedKeyFiles != null) {
+			changedKeyFiles.forEach(file -> uncommittedPaths.add(KEYDIR_REL_PATH + "/" + file));
+		}
+
+		if(changedPartitions.isEmpty() && keyStoreVersion == pushedKeyStoreVersion) {
+			log.debug("Skipping commit, as there are no changes");
+			return false;
+		}
+
 		File confDir = new File(gitManager.getWorkingDirectory(), CONFDIR_REL_PATH);
-		File configurationFile = new File(confDir, GITOLITE_CONF_FILE);
-		try(BufferedWriter bufferedWriter = new BufferedWriter(new FileWriter(configurationFile, false))) {
-			config.write(bufferedWriter);
+		for(String partition : changedPartitions) {
+			// The main partition is the configuration file, other partitions are relative to its folder
+			uncommittedPaths.add(CONFDIR_REL_PATH + "/" + partition);
+			if(loadFromTree) {
+				gitManager.writeFile(CONFDIR_REL_PATH + "/" + partition, contents.get(partition).getBytes(StandardCharsets.UTF_8));
+				continue;
+			}
+			// Replace the file atomically, so that a failed write never leaves a truncated configuration
+			File configurationFile = new File(confDir, partition);
+			AtomicFiles.write(configurationFile.toPath(), contents.get(partition).getBytes(StandardCharsets.UTF_8), fsyncPolicy);
+		}
+
+		if(changedKeyFiles != null) {
+			// Only stage the files that were changed
+			gitManager.commitChanges(new ArrayList<>(uncommittedPaths));
+		}
+		else {
 			gitManager.commitChanges();
-			gitManager.push();
+		}
+		uncommittedPaths.clear();
+		gitManager.push();
+		pushedConfigHashes = configHashes;
+		pushedKeyStoreVersion = keyStoreVersion;
+		return true;
+	}
+
+	/**
+	 * @param config The {@code Config} to serialize.
+	 * @return the contents of every partition of the config.
+	 */
+	@SneakyThrows
+	private Map<String, String> serialize(Config config) {
+		if(compactor != null) {
+			Config copy = config.copy();
+			if(copy instanceof ConfigImpl) {
+				// Compact a copy, so that the rules that were added and the journal are not affected
+				compactor.compact((ConfigImpl) copy);
+				config = copy;
+			}
+		}
+		Map<String, String> contents = new LinkedHashMap<>();
+		for(String partition : config.getPartitions()) {
+			StringWriter writer = new StringWriter();
+			config.write(partition, writer, canonicalOrder);
+			contents.put(partition, writer.toString());
+		}
+		return contents;
+	}
+
+	private static Map<String, HashCode> hash(Map<String, String> contents) {
+		Map<String, HashCode> hashes = new HashMap<>();
+		contents.forEach((partition, value) ->
+			hashes.put(partition, CONFIG_HASH_FUNCTION.hashString(value, StandardCharsets.UTF_8)));
+		return hashes;
+	}
+
+	/**
+	 * Reset the working directory to the remote, reload the {@code Config} and {@code KeyStore} from it,
+	 * and replay the write operations that were not pushed yet. The caller should hold the {@code WriteLock}.
+	 */
+	@SneakyThrows
+	private void rebase() {
+		gitManager.resetToRemote();
+		uncommittedPaths.clear();
+		if(loadFromTree) {
+			config = TokenizerBasedParser.parse(gitManager.readFolder(CONFDIR_REL_PATH), parallelParse);
+		}
+		else {
+			File confDir = new File(gitManager.getWorkingDirectory(), CONFDIR_REL_PATH);
+			config = TokenizerBasedParser.parse(new File(confDir, GITOLITE_CONF_FILE), parallelParse);
+		}
+		keyStore.scan();
+		pushedConfigHashes = hash(serialize(config));
+		pushedKeyStoreVersion = keyStore.getVersion();
+		rebases++;
+
+		List<UnpushedChange> changes;
+		synchronized (unpushed) {
+			changes = unpushed.stream().collect(Collectors.toList());
+		}
+		log.info("Replaying {} changes on the remote config", changes.size());
+		for(UnpushedChange change : changes) {
+			change.getReplay().call();
+		}
+		replayedChanges.addAndGet(changes.size());
+		rebasePending = false;
+	}
+
+	/**
+	 * Rebase the {@code Config} if a write operation could not be journaled in pipelined mode.
+	 * The pipelineLock is taken before the WriteLock, so that the working directory is not reset
+	 * while a batch is written, committed and pushed.
+	 */
+	private void rebaseIfPending() {
+		synchronized (pipelineLock) {
+			readWriteLock.writeLock().lock();
+			try {
+				if(rebasePending) {
+					rebase();
+				}
+			}
+			finally {
+				readWriteLock.writeLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Take the {@code WriteLock} for a write operation, after reverting
+	 * a write operation that could not be journaled.
+	 */
+	private void lockForWrite() {
+		checkNotReading();
+		readWriteLock.writeLock().lock();
+		while(rebasePending) {
+			readWriteLock.writeLock().unlock();
+			rebaseIfPending();
+			readWriteLock.writeLock().lock();
+		}
+	}
+
+	/**
+	 * Wait before a rejected push is retried, or rethrow the rejection if the retries are exhausted.
+	 * @param rejection The rejection.
+	 * @param attempt The number of the attempt that was rejected, starting at {@code 1}.
+	 */
+	@SneakyThrows
+	private void backoff(PushRejectedException rejection, int attempt) {
+		rejectedPushes.incrementAndGet();
+		if(attempt > pushRetries) {
+			throw rejection;
+		}
+		long delay = retryBackoff << Math.min(attempt - 1, 16);
+		delay += ThreadLocalRandom.current().nextLong(delay + 1);
+		log.info("Push was rejected, retrying in {} ms (attempt {} of {})", delay, attempt, pushRetries);
+		Thread.sleep(delay);
+	}
+
+	/**
+	 * Journal a write operation, and add it to the write operations that are not pushed yet.
+	 * @param sequence The sequence number of the write operation.
+	 * @param replay Applies the write operation again, after a rebase.
+	 * @param records The journal records for the write operation.
+	 * @throws IOException If the write operation could not be journaled, in which case it is not added.
+	 */
+	private void addUnpushed(long sequence, Callable<?> replay, List<JournalRecord> records) throws IOException {
+		synchronized (unpushed) {
+			if(journal != null && !records.isEmpty()) {
+				journal.append(sequence, records);
+			}
+			unpushed.add(new UnpushedChange(sequence, replay));
+		}
+	}
+
+	/**
+	 * Remove the write operations that are pushed.
+	 * @param sequence The sequence number of the last pushed write operation.
+	 */
+	@SneakyThrows
+	private void removeUnpushed(long sequence) {
+		synchronized (unpushed) {
+			boolean removed = false;
+			while(!unpushed.isEmpty() && unpushed.peek().getSequence() <= sequence) {
+				unpushed.poll();
+				removed = true;
+			}
+			if(journal != null && unpushed.isEmpty()) {
+				journal.truncate();
+			}
+			else if(journal != null && removed) {
+				journal.markPushed(sequence);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of pushes that were rejected by the remote.
+	 */
+	public long getRejectedPushes() {
+		return rejectedPushes.get();
+	}
+
+	/**
+	 * @return the number of write operations that were replayed after a rejected push.
+	 */
+	public long getReplayedChanges() {
+		return replayedChanges.get();
+	}
+
+	/**
+	 * @return a future that completes once the last write operation is pushed, or completes
+	 *    exceptionally if it could not be pushed.
+	 */
+	public CompletableFuture<Void> getPushFuture() {
+		return pushFuture;
+	}
+
+	/**
+	 * Replace the snapshot for readers with a copy of the current {@code Config}.
+	 */
+	protected void publishSnapshot() {
+		publishSnapshot(config.copy());
+	}
+
+	/**
+	 * Replace the snapshot for readers.
+	 * @param copy A copy of the {@code Config} that is not modified anymore.
+	 */
+	protected void publishSnapshot(Config copy) {
+		snapshot = new UnmodifiableConfig(copy);
+	}
+
+	/**
+	 * Apply the write operations in the current batch in a single commit and push,
+	 * and notify the callers when their changes are pushed.
+	 */
+	protected void flush() {
+		if(pipelined) {
+			synchronized (pipelineLock) {
+				List<PendingChange> batch = groupCommit.drain();
+				if(!batch.isEmpty()) {
+					apply(batch, () -> applyPipelined(batch));
+				}
+			}
+		}
+		else {
+			readWriteLock.writeLock().lock();
+			try {
+				List<PendingChange> batch = groupCommit.drain();
+				if(!batch.isEmpty()) {
+					apply(batch, this::applyChanges);
+				}
+			}
+			finally {
+				readWriteLock.writeLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Push the copy of the latest change in the batch. If the push is rejected, the {@code Config} is
+	 * rebased and the changes that were enlisted in the meantime are added to the batch.
+	 * @param batch The batch to push.
+	 */
+	@SneakyThrows
+	private void applyPipelined(List<PendingChange> batch) {
+		PendingChange latest = batch.get(batch.size() - 1);
+		Collection<String> changedKeyFiles = getChangedKeyFiles(batch);
+		for(int attempt = 1;; attempt++) {
+			try {
+				if(applyChanges(latest.getCopy(), latest.getKeyStoreVersion(), changedKeyFiles)) {
+					publishSnapshot(latest.getCopy());
+				}
+				removeUnpushed(latest.getSequence());
+				return;
+			}
+			catch (PushRejectedException e) {
+				backoff(e, attempt);
+				// Writers release the UpdateLock while they wait for this batch, but a reader may still hold it,
+				// so do not wait forever for the WriteLock. The rejected copy is never pushed again, the push is only retried after a rebase
+				while(!readWriteLock.writeLock().tryLock(retryBackoff, TimeUnit.MILLISECONDS)) {
+					if(++attempt > pushRetries) {
+						throw e;
+					}
+					log.info("Waiting for the write lock to rebase (attempt {} of {})", attempt, pushRetries);
+				}
+				try {
+					rebase();
+					batch.addAll(groupCommit.drain());
+					latest = new PendingChange(config.copy(), keyStore.getVersion(), keyStore.pollChangedFiles(), sequence, null);
+					changedKeyFiles = union(changedKeyFiles, latest.getChangedKeyFiles());
+				}
+				finally {
+					readWriteLock.writeLock().unlock();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param changes The changes in a batch.
+	 * @return the key files that the changes changed, or {@code null} if the {@code KeyStore} does not track them.
+	 */
+	private static Collection<String> getChangedKeyFiles(List<PendingChange> changes) {
+		Collection<String> changedKeyFiles = Collections.emptySet();
+		for(PendingChange change : changes) {
+			changedKeyFiles = union(changedKeyFiles, change.getChangedKeyFiles());
+		}
+		return changedKeyFiles;
+	}
+
+	private static Collection<String> union(Collection<String> first, Collection<String> second) {
+		if(first == null || second == null) {
+			return null;
+		}
+		Set<String> union = new TreeSet<>(first);
+		union.addAll(second);
+		return union;
+	}
+
+	private void apply(List<PendingChange> batch, Runnable apply) {
+		try {
+			apply.run();
+			log.debug("Applied a batch of {} changes", batch.size());
+			batch.forEach(change -> change.getDurable().complete(null));
+		}
+		catch (Throwable e) {
+			log.warn("Failed to apply a batch of {} changes", batch.size(), e);
+			batch.forEach(change -> change.getDurable().completeExceptionally(e));
+		}
+	}
+
+	/**
+	 * Perform a write operation within a {@code WriteLock}.
+	 * @param interaction write operation
+	 * @param <T> return type
+	 * @return a future that completes with the return value once the changes are pushed.
+	 * @see ManagedConfig#applyChanges()
+	 */
+	protected <T> CompletableFuture<T> submit(Callable<T> interaction) {
+		Submission<T> submission = perform(interaction);
+		return submission.getPushed().thenApply(v -> submission.getResult());
+	}
+
+	/**
+	 * Perform a write operation within a {@code WriteLock}, and journal and enlist its changes.
+	 * @param interaction write operation
+	 * @param <T> return type
+	 * @return the return value and a future that completes once the changes are pushed.
+	 */
+	@SneakyThrows
+	private <T> Submission<T> perform(Callable<T> interaction) {
+		try {
+			return performLocked(interaction);
+		}
+		catch (IOException e) {
+			if(rebasePending) {
+				// Revert the change that could not be journaled outside the WriteLock
+				try {
+					rebaseIfPending();
+				}
+				catch (Exception suppressed) {
+					e.addSuppressed(suppressed);
+				}
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Perform a write operation within a {@code WriteLock}, and journal and enlist its changes.
+	 * If the changes cannot be journaled in pipelined mode, the {@code Config} is left to be
+	 * rebased by the caller, as the WriteLock is taken after the pipelineLock.
+	 */
+	private <T> Submission<T> performLocked(Callable<T> interaction) throws Exception {
+		CompletableFuture<Void> durable = new CompletableFuture<>();
+		T res;
+		lockForWrite();
+		try {
+			JournalRecorder recorder = journal != null ? new JournalRecorder() : null;
+			this.recorder = recorder;
+			try {
+				res = interaction.call();
+			}
+			finally {
+				this.recorder = null;
+			}
+			long changeSequence = sequence + 1;
+			try {
+				addUnpushed(changeSequence, interaction, recorder != null ? recorder.getRecords(config) : Collections.emptyList());
+			}
+			catch (IOException e) {
+				// The change is not journaled, so it is reverted in memory as well
+				if(pipelined) {
+					// The working directory is reset under the pipelineLock, which is taken before the WriteLock
+					rebasePending = true;
+				}
+				else {
+					try {
+						rebase();
+					}
+					catch (Exception suppressed) {
+						e.addSuppressed(suppressed);
+					}
+				}
+				throw e;
+			}
+			sequence = changeSequence;
+			pushFuture = durable;
+			if(groupCommit == null) {
+				try {
+					applyChanges();
+				}
+				catch (Exception e) {
+					durable.completeExceptionally(e);
+					throw e;
+				}
+				durable.complete(null);
+				return new Submission<>(res, durable);
+			}
+			// In pipelined mode the changed key files are taken under the WriteLock, so that files of later changes are not pushed with this one
+			groupCommit.enlist(pipelined ?
+				new PendingChange(config.copy(), keyStore.getVersion(), keyStore.pollChangedFiles(), sequence, durable) :
+				new PendingChange(null, keyStore.getVersion(), null, sequence, durable));
+		}
+		finally {
+			readWriteLock.writeLock().unlock();
+		}
+		return new Submission<>(res, durable);
+	}
+
+	/**
+	 * Perform a write operation within a {@code WriteLock}, and wait until
+	 * the changes are applied to the repository. If a journal is configured,
+	 * this only waits until the changes are journaled.
+	 * @param interaction write operation
+	 * @param <T> return type
+	 * @return return value
+	 * @see ManagedConfig#applyChanges()
+	 * @see ManagedConfig#getPushFuture()
+	 */
+	protected <T> T write(Callable<T> interaction) {
+		Submission<T> submission = perform(interaction);
+		if(journal != null) {
+			// The change is durable in the journal, it is pushed in the background
+			return submission.getResult();
+		}
+		awaitDurable(submission.getPushed());
+		return submission.getResult();
+	}
+
+	/**
+	 * Perform a write operation on the {@link ManagedConfigFactory#writeExecutor() write executor}.
+	 * @param interaction write operation
+	 * @param <T> return type
+	 * @return a future that completes with the return value once the changes are applied to the repository.
+	 * @see ManagedConfig#applyChanges()
+	 */
+	protected <T> CompletableFuture<T> writeAsync(Callable<T> interaction) {
+		return CompletableFuture.supplyAsync(() -> submit(interaction), writeExecutor)
+			.thenCompose(Function.identity());
+	}
+
+	/**
+	 * @return the {@code Config} for the current write operation, which records its changes if journaling is enabled.
+	 */
+	private Config writableConfig() {
+		return recorder != null ? recorder.record(config) : config;
+	}
+
+	/**
+	 * @return the {@code KeyStore} for the current write operation, which records its changes if journaling is enabled.
+	 */
+	private KeyStore writableKeyStore() {
+		return recorder != null ? recorder.record(keyStore) : keyStore;
+	}
+
+	private <T> T awaitDurable(CompletableFuture<T> durable) {
+		int holds = updateLockHolds.get();
+		if(durable.isDone() || holds == 0) {
+			return await(durable);
+		}
+		if(!pipelined) {
+			// The flush needs the WriteLock, which only this thread can upgrade to
+			flush();
+			return await(durable);
+		}
+		// A rejected batch is rebased under the WriteLock, so release the UpdateLock while the pipeline applies it
+		for(int i = 0; i < holds; i++) {
+			readWriteLock.updateLock().unlock();
+		}
+		try {
+			return await(durable);
+		}
+		finally {
+			for(int i = 0; i < holds; i++) {
+				readWriteLock.updateLock().lock();
+			}
+		}
+	}
+
+	@SneakyThrows
+	private static <T> T await(CompletableFuture<T> durable) {
+		try {
+			return durable.get();
+		}
+		catch (ExecutionException e) {
+			throw e.getCause();
 		}
 	}
 
 	/**
-	 * Perform read operations to the {@link Config} within a {@code ReadLock}.
+	 * A {@code ReadLock} cannot be upgraded, so a write operation within it would wait forever.
+	 */
+	private void checkNotReading() {
+		if(readLockHolds.get() > 0) {
+			throw new IllegalStateException("Cannot write within readKeyStore, use readKeyStoreForUpdate instead");
+		}
+	}
+
+	private void lockForRead() {
+		readWriteLock.readLock().lock();
+		readLockHolds.set(readLockHolds.get() + 1);
+	}
+
+	private void unlockForRead() {
+		readLockHolds.set(readLockHolds.get() - 1);
+		readWriteLock.readLock().unlock();
+	}
+
+	private void lockForUpdate() {
+		readWriteLock.updateLock().lock();
+		updateLockHolds.set(updateLockHolds.get() + 1);
+	}
+
+	private void unlockForUpdate() {
+		updateLockHolds.set(updateLockHolds.get() - 1);
+		readWriteLock.updateLock().unlock();
+	}
+
+	/**
+	 * Perform read operations on the last pushed snapshot of the {@link Config}.
 	 * @param configInteraction function
 	 * @param <T> return type
 	 * @return return value
+	 * @see ManagedConfig#readSnapshot(Function)
 	 */
 	public <T> T readConfigWithReturn(Function<? super Config, T> configInteraction) {
-		readWriteLock.updateLock().lock();
+		return readSnapshot(configInteraction);
+	}
+
+	/**
+	 * Perform read operations to the live {@link Config} within an {@code UpdateLock}, which
+	 * excludes other updaters and writers. The read operation may perform write operations.
+	 * @param configInteraction function
+	 * @param <T> return type
+	 * @return return value
+	 */
+	public <T> T readConfigForUpdateWithReturn(Function<? super Config, T> configInteraction) {
+		lockForUpdate();
 		try {
 			return configInteraction.apply(config);
 		}
 		finally {
-			readWriteLock.updateLock().unlock();
+			unlockForUpdate();
 		}
 	}
 
 	/**
-	 * Perform read operations to the {@link Config} within a {@code ReadLock}.
+	 * Perform read operations on the last pushed snapshot of the {@link Config}. This does not
+	 * acquire any locks. The snapshot is immutable: it cannot be changed through the {@code Config}
+	 * interface, and changes to the rules in the snapshot are not applied.
+	 * @param configInteraction function
+	 * @param <T> return type
+	 * @return return value
+	 */
+	public <T> T readSnapshot(Function<? super Config, T> configInteraction) {
+		return configInteraction.apply(snapshot);
+	}
+
+	/**
+	 * @return the last pushed snapshot of the {@link Config}.
+	 * @see ManagedConfig#readSnapshot(Function)
+	 */
+	public Config getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Perform read operations on the last pushed snapshot of the {@link Config}.
 	 * @param configInteraction function
+	 * @see ManagedConfig#readSnapshot(Function)
 	 */
 	public void readConfig(Consumer<? super Config> configInteraction) {
-		readWriteLock.updateLock().lock();
+		configInteraction.accept(snapshot);
+	}
+
+	/**
+	 * Perform read operations to the live {@link Config} within an {@code UpdateLock}, which
+	 * excludes other updaters and writers. The read operation may perform write operations.
+	 * @param configInteraction function
+	 */
+	public void readConfigForUpdate(Consumer<? super Config> configInteraction) {
+		lockForUpdate();
 		try {
 			configInteraction.accept(config);
 		}
 		finally {
-			readWriteLock.updateLock().unlock();
+			unlockForUpdate();
 		}
 	}
 
@@ -106,13 +1047,10 @@ public class ManagedConfig {
 	 * @see ManagedConfig#applyChanges()
 	 */
 	public void writeConfig(Consumer<? super Config> configInteraction) {
-		readWriteLock.writeLock().lock();
-		try {
-			configInteraction.accept(config);
-			applyChanges();
-		} finally {
-			readWriteLock.writeLock().unlock();
-		}
+		write(() -> {
+			configInteraction.accept(writableConfig());
+			return null;
+		});
 	}
 
 	/**
@@ -124,29 +1062,67 @@ public class ManagedConfig {
 	 * @see ManagedConfig#applyChanges()
 	 */
 	public <T> T writeConfigWithReturn(Function<? super Config, T> configInteraction) {
-		readWriteLock.writeLock().lock();
+		return write(() -> configInteraction.apply(writableConfig()));
+	}
+
+	/**
+	 * Perform write operations to the {@link Config} within a {@code WriteLock} on the
+	 * {@link ManagedConfigFactory#writeExecutor() write executor}.
+	 * @param configInteraction function
+	 * @return a future that completes when the changes are applied to the repository.
+	 * @see ManagedConfig#applyChanges()
+	 */
+	public CompletableFuture<Void> writeConfigAsync(Consumer<? super Config> configInteraction) {
+		return writeAsync(() -> {
+			configInteraction.accept(writableConfig());
+			return null;
+		});
+	}
+
+	/**
+	 * Perform write operations to the {@link Config} within a {@code WriteLock} on the
+	 * {@link ManagedConfigFactory#writeExecutor() write executor}.
+	 * @param configInteraction function
+	 * @param <T> return type
+	 * @return a future that completes with the return value when the changes are applied to the repository.
+	 * @see ManagedConfig#applyChanges()
+	 */
+	public <T> CompletableFuture<T> writeConfigWithReturnAsync(Function<? super Config, T> configInteraction) {
+		return writeAsync(() -> configInteraction.apply(writableConfig()));
+	}
+
+	/**
+	 * Perform read operations to the {@link KeyStore} within a {@code ReadLock}, which is shared
+	 * with other readers. The read operation cannot perform write operations.
+	 * @param configInteraction function
+	 * @param <T> return type
+	 * @return return value
+	 * @see ManagedConfig#readKeyStoreForUpdate(Function)
+	 */
+	public <T> T readKeyStore(Function<? super KeyStore, T> configInteraction) {
+		lockForRead();
 		try {
-			T res = configInteraction.apply(config);
-			applyChanges();
-			return res;
-		} finally {
-			readWriteLock.writeLock().unlock();
+			return configInteraction.apply(keyStore);
+		}
+		finally {
+			unlockForRead();
 		}
 	}
 
 	/**
-	 * Perform read operations to the {@link KeyStore} within a {@code ReadLock}.
+	 * Perform read operations to the {@link KeyStore} within an {@code UpdateLock}, which
+	 * excludes other updaters and writers. The read operation may perform write operations.
 	 * @param configInteraction function
 	 * @param <T> return type
 	 * @return return value
 	 */
-	public <T> T readKeyStore(Function<? super KeyStore, T> configInteraction) {
-		readWriteLock.updateLock().lock();
+	public <T> T readKeyStoreForUpdate(Function<? super KeyStore, T> configInteraction) {
+		lockForUpdate();
 		try {
 			return configInteraction.apply(keyStore);
 		}
 		finally {
-			readWriteLock.updateLock().unlock();
+			unlockForUpdate();
 		}
 	}
 
@@ -158,16 +1134,90 @@ public class ManagedConfig {
 	 * @return return value
 	 * @see ManagedConfig#applyChanges()
 	 */
-	@SneakyThrows
 	public <T> T writeKeyStoreWithReturn(ThrowingFunction<? super KeyStore, T> configInteraction) {
-		readWriteLock.writeLock().lock();
-		try {
-			T res = configInteraction.apply(keyStore);
-			applyChanges();
-			return res;
-		} finally {
-			readWriteLock.writeLock().unlock();
-		}
+		return write(() -> configInteraction.apply(writableKeyStore()));
+	}
+
+	/**
+	 * Perform write operations to the {@link KeyStore} within a {@code WriteLock} on the
+	 * {@link ManagedConfigFactory#writeExecutor() write executor}.
+	 * @param configInteraction function
+	 * @param <T> return type
+	 * @return a future that completes with the return value when the changes are applied to the repository.
+	 * @see ManagedConfig#applyChanges()
+	 */
+	public <T> CompletableFuture<T> writeKeyStoreWithReturnAsync(ThrowingFunction<? super KeyStore, T> configInteraction) {
+		return writeAsync(() -> configInteraction.apply(writableKeyStore()));
+	}
+
+	/**
+	 * A write operation that waits in a batch to be pushed.
+	 */
+	@Value
+	private static class PendingChange {
+
+		/**
+		 * Copy of the {@code Config} after the write operation, only taken in pipelined mode.
+		 */
+		Config copy;
+
+		/**
+		 * Version of the {@code KeyStore} after the write operation.
+		 */
+		long keyStoreVersion;
+
+		/**
+		 * Key files changed by the write operation, only taken in pipelined mode. {@code null} if the
+		 * {@code KeyStore} does not track them.
+		 */
+		Collection<String> changedKeyFiles;
+
+		/**
+		 * Sequence number of the write operation.
+		 */
+		long sequence;
+
+		/**
+		 * Future that completes when the change is pushed.
+		 */
+		CompletableFuture<Void> durable;
+
+	}
+
+	/**
+	 * The result of a write operation that was performed.
+	 */
+	@Value
+	private static class Submission<T> {
+
+		/**
+		 * The return value of the write operation.
+		 */
+		T result;
+
+		/**
+		 * Future that completes when the changes of the write operation are pushed.
+		 */
+		CompletableFuture<Void> pushed;
+
+	}
+
+	/**
+	 * A write operation that is applied in memory, but not pushed yet.
+	 */
+	@Value
+	private static class UnpushedChange {
+
+		/**
+		 * Sequence number of the write operation.
+		 */
+		long sequence;
+
+		/**
+		 * Applies the write operation again, after a rebase.
+		 */
+		Callable<?> replay;
+
 	}
 
 	public interface ThrowingConsumer<T> {
@@ -178,21 +1228,148 @@ public class ManagedConfig {
 		R apply(T value) throws IOException, InterruptedException;
 	}
 
+	public interface ThrowingBiConsumer<T, U> {
+		void accept(T first, U second) throws IOException, InterruptedException;
+	}
+
+	public interface ThrowingBiFunction<T, U, R> {
+		R apply(T first, U second) throws IOException, InterruptedException;
+	}
+
 	/**
 	 * Perform write operations to the {@link KeyStore} within a {@code WriteLock}.
 	 * Applies the changes to the repository when done.
 	 * @param configInteraction function
 	 * @see ManagedConfig#applyChanges()
 	 */
-	@SneakyThrows
 	public void writeKeyStore(ThrowingConsumer<? super KeyStore> configInteraction) {
-		readWriteLock.writeLock().lock();
-		try {
-			configInteraction.accept(keyStore);
-			applyChanges();
-		} finally {
-			readWriteLock.writeLock().unlock();
+		write(() -> {
+			configInteraction.accept(writableKeyStore());
+			return null;
+		});
+	}
+
+	/**
+	 * Perform write operations to the {@link KeyStore} within a {@code WriteLock} on the
+	 * {@link ManagedConfigFactory#writeExecutor() write executor}.
+	 * @param configInteraction function
+	 * @return a future that completes when the changes are applied to the repository.
+	 * @see ManagedConfig#applyChanges()
+	 */
+	public CompletableFuture<Void> writeKeyStoreAsync(ThrowingConsumer<? super KeyStore> configInteraction) {
+		return writeAsync(() -> {
+			configInteraction.accept(writableKeyStore());
+			return null;
+		});
+	}
+
+	/**
+	 * Perform write operations to both the {@link Config} and {@link KeyStore} within a single {@code WriteLock},
+	 * and apply the changes in a single commit and push. Pending batches are applied before the transaction starts.
+	 * If the transaction or the push fails, the {@code Config} and {@code KeyStore} are rolled back.
+	 * @param interaction function
+	 * @param <T> return type
+	 * @return return value
+	 * @see ManagedConfig#applyChanges()
+	 */
+	@SneakyThrows
+	public <T> T writeTransactionWithReturn(ThrowingBiFunction<? super Config, ? super KeyStore, T> interaction) {
+		checkNotReading();
+		// The pipelineLock is taken before the WriteLock, as a rejected pipelined push takes them in that order
+		synchronized (pipelineLock) {
+			readWriteLock.writeLock().lock();
+			try {
+				if(rebasePending) {
+					rebase();
+				}
+				if(groupCommit != null) {
+					// Apply the earlier write operations, so that they are not rolled back with this transaction
+					flush();
+				}
+				Config backup = config.copy();
+				long keyStoreVersion = keyStore.getVersion();
+				long rebasesBefore = rebases;
+				long transactionSequence = sequence + 1;
+				KeyStoreTransaction keyStoreTransaction = new KeyStoreTransaction(keyStore);
+				try {
+					T res = interaction.apply(config, keyStoreTransaction);
+					addUnpushed(transactionSequence, () -> interaction.apply(config, keyStoreTransaction), Collections.emptyList());
+					sequence = transactionSequence;
+					applyChanges();
+					return res;
+				}
+				catch (Throwable e) {
+					log.warn("Rolling back transaction: {}", e.getMessage());
+					synchronized (unpushed) {
+						unpushed.removeIf(change -> change.getSequence() == transactionSequence);
+					}
+					if(rebases != rebasesBefore) {
+						// The backup predates the rebase, so rebase again without this transaction
+						rebase();
+					}
+					else {
+						rollback(backup, keyStoreVersion, keyStoreTransaction);
+					}
+					throw e;
+				}
+			}
+			finally {
+				readWriteLock.writeLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Perform write operations to both the {@link Config} and {@link KeyStore} within a single {@code WriteLock},
+	 * and apply the changes in a single commit and push. Pending batches are applied before the transaction starts.
+	 * If the transaction or the push fails, the {@code Config} and {@code KeyStore} are rolled back.
+	 * @param interaction function
+	 * @see ManagedConfig#applyChanges()
+	 */
+	public void writeTransaction(ThrowingBiConsumer<? super Config, ? super KeyStore> interaction) {
+		writeTransactionWithReturn((config, keyStore) -> {
+			interaction.accept(config, keyStore);
+			return null;
+		});
+	}
+
+	private void rollback(Config backup, long keyStoreVersion, KeyStoreTransaction keyStoreTransaction) throws IOException {
+		config = backup;
+		keyStoreTransaction.rollback();
+		if(keyStoreVersion == pushedKeyStoreVersion) {
+			pushedKeyStoreVersion = keyStore.getVersion();
+		}
+		// The configuration files in the working directory may still contain the rolled back changes
+		pushedConfigHashes = null;
+	}
+
+	/**
+	 * Apply the pending batch, if any, and stop the threads started by this {@code ManagedConfig}.
+	 */
+	@Override
+	@SneakyThrows
+	public void close() {
+		if(defaultWriteExecutor != null) {
+			defaultWriteExecutor.shutdown();
 		}
+		if(scheduler != null) {
+			flush();
+			scheduler.shutdown();
+		}
+		if(journal != null) {
+			journal.close();
+		}
+		for(Closeable resource : resources) {
+			resource.close();
+		}
+	}
+
+	/**
+	 * Close a resource when this {@code ManagedConfig} is closed.
+	 * @param resource The resource to close.
+	 */
+	void closeWith(Closeable resource) {
+		resources.add(resource);
 	}
 
 }
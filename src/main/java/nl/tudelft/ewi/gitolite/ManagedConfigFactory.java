@@ -1,19 +1,36 @@
 package nl.tudelft.ewi.gitolite;
 
 import com.google.common.base.Preconditions;
+import com.google.common.hash.Hashing;
 import com.google.common.io.Files;
 import lombok.Data;
 import lombok.experimental.Accessors;
+import lombok.extern.slf4j.Slf4j;
 import nl.tudelft.ewi.gitolite.config.Config;
+import nl.tudelft.ewi.gitolite.git.GitException;
 import nl.tudelft.ewi.gitolite.git.GitManager;
 import nl.tudelft.ewi.gitolite.git.GitManagerFactory;
 import nl.tudelft.ewi.gitolite.git.NativeGitManagerFactory;
+import nl.tudelft.ewi.gitolite.git.ServiceUnavailable;
+import nl.tudelft.ewi.gitolite.keystore.GitKeyStore;
 import nl.tudelft.ewi.gitolite.keystore.KeyStore;
 import nl.tudelft.ewi.gitolite.keystore.KeyStoreImplFactory;
+import nl.tudelft.ewi.gitolite.keystore.LazyKeyStore;
 import nl.tudelft.ewi.gitolite.parser.TokenizerBasedParser;
+import nl.tudelft.ewi.gitolite.util.FsyncPolicy;
 
+import org.apache.commons.io.FileUtils;
+
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 /**
  * The {@code ManagedConfigFactory} can be used to bind custom {@link GitManager} and
@@ -31,6 +48,7 @@ import java.io.IOException;
  *
  * @author Jan-Willem Gmelig Meyling
  */
+@Slf4j
 @Data
 @Accessors(fluent = true)
 public class ManagedConfigFactory {
@@ -61,10 +79,126 @@ public class ManagedConfigFactory {
 	private KeyStoreImplFactory keyStoreImplFactory = new KeyStoreImplFactory();
 
 	/**
-	 * Define the repository folder to use. Defaults to a temporary directory.
+	 * Define the repository folder to use. Defaults to a folder in the {@link #cacheFolder} if
+	 * set, or a temporary directory otherwise.
 	 */
 	private File repositoryFolder;
 
+	/**
+	 * Folder in which the administration repository is kept between restarts, if no
+	 * {@link #repositoryFolder} is set. Every repository URL gets its own subfolder, which is
+	 * locked while a {@link ManagedConfig} uses it, so that other JVMs wait for it to be closed.
+	 * A cached repository is fetched and reset to the remote, instead of cloned. Defaults to
+	 * {@code null}, which clones the repository into a temporary directory.
+	 */
+	private File cacheFolder;
+
+	/**
+	 * Number of commits to fetch when the administration repository is cloned, or {@code 0}
+	 * to clone the full history. Only supported by {@link GitManager GitManagers} that
+	 * support shallow clones. Defaults to {@code 0}.
+	 */
+	private int cloneDepth = 0;
+
+	/**
+	 * Parse the repository blocks of the configuration file in parallel, on the common
+	 * {@code ForkJoinPool}. Speeds up loading large configurations. Defaults to {@code false}.
+	 */
+	private boolean parallelParse = false;
+
+	/**
+	 * Load the configuration and the keys through {@link GitManager#readFolder(String)}, instead
+	 * of from the checked-out files, and write changes through the {@code GitManager}. A
+	 * {@link nl.tudelft.ewi.gitolite.git.JGitManager JGitManager} then reads them from the tree of
+	 * the last commit, so that loading and reloading after a rejected push do not depend on the
+	 * working directory. The {@link KeyStore} is a {@link GitKeyStore}, and the
+	 * {@link #keyStoreImplFactory} is not used. Always enabled for a {@link GitManager#isBare() bare}
+	 * repository. Defaults to {@code false}.
+	 */
+	private boolean loadFromTree = false;
+
+	/**
+	 * What is forced to the storage device when a configuration file is written to the working
+	 * directory. The file is always replaced atomically. Defaults to {@link FsyncPolicy#NONE}.
+	 */
+	private FsyncPolicy fsyncPolicy = FsyncPolicy.NONE;
+
+	/**
+	 * Write the configuration in canonical order, so that it is written the same regardless of the
+	 * order in which the rules were added, and a change to one rule gives a diff of that rule only.
+	 * The first write after this is enabled reorders the existing configuration. Defaults to {@code false}.
+	 *
+	 * @see Config#write(String, java.io.Writer, boolean)
+	 */
+	private boolean canonicalOrder = false;
+
+	/**
+	 * Compact the configuration when it is written: repository rules with the same access rules
+	 * are merged into one rule, and member lists that are used repeatedly are replaced by a group.
+	 * Only the written configuration is compacted, the {@link Config} keeps its rules. After a rebase the
+	 * {@code Config} is parsed from the compacted configuration, so a merged rule is then only found by
+	 * looking up all of its repositories. Defaults to {@code false}.
+	 *
+	 * @see nl.tudelft.ewi.gitolite.config.ConfigCompactor
+	 */
+	private boolean compactConfig = false;
+
+	/**
+	 * Return from {@link #init(String)} before the key folder is scanned. The {@link KeyStore} is then
+	 * a {@link LazyKeyStore} that finishes loading in the background, and key lookups and write operations
+	 * wait for it only if it is not loaded yet. Defaults to {@code false}.
+	 */
+	private boolean lazyKeyStore = false;
+
+	/**
+	 * Time in milliseconds during which write operations are collected in a batch, before
+	 * they are committed and pushed together. With a window of {@code 0}, a write operation
+	 * is pushed immediately if no batch is being pushed, and otherwise together with the other
+	 * write operations that were made while the batch was pushed. Defaults to {@code 0}.
+	 */
+	private long batchWindow = 0;
+
+	/**
+	 * Maximum number of write operations in a batch. A full batch is committed and pushed
+	 * immediately. Defaults to {@code 0}, which does not limit the batch size.
+	 *
+	 * <p>If neither a batch size nor a {@link #batchWindow} is set, every write operation
+	 * is committed and pushed on its own.</p>
+	 */
+	private int batchSize = 0;
+
+	/**
+	 * The {@link Executor} on which the asynchronous write operations of the {@link ManagedConfig}
+	 * run. Defaults to a cached thread pool that is owned by the {@code ManagedConfig}.
+	 */
+	private Executor writeExecutor;
+
+	/**
+	 * Write, commit and push the changes on a background thread, outside the write lock,
+	 * so that subsequent write operations do not wait for the push. Defaults to {@code false}.
+	 */
+	private boolean pipelined = false;
+
+	/**
+	 * Maximum number of times a push that is rejected by the remote is retried, after the
+	 * changes are replayed on top of the remote configuration. Defaults to {@code 3}.
+	 */
+	private int pushRetries = 3;
+
+	/**
+	 * Initial delay in milliseconds before a rejected push is retried. The delay doubles
+	 * with every attempt, and a random jitter is added. Defaults to {@code 100}.
+	 */
+	private long retryBackoff = 100;
+
+	/**
+	 * File in which write operations are journaled until they are pushed. Write operations return
+	 * once their changes are journaled, and journaled changes that were not pushed are replayed on
+	 * {@link #init(String)}. The file should not be placed in the {@link #repositoryFolder}.
+	 * Defaults to {@code null}, which disables journaling.
+	 */
+	private File journal;
+
 	/**
 	 * Initialize a {@link ManagedConfig}.
 	 * @param gitoliteAdminRepo Administration repository to clone.
@@ -74,14 +208,146 @@ public class ManagedConfigFactory {
 	 */
 	public ManagedConfig init(String gitoliteAdminRepo) throws IOException, InterruptedException {
 		Preconditions.checkNotNull(gitoliteAdminRepo);
-		ensureRepositoryFolderExists();
-		GitManager gitManager = getGitManager();
-		ensureRepositoryExists(gitManager, gitoliteAdminRepo);
+		if(repositoryFolder != null || cacheFolder == null) {
+			ensureRepositoryFolderExists();
+			GitManager gitManager = getGitManager();
+			ensureRepositoryExists(gitManager, gitoliteAdminRepo);
+			return createManagedConfig(gitManager, repositoryFolder);
+		}
+
+		// The folder is not stored in the repositoryFolder, so that every init locks the cache folder again
+		File folder = new File(cacheFolder, getCacheName(gitoliteAdminRepo));
+		FileChannel cacheLock = lockCacheFolder(folder);
+		try {
+			GitManager gitManager = getGitManager(folder);
+			ensureCachedRepositoryExists(gitManager, gitoliteAdminRepo, folder);
+			ManagedConfig managedConfig = createManagedConfig(gitManager, folder);
+			managedConfig.closeWith(cacheLock);
+			return managedConfig;
+		}
+		catch (IOException | InterruptedException | RuntimeException e) {
+			cacheLock.close();
+			throw e;
+		}
+	}
+
+	private ManagedConfig createManagedConfig(GitManager gitManager, File folder) throws IOException {
+		// The key folder scan and the configuration parse are independent, so run them in parallel
+		CompletableFuture<KeyStore> keyStoreFuture = CompletableFuture.supplyAsync(() -> getKeyStore(gitManager, folder));
+		Config config = parseConfig(gitManager, folder);
+
+		LazyKeyStore keyStore = new LazyKeyStore(keyStoreFuture);
+		ManagedConfig managedConfig = lazyKeyStore ?
+			new ManagedConfig(gitManager, keyStore, config, this) :
+			new ManagedConfig(gitManager, keyStore.await(), config, this);
+		if(gitManager instanceof Closeable) {
+			// Stops the processes and connections that the GitManager keeps open
+			managedConfig.closeWith((Closeable) gitManager);
+		}
+		return managedConfig;
+	}
+
+	/**
+	 * @param gitoliteAdminRepo administration repository URL.
+	 * @return the name of the folder in the {@link #cacheFolder} for the repository.
+	 */
+	protected String getCacheName(String gitoliteAdminRepo) {
+		String name = gitoliteAdminRepo.replaceAll("(\\.git)?/*$", "");
+		name = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf(':')) + 1)
+			.replaceAll("[^\\w.-]", "_");
+		return name + "-" + Hashing.sha1().hashString(gitoliteAdminRepo, StandardCharsets.UTF_8).toString().substring(0, 12);
+	}
+
+	/**
+	 * Lock a folder in the {@link #cacheFolder}, waiting for other JVMs that use it.
+	 * @param folder The folder to lock.
+	 * @return the channel that holds the lock. Closing it releases the lock.
+	 * @throws IOException If an I/O error occurs.
+	 */
+	protected FileChannel lockCacheFolder(File folder) throws IOException {
+		cacheFolder.mkdirs();
+		File lockFile = new File(cacheFolder, folder.getName() + ".lock");
+		FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		try {
+			FileLock lock = channel.tryLock();
+			if(lock == null) {
+				log.info("Waiting for {} to be released by another process", lockFile);
+				channel.lock();
+			}
+			return channel;
+		}
+		catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
 
-		KeyStore keyStore = getKeyStore();
-		Config config = parseConfig();
+	/**
+	 * Ensure that the cached administration repository exists and is up to date. A cached
+	 * repository is reset to the remote, so that changes that were not pushed before the
+	 * previous process stopped are discarded. The repository is cloned again if it is corrupt.
+	 * @param gitManager initialized {@code GitManager}.
+	 * @param gitoliteAdminRepo administration repository URL.
+	 * @param folder folder of the cached repository.
+	 * @throws IOException If an I/O error occurs.
+	 * @throws InterruptedException If the thread was interrupted.
+	 */
+	protected void ensureCachedRepositoryExists(GitManager gitManager, String gitoliteAdminRepo, File folder) throws IOException, InterruptedException {
+		if(gitManager.exists()) {
+			try {
+				gitManager.resetToRemote();
+				if(isRepositoryValid(gitManager, folder)) {
+					log.info("Using cached repository in {}", folder);
+					return;
+				}
+				log.warn("Cached repository in {} has no configuration, cloning again", folder);
+			}
+			catch (ServiceUnavailable e) {
+				throw e;
+			}
+			catch (GitException e) {
+				log.warn("Cached repository in {} is corrupt, cloning again", folder, e);
+			}
+		}
+		if(folder.exists()) {
+			FileUtils.cleanDirectory(folder);
+		}
+		else {
+			folder.mkdirs();
+		}
+		clone(gitManager, gitoliteAdminRepo);
+	}
 
-		return new ManagedConfig(gitManager, keyStore, config);
+	/**
+	 * @param gitManager initialized {@code GitManager}.
+	 * @param folder folder of the repository.
+	 * @return true if the repository contains the configuration file.
+	 * @throws IOException If an I/O error occurs.
+	 */
+	protected boolean isRepositoryValid(GitManager gitManager, File folder) throws IOException {
+		if(isLoadedFromTree(gitManager)) {
+			return gitManager.readFolder(CONFDIR_REL_PATH).containsKey(GITOLITE_CONF_FILE);
+		}
+		return isWorkingTreeValid(folder);
+	}
+
+	/**
+	 * @param folder folder of the repository.
+	 * @return true if the working tree contains the configuration file and the key folder.
+	 */
+	protected boolean isWorkingTreeValid(File folder) {
+		File confDir = new File(folder, CONFDIR_REL_PATH);
+		return new File(confDir, GITOLITE_CONF_FILE).isFile() &&
+			new File(folder, KEYDIR_REL_PATH).isDirectory();
+	}
+
+	private void clone(GitManager gitManager, String gitoliteAdminRepo) throws IOException, InterruptedException {
+		if(cloneDepth > 0) {
+			gitManager.clone(gitoliteAdminRepo, cloneDepth);
+		}
+		else {
+			gitManager.clone(gitoliteAdminRepo);
+		}
 	}
 
 	/**
@@ -98,7 +364,16 @@ public class ManagedConfigFactory {
 	 * @return the GitManager implementation
 	 */
 	protected GitManager getGitManager() {
-		return gitManagerFactory.create(repositoryFolder);
+		return getGitManager(repositoryFolder);
+	}
+
+	/**
+	 * Function to initialize the {@code GitManager} for a repository folder.
+	 * @param folder folder of the repository.
+	 * @return the GitManager implementation
+	 */
+	protected GitManager getGitManager(File folder) {
+		return gitManagerFactory.create(folder);
 	}
 
 	/**
@@ -106,7 +381,54 @@ public class ManagedConfigFactory {
 	 * @return the KeyStore implementation.
 	 */
 	protected KeyStore getKeyStore() {
-		return keyStoreImplFactory.create(new File(repositoryFolder, KEYDIR_REL_PATH));
+		return getKeyStore(repositoryFolder);
+	}
+
+	/**
+	 * Function to initialize the {@code KeyStore} for a repository folder.
+	 * @param folder folder of the repository.
+	 * @return the KeyStore implementation.
+	 */
+	protected KeyStore getKeyStore(File folder) {
+		return keyStoreImplFactory.create(new File(folder, KEYDIR_REL_PATH));
+	}
+
+	private boolean isLoadedFromTree(GitManager gitManager) {
+		return loadFromTree || gitManager.isBare();
+	}
+
+	/**
+	 * Function to initialize the {@code KeyStore} for the {@code ManagedConfig}, reading the keys
+	 * through the {@code GitManager} if {@link #loadFromTree} is set.
+	 * @param gitManager initialized {@code GitManager}.
+	 * @param folder folder of the repository.
+	 * @return the KeyStore implementation.
+	 */
+	protected KeyStore getKeyStore(GitManager gitManager, File folder) {
+		if(!isLoadedFromTree(gitManager)) {
+			return getKeyStore(folder);
+		}
+		try {
+			return new GitKeyStore(gitManager, KEYDIR_REL_PATH);
+		}
+		catch (IOException e) {
+			throw new CompletionException(e);
+		}
+	}
+
+	/**
+	 * Parse the {@code Config} from the configuration file, or from the files that the
+	 * {@code GitManager} reads if {@link #loadFromTree} is set.
+	 * @param gitManager initialized {@code GitManager}.
+	 * @param folder folder of the repository.
+	 * @return the parsed config.
+	 * @throws IOException If an I/O error occurs.
+	 */
+	protected Config parseConfig(GitManager gitManager, File folder) throws IOException {
+		if(!isLoadedFromTree(gitManager)) {
+			return parseConfig(folder);
+		}
+		return TokenizerBasedParser.parse(gitManager.readFolder(CONFDIR_REL_PATH), parallelParse);
 	}
 
 	/**
@@ -115,9 +437,19 @@ public class ManagedConfigFactory {
 	 * @throws IOException If an I/O error occurs.
 	 */
 	protected Config parseConfig() throws IOException {
-		File confDir = new File(repositoryFolder, CONFDIR_REL_PATH);
+		return parseConfig(repositoryFolder);
+	}
+
+	/**
+	 * Parse the {@code Config} from the configuration file in a repository folder.
+	 * @param folder folder of the repository.
+	 * @return the parsed config.
+	 * @throws IOException If an I/O error occurs.
+	 */
+	protected Config parseConfig(File folder) throws IOException {
+		File confDir = new File(folder, CONFDIR_REL_PATH);
 		File configurationFile = new File(confDir, GITOLITE_CONF_FILE);
-		return TokenizerBasedParser.parse(configurationFile);
+		return TokenizerBasedParser.parse(configurationFile, parallelParse);
 	}
 
 	/**
@@ -133,7 +465,7 @@ public class ManagedConfigFactory {
 			gitManager.pull();
 		}
 		else {
-			gitManager.clone(gitoliteAdminRepo);
+			clone(gitManager, gitoliteAdminRepo);
 		}
 	}
 
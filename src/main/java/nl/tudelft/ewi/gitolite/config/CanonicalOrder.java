@@ -0,0 +1,192 @@
+package nl.tudelft.ewi.gitolite.config;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import nl.tudelft.ewi.gitolite.objects.Identifiable;
+import nl.tudelft.ewi.gitolite.parser.rules.GroupRule;
+import nl.tudelft.ewi.gitolite.parser.rules.RepositoryRule;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Orders the rules of a {@link Config} independently of the order in which they were added, so
+ * that configurations with the same rules are written the same, and a change to one rule only
+ * changes the lines of that rule.
+ *
+ * <ul>
+ *    <li>
+ *       Group rules are sorted by name, but every group still follows the groups it depends on.
+ *       Rules for the same group keep their relative order.
+ *    </li>
+ *    <li>
+ *       Repository rules are sorted by their repository names. Because gitolite applies the access
+ *       rules for a repository in the order in which they appear, rules that may apply to the same
+ *       repository keep their relative order: rules for a group or a regex pattern stay in place,
+ *       and rules that name the same repository are not reordered.
+ *    </li>
+ * </ul>
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+final class CanonicalOrder {
+
+	/**
+	 * Repository names that gitolite does not consider a regex pattern.
+	 */
+	private static final Pattern REPOSITORY_NAME = Pattern.compile("^[0-9a-zA-Z][-0-9a-zA-Z._@/+]*$");
+
+	private CanonicalOrder() {
+	}
+
+	/**
+	 * Sort group rules by name, after the groups they depend on.
+	 * @param groupRules The group rules, in the order in which they were added.
+	 * @return the group rules in canonical order.
+	 * @throws CyclicDependencyException If the groups depend on each other.
+	 */
+	static List<GroupRule> sortGroupRules(Collection<? extends GroupRule> groupRules) {
+		List<GroupRule> nodes = Lists.newArrayList(groupRules);
+		Map<GroupRule, List<Integer>> indices = Maps.newIdentityHashMap();
+		for(int i = 0; i < nodes.size(); i++) {
+			indices.computeIfAbsent(nodes.get(i), key -> Lists.newArrayList()).add(i);
+		}
+
+		String[] keys = new String[nodes.size()];
+		Map<String, Integer> lastRuleForGroup = Maps.newHashMap();
+		Graph graph = new Graph(nodes.size());
+		for(int i = 0; i < nodes.size(); i++) {
+			GroupRule groupRule = nodes.get(i);
+			keys[i] = groupRule.getPattern();
+			Integer previous = lastRuleForGroup.put(keys[i], i);
+			if(previous != null) {
+				graph.addDependency(previous, i);
+			}
+			if(groupRule.hasParent()) {
+				graph.addDependencies(indices.get(groupRule.getParent()), i);
+			}
+			final int dependent = i;
+			groupRule.getOwnGroupsStream().forEach(group -> graph.addDependencies(indices.get(group), dependent));
+		}
+
+		List<GroupRule> result = graph.sort(keys).stream().map(nodes::get).collect(Collectors.toList());
+		if(result.size() < nodes.size()) {
+			throw new CyclicDependencyException();
+		}
+		return result;
+	}
+
+	/**
+	 * Sort repository rules by their repository names, without reordering rules that may apply
+	 * to the same repository.
+	 * @param repositoryRules The repository rules, in the order in which they were added.
+	 * @return the repository rules in canonical order.
+	 */
+	static List<RepositoryRule> sortRepositoryRules(List<? extends RepositoryRule> repositoryRules) {
+		List<RepositoryRule> result = Lists.newArrayListWithCapacity(repositoryRules.size());
+		int start = 0;
+		for(int i = 0; i <= repositoryRules.size(); i++) {
+			if(i == repositoryRules.size() || !namesRepositories(repositoryRules.get(i))) {
+				// Rules for groups and patterns may apply to any repository, and separate the segments that are sorted
+				sortSegment(repositoryRules.subList(start, i), result);
+				if(i < repositoryRules.size()) {
+					result.add(repositoryRules.get(i));
+				}
+				start = i + 1;
+			}
+		}
+		return result;
+	}
+
+	private static void sortSegment(List<? extends RepositoryRule> segment, List<RepositoryRule> result) {
+		String[] keys = new String[segment.size()];
+		Map<String, Integer> lastRuleForRepository = Maps.newHashMap();
+		Graph graph = new Graph(segment.size());
+		for(int i = 0; i < segment.size(); i++) {
+			List<String> names = segment.get(i).getIdentifiables().stream()
+				.map(Identifiable::getPattern)
+				.sorted()
+				.collect(Collectors.toList());
+			keys[i] = String.join(" ", names);
+			for(String name : names) {
+				Integer previous = lastRuleForRepository.put(name, i);
+				if(previous != null) {
+					graph.addDependency(previous, i);
+				}
+			}
+		}
+		graph.sort(keys).forEach(index -> result.add(segment.get(index)));
+	}
+
+	/**
+	 * @return true if the rule only names repositories, and does not contain groups or patterns.
+	 */
+	static boolean namesRepositories(RepositoryRule repositoryRule) {
+		return repositoryRule.getIdentifiables().stream()
+			.allMatch(identifiable -> !(identifiable instanceof GroupRule) &&
+				REPOSITORY_NAME.matcher(identifiable.getPattern()).matches());
+	}
+
+	/**
+	 * A dependency graph, that is sorted topologically with the smallest key first, and ties broken
+	 * by the original order.
+	 */
+	private static class Graph {
+
+		private final int[] dependencies;
+
+		private final List<List<Integer>> dependents;
+
+		Graph(int size) {
+			this.dependencies = new int[size];
+			this.dependents = Lists.newArrayListWithCapacity(size);
+			for(int i = 0; i < size; i++) {
+				dependents.add(Lists.newArrayList());
+			}
+		}
+
+		void addDependencies(List<Integer> dependencies, int dependent) {
+			if(dependencies != null) {
+				dependencies.forEach(dependency -> addDependency(dependency, dependent));
+			}
+		}
+
+		void addDependency(int dependency, int dependent) {
+			dependents.get(dependency).add(dependent);
+			dependencies[dependent]++;
+		}
+
+		/**
+		 * @param keys The sort keys of the nodes.
+		 * @return the indices of the nodes in sorted order. Nodes in a cycle are left out.
+		 */
+		List<Integer> sort(String[] keys) {
+			PriorityQueue<Integer> queue = new PriorityQueue<>(Math.max(keys.length, 1),
+				Comparator.<Integer, String> comparing(index -> keys[index]).thenComparingInt(Integer::intValue));
+			for(int i = 0; i < keys.length; i++) {
+				if(dependencies[i] == 0) {
+					queue.add(i);
+				}
+			}
+
+			List<Integer> result = Lists.newArrayListWithCapacity(keys.length);
+			while(!queue.isEmpty()) {
+				int index = queue.poll();
+				result.add(index);
+				for(int dependent : dependents.get(index)) {
+					if(--dependencies[dependent] == 0) {
+						queue.add(dependent);
+					}
+				}
+			}
+			return result;
+		}
+
+	}
+
+}
@@ -2,18 +2,40 @@ package nl.tudelft.ewi.gitolite.config;
 
 import nl.tudelft.ewi.gitolite.objects.Identifiable;
 import nl.tudelft.ewi.gitolite.objects.Identifier;
+import nl.tudelft.ewi.gitolite.parser.TokenizerBasedParser;
 import nl.tudelft.ewi.gitolite.parser.rules.GroupRule;
 import nl.tudelft.ewi.gitolite.parser.rules.RepositoryRule;
 import nl.tudelft.ewi.gitolite.parser.rules.Rule;
 import nl.tudelft.ewi.gitolite.parser.rules.Writable;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.Collection;
+import java.util.Collections;
 
 /**
+ * A gitolite configuration.
+ *
+ * <p>The configuration may be partitioned over several files, which are included from the main
+ * configuration file with {@code include} statements. The group rules are always written to the
+ * {@link #MAIN_PARTITION main partition}, and every repository rule is written to the partition it
+ * was added to. {@link #write(Writer)} writes the entire configuration as a single file.</p>
+ *
+ * <p>The default implementations of the partition methods are for configurations that are not
+ * partitioned, and keep all rules in the main partition.</p>
+ *
  * @author Jan-Willem Gmelig Meyling
  */
 public interface Config extends Writable {
 
+	/**
+	 * Name of the partition for the main configuration file.
+	 */
+	String MAIN_PARTITION = "gitolite.conf";
+
 	/**
 	 * Get a group from the config
 	 * @param name the name for the group
@@ -65,6 +87,67 @@ public interface Config extends Writable {
 	 */
 	void addRepositoryRule(RepositoryRule repositoryRule);
 
+	/**
+	 * Add a RepositoryRule to a partition.
+	 * @param repositoryRule RepositoryRule to add.
+	 * @param partition Path of the file for the partition, relative to the configuration folder.
+	 *    The main configuration file includes the file if none of its {@code include} statements match it.
+	 * @throws UnsupportedOperationException If this config is not partitioned, and the partition
+	 *    is not the {@link #MAIN_PARTITION main partition}.
+	 */
+	default void addRepositoryRule(RepositoryRule repositoryRule, String partition) {
+		if(!MAIN_PARTITION.equals(partition)) {
+			throw new UnsupportedOperationException("Config is not partitioned");
+		}
+		addRepositoryRule(repositoryRule);
+	}
+
+	/**
+	 * @param repositoryRule A RepositoryRule in this config.
+	 * @return the name of the partition that contains the rule.
+	 */
+	default String getPartition(RepositoryRule repositoryRule) {
+		return MAIN_PARTITION;
+	}
+
+	/**
+	 * @return the names of the partitions, starting with the {@link #MAIN_PARTITION}. Partitions
+	 *    from which all rules were removed are still returned, so that their files can be emptied.
+	 */
+	default Collection<String> getPartitions() {
+		return Collections.singleton(MAIN_PARTITION);
+	}
+
+	/**
+	 * Write the rules of a partition. The {@link #MAIN_PARTITION main partition} contains the group
+	 * rules, its repository rules and the {@code include} statements for the other partitions.
+	 * @param partition The name of the partition.
+	 * @param writer Writer instance to write to.
+	 * @throws IOException If an IO error occurs.
+	 * @throws IllegalArgumentException If this config does not have the partition.
+	 */
+	default void write(String partition, Writer writer) throws IOException {
+		if(!MAIN_PARTITION.equals(partition)) {
+			throw new IllegalArgumentException("Unknown partition " + partition);
+		}
+		write(writer);
+	}
+
+	/**
+	 * Write the rules of a partition, optionally in canonical order. Configurations with the same
+	 * rules are written the same in canonical order, regardless of the order in which the rules
+	 * were added, while rules that gitolite applies in order keep their relative order. Configs that
+	 * do not support canonical order write the partition in their own order.
+	 * @param partition The name of the partition.
+	 * @param writer Writer instance to write to.
+	 * @param canonical Whether the rules are written in canonical order.
+	 * @throws IOException If an IO error occurs.
+	 * @see #write(String, Writer)
+	 */
+	default void write(String partition, Writer writer, boolean canonical) throws IOException {
+		write(partition, writer);
+	}
+
 	/**
 	 * Delete a repository rule.
 	 * @param rule Rule to remove.
@@ -78,4 +161,22 @@ public interface Config extends Writable {
 	Collection<Rule> getRules();
 
 	void clear();
+
+	/**
+	 * Create a deep copy of this config. Changes to the copy, or to the rules in the copy,
+	 * do not affect this config, and vice versa. By default the config is written and parsed again.
+	 * @return a copy of this config.
+	 */
+	default Config copy() {
+		try {
+			StringWriter writer = new StringWriter();
+			write(writer);
+			return TokenizerBasedParser.parse(Collections.singletonMap(MAIN_PARTITION,
+				writer.toString().getBytes(StandardCharsets.UTF_8)), false);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
 }
@@ -0,0 +1,280 @@
+package nl.tudelft.ewi.gitolite.config;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import lombok.Data;
+import lombok.experimental.Accessors;
+import lombok.extern.slf4j.Slf4j;
+import nl.tudelft.ewi.gitolite.objects.Identifiable;
+import nl.tudelft.ewi.gitolite.objects.Identifier;
+import nl.tudelft.ewi.gitolite.parser.rules.AccessRule;
+import nl.tudelft.ewi.gitolite.parser.rules.GroupRule;
+import nl.tudelft.ewi.gitolite.parser.rules.InlineUserGroup;
+import nl.tudelft.ewi.gitolite.parser.rules.RepositoryRule;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Reduces the size of a {@link ConfigImpl} without changing the access it grants.
+ *
+ * <ul>
+ *    <li>
+ *       Member lists that are used by several access rules are replaced by a group. An existing
+ *       group with the same members is reused, otherwise a group is generated.
+ *    </li>
+ *    <li>
+ *       Repository rules with the same access rules and config keys are merged into a single
+ *       {@code repo a b c} rule. Because gitolite applies the access rules for a repository in
+ *       the order in which they appear, a rule is only merged into an earlier rule if no rule in
+ *       between may apply to the same repositories.
+ *    </li>
+ * </ul>
+ *
+ * <p>The rules that are changed are replaced by new rules, so references to the old rules are
+ * no longer part of the config.</p>
+ *
+ * <p>{@link Config#getRepositoryRule(nl.tudelft.ewi.gitolite.objects.Identifiable...)} only returns
+ * the rules of which all identifiables are looked up. A merged {@code repo a b c} rule, for example
+ * in a config that is parsed from a compacted configuration file, is therefore not returned for
+ * {@code a} alone, but only when {@code a}, {@code b} and {@code c} are looked up together.</p>
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+@Slf4j
+@Data
+@Accessors(fluent = true)
+public class ConfigCompactor {
+
+	/**
+	 * Minimum number of groups and members in a member list that is replaced by a group. Defaults to {@code 3}.
+	 */
+	private int minimumGroupSize = 3;
+
+	/**
+	 * Minimum number of access rules that use a member list before a group is generated for it.
+	 * Defaults to {@code 2}.
+	 */
+	private int minimumGroupUses = 2;
+
+	/**
+	 * Prefix of the names of generated groups. Defaults to {@code @compacted-}.
+	 */
+	private String groupPrefix = "@compacted-";
+
+	/**
+	 * Compact a config.
+	 * @param config The config to compact.
+	 */
+	public void compact(ConfigImpl config) {
+		List<RepositoryRule> repositoryRules = config.getRepositoryRules();
+		Map<RepositoryRule, String> partitions = Maps.newIdentityHashMap();
+		repositoryRules.forEach(rule -> partitions.put(rule, config.getPartition(rule)));
+
+		List<RepositoryRule> factored = factorMemberLists(config, repositoryRules, partitions);
+		List<RepositoryRule> merged = mergeRepositoryRules(factored, partitions);
+		log.debug("Compacted {} repository rules into {}", repositoryRules.size(), merged.size());
+
+		partitions.keySet().retainAll(Sets.newIdentityHashSet(merged));
+		partitions.values().removeIf(Config.MAIN_PARTITION::equals);
+		config.replaceRepositoryRules(merged, partitions);
+	}
+
+	private List<RepositoryRule> factorMemberLists(ConfigImpl config, List<RepositoryRule> repositoryRules,
+	                                               Map<RepositoryRule, String> partitions) {
+		Map<List<String>, List<AccessRule>> uses = Maps.newLinkedHashMap();
+		for(RepositoryRule repositoryRule : repositoryRules) {
+			for(AccessRule accessRule : repositoryRule.getRules()) {
+				List<String> key = getMemberKey(accessRule.getMembers());
+				if(key != null) {
+					uses.computeIfAbsent(key, k -> Lists.newArrayList()).add(accessRule);
+				}
+			}
+		}
+
+		Map<List<String>, GroupRule> groups = getReusableGroups(config);
+		Set<String> groupNames = config.getGroupRules().stream()
+			.map(GroupRule::getPattern)
+			.collect(Collectors.toSet());
+		Map<AccessRule, AccessRule> replacements = Maps.newIdentityHashMap();
+		int generated = 0;
+		for(Map.Entry<List<String>, List<AccessRule>> entry : uses.entrySet()) {
+			GroupRule group = groups.get(entry.getKey());
+			if(group == null) {
+				if(entry.getValue().size() < minimumGroupUses) {
+					continue;
+				}
+				InlineUserGroup members = entry.getValue().get(0).getMembers();
+				String name;
+				do {
+					name = groupPrefix + (++generated);
+				}
+				while(!groupNames.add(name));
+				group = new GroupRule(name, null,
+					members.getOwnMembersStream().collect(Collectors.toList()),
+					members.getOwnGroupsStream().collect(Collectors.toList()));
+				config.addGroup(group);
+			}
+			for(AccessRule accessRule : entry.getValue()) {
+				replacements.put(accessRule, new AccessRule(accessRule.getPermission(), accessRule.getRefex(),
+					Collections.singletonList(group), Collections.<Identifier> emptyList()));
+			}
+		}
+		log.debug("Replaced {} member lists by a group, and generated {} groups", replacements.size(), generated);
+
+		List<RepositoryRule> result = Lists.newArrayListWithCapacity(repositoryRules.size());
+		for(RepositoryRule repositoryRule : repositoryRules) {
+			if(repositoryRule.getRules().stream().noneMatch(replacements::containsKey)) {
+				result.add(repositoryRule);
+				continue;
+			}
+			RepositoryRule replacement = new RepositoryRule(repositoryRule.getIdentifiables(),
+				repositoryRule.getRules().stream()
+					.map(accessRule -> replacements.getOrDefault(accessRule, accessRule))
+					.collect(Collectors.toList()),
+				repositoryRule.getConfigKeys());
+			partitions.put(replacement, partitions.get(repositoryRule));
+			result.add(replacement);
+		}
+		return result;
+	}
+
+	/**
+	 * @return the sorted patterns of the groups and members of a member list that may be replaced
+	 *    by a group, or {@code null} if it may not.
+	 */
+	private List<String> getMemberKey(InlineUserGroup members) {
+		List<GroupRule> groups = members.getOwnGroupsStream().collect(Collectors.toList());
+		List<String> key = Stream.concat(groups.stream(), members.getOwnMembersStream())
+			.map(Identifiable::getPattern)
+			.sorted()
+			.collect(Collectors.toList());
+		if(key.size() < minimumGroupSize || groups.contains(GroupRule.ALL)) {
+			return null;
+		}
+		return key;
+	}
+
+	/**
+	 * @return the groups that are defined by a single group rule without a parent, by the sorted
+	 *    patterns of their groups and members.
+	 */
+	private static Map<List<String>, GroupRule> getReusableGroups(ConfigImpl config) {
+		Map<String, Long> definitions = config.getGroupRules().stream()
+			.collect(Collectors.groupingBy(GroupRule::getPattern, Collectors.counting()));
+		Map<List<String>, GroupRule> groups = Maps.newHashMap();
+		for(GroupRule group : config.getGroupRules()) {
+			if(group.hasParent() || definitions.get(group.getPattern()) > 1) {
+				continue;
+			}
+			List<String> key = Stream.concat(group.getOwnGroupsStream(), group.getOwnMembersStream())
+				.map(Identifiable::getPattern)
+				.sorted()
+				.collect(Collectors.toList());
+			groups.putIfAbsent(key, group);
+		}
+		return groups;
+	}
+
+	private static List<RepositoryRule> mergeRepositoryRules(List<RepositoryRule> repositoryRules,
+	                                                         Map<RepositoryRule, String> partitions) {
+		List<RepositoryRule> blocks = Lists.newArrayList();
+		List<List<Identifiable>> blockIdentifiables = Lists.newArrayList();
+		Map<String, PartitionState> states = Maps.newHashMap();
+
+		for(RepositoryRule repositoryRule : repositoryRules) {
+			PartitionState state = states.computeIfAbsent(partitions.get(repositoryRule), partition -> new PartitionState());
+			boolean namesRepositories = CanonicalOrder.namesRepositories(repositoryRule);
+			List<String> names = repositoryRule.getIdentifiables().stream()
+				.map(Identifiable::getPattern)
+				.collect(Collectors.toList());
+			List<Object> key = Arrays.asList(repositoryRule.getRules(), repositoryRule.getConfigKeys());
+
+			Integer target = state.blocks.get(key);
+			if(target != null && state.canMoveTo(target, namesRepositories, names)) {
+				List<Identifiable> identifiables = blockIdentifiables.get(target);
+				Set<String> patterns = identifiables.stream().map(Identifiable::getPattern).collect(Collectors.toSet());
+				repositoryRule.getIdentifiables().stream()
+					.filter(identifiable -> patterns.add(identifiable.getPattern()))
+					.forEach(identifiables::add);
+				state.place(target, namesRepositories, names);
+				continue;
+			}
+
+			int position = blocks.size();
+			blocks.add(repositoryRule);
+			blockIdentifiables.add(Lists.newArrayList(repositoryRule.getIdentifiables()));
+			state.blocks.put(key, position);
+			state.place(position, namesRepositories, names);
+			state.lastBlock = position;
+		}
+
+		List<RepositoryRule> result = Lists.newArrayListWithCapacity(blocks.size());
+		for(int i = 0; i < blocks.size(); i++) {
+			RepositoryRule block = blocks.get(i);
+			List<Identifiable> identifiables = blockIdentifiables.get(i);
+			if(identifiables.size() == block.getIdentifiables().size()) {
+				result.add(block);
+				continue;
+			}
+			RepositoryRule merged = new RepositoryRule(identifiables, block.getRules(), block.getConfigKeys());
+			partitions.put(merged, partitions.get(block));
+			result.add(merged);
+		}
+		return result;
+	}
+
+	/**
+	 * Tracks the positions of the merged repository rules in a partition.
+	 */
+	private static class PartitionState {
+
+		/**
+		 * Position of the last block for the access rules and config keys of a repository rule.
+		 */
+		private final Map<List<Object>, Integer> blocks = Maps.newHashMap();
+
+		/**
+		 * Position of the last block that names a repository.
+		 */
+		private final Map<String, Integer> lastBlockForRepository = Maps.newHashMap();
+
+		/**
+		 * Position of the last block for a group or a pattern, that may apply to any repository.
+		 */
+		private int lastBarrier = -1;
+
+		private int lastBlock = -1;
+
+		/**
+		 * @return true if a repository rule can be moved to the block at a position, because no
+		 *    block after that position may apply to the same repositories.
+		 */
+		boolean canMoveTo(int position, boolean namesRepositories, List<String> names) {
+			if(!namesRepositories) {
+				return position == lastBlock;
+			}
+			if(lastBarrier > position) {
+				return false;
+			}
+			return names.stream()
+				.map(lastBlockForRepository::get)
+				.allMatch(last -> last == null || last < position);
+		}
+
+		void place(int position, boolean namesRepositories, List<String> names) {
+			if(!namesRepositories) {
+				lastBarrier = Math.max(lastBarrier, position);
+			}
+			names.forEach(name -> lastBlockForRepository.merge(name, position, Math::max));
+		}
+
+	}
+
+}
@@ -1,17 +1,21 @@
 package nl.tudelft.ewi.gitolite.config;
 
+import com.google.common.base.Preconditions;
 import com.google.common.collect.LinkedHashMultimap;
 import com.google.common.collect.LinkedListMultimap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Queues;
 import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
 import lombok.EqualsAndHashCode;
 import lombok.NoArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import nl.tudelft.ewi.gitolite.objects.Identifiable;
 import nl.tudelft.ewi.gitolite.objects.Identifier;
 import nl.tudelft.ewi.gitolite.parser.rules.AccessRule;
+import nl.tudelft.ewi.gitolite.parser.rules.ConfigSerializer;
 import nl.tudelft.ewi.gitolite.parser.rules.GroupRule;
 import nl.tudelft.ewi.gitolite.parser.rules.InlineUserGroup;
 import nl.tudelft.ewi.gitolite.parser.rules.RepositoryRule;
@@ -20,10 +24,16 @@ import nl.tudelft.ewi.gitolite.util.StreamingGroup;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -35,16 +45,63 @@ import java.util.stream.Stream;
  */
 @Slf4j
 @NoArgsConstructor
-@EqualsAndHashCode
+@EqualsAndHashCode(exclude = {"partitions"})
 public class ConfigImpl implements Config {
 
 	private final Multimap<String, GroupRule> groupRuleMultimap = LinkedListMultimap.create();
 
 	private final List<RepositoryRule> repositoryRules = Lists.newArrayList();
 
+	/**
+	 * Index of the {@link #repositoryRules} by the patterns of their identifiables. It is transient,
+	 * so that it is not part of {@link #equals(Object)}.
+	 */
+	private final transient RepositoryRuleIndex repositoryRuleIndex = new RepositoryRuleIndex();
+
+	/**
+	 * Partitions of the repository rules that are not in the main partition.
+	 */
+	private final Map<RepositoryRule, String> partitions = Maps.newIdentityHashMap();
+
+	/**
+	 * Names of the partitions, starting with the main partition.
+	 */
+	private final Set<String> partitionNames = Sets.newLinkedHashSet(Collections.singleton(MAIN_PARTITION));
+
+	/**
+	 * Patterns of the {@code include} statements in the main partition.
+	 */
+	private final List<String> includes = Lists.newArrayList();
+
+	/**
+	 * Serializer that is reused by {@link #write(String, Writer)}, so that its buffer is only
+	 * allocated once. It is transient, so that it is not part of {@link #equals(Object)}.
+	 */
+	private final transient ConfigSerializer serializer = new ConfigSerializer();
+
 	public ConfigImpl(Collection<? extends GroupRule> groupRules, Collection<? extends RepositoryRule> repositoryRules) {
 		groupRules.stream().forEach(groupRule -> groupRuleMultimap.put(groupRule.getPattern(), groupRule));
 		this.repositoryRules.addAll(repositoryRules);
+		repositoryRules.forEach(repositoryRuleIndex::add);
+	}
+
+	/**
+	 * Create a partitioned config.
+	 * @param groupRules The group rules.
+	 * @param repositoryRules The repository rules.
+	 * @param partitions The partitions of the repository rules that are not in the main partition,
+	 *    by identity of the rule.
+	 * @param partitionNames The names of the partitions other than the main partition.
+	 * @param includes The patterns of the {@code include} statements in the main partition.
+	 */
+	public ConfigImpl(Collection<? extends GroupRule> groupRules, Collection<? extends RepositoryRule> repositoryRules,
+	                  Map<? extends RepositoryRule, String> partitions, Collection<String> partitionNames,
+	                  Collection<String> includes) {
+		this(groupRules, repositoryRules);
+		this.partitions.putAll(partitions);
+		this.partitionNames.addAll(partitionNames);
+		this.partitionNames.addAll(partitions.values());
+		this.includes.addAll(includes);
 	}
 
 	@Override
@@ -84,9 +141,14 @@ public class ConfigImpl implements Config {
 					rule.getMembers().remove(current) && rule.getMembers().isEmpty()
 				);
 
-				return repositoryRule.getIdentifiables().remove(current) &&
+				boolean remove = repositoryRule.getIdentifiables().remove(current) &&
 					repositoryRule.getIdentifiables().isEmpty() ||
 					(repositoryRule.getConfigKeys().isEmpty() && repositoryRule.getRules().isEmpty());
+				if(remove) {
+					partitions.remove(repositoryRule);
+					repositoryRuleIndex.remove(repositoryRule);
+				}
+				return remove;
 			});
 		}
 	}
@@ -100,22 +162,23 @@ public class ConfigImpl implements Config {
 
 	@Override
 	public List<RepositoryRule> getRepositoryRule(Identifiable... identifiables) {
-		return repositoryRules.stream()
+		return repositoryRuleIndex.getCandidates(identifiables).stream()
 			.filter(forIdentifiables(identifiables))
 			.collect(Collectors.toList());
 	}
 
 	private static Predicate<RepositoryRule> forIdentifiables(Identifiable... identifiables) {
+		Set<String> patterns = Stream.of(identifiables)
+			.map(Identifiable::getPattern)
+			.collect(Collectors.toSet());
 		return repositoryRule -> repositoryRule.getIdentifiables().stream()
 			.map(Identifiable::getPattern)
-			.allMatch(identifiable -> Stream.of(identifiables)
-				.map(Identifiable::getPattern)
-				.anyMatch(identifiable::equals));
+			.allMatch(patterns::contains);
 	}
 
 	@Override
 	public RepositoryRule getFirstRepositoryRule(Identifiable... identifiables) {
-		return repositoryRules.stream()
+		return repositoryRuleIndex.getCandidates(identifiables).stream()
 			.filter(forIdentifiables(identifiables))
 			.findFirst().get();
 	}
@@ -124,6 +187,45 @@ public class ConfigImpl implements Config {
 	public void addRepositoryRule(RepositoryRule repositoryRule) {
 		ensureGroupsFromRepositoryExist(repositoryRule);
 		repositoryRules.add(repositoryRule);
+		repositoryRuleIndex.add(repositoryRule);
+	}
+
+	@Override
+	public void addRepositoryRule(RepositoryRule repositoryRule, String partition) {
+		Preconditions.checkNotNull(partition);
+		addRepositoryRule(repositoryRule);
+		if(!MAIN_PARTITION.equals(partition)) {
+			partitions.put(repositoryRule, partition);
+		}
+		partitionNames.add(partition);
+	}
+
+	@Override
+	public String getPartition(RepositoryRule repositoryRule) {
+		return partitions.getOrDefault(repositoryRule, MAIN_PARTITION);
+	}
+
+	@Override
+	public Collection<String> getPartitions() {
+		return Collections.unmodifiableSet(partitionNames);
+	}
+
+	/**
+	 * @return the patterns of the {@code include} statements in the main partition, followed by
+	 *    the partitions that none of these patterns match.
+	 */
+	protected List<String> getIncludes() {
+		List<String> result = Lists.newArrayList(includes);
+		partitionNames.stream()
+			.filter(partition -> !MAIN_PARTITION.equals(partition))
+			.filter(partition -> includes.stream().noneMatch(include -> matches(include, partition)))
+			.forEach(result::add);
+		return result;
+	}
+
+	private static boolean matches(String include, String partition) {
+		Path path = Paths.get(partition);
+		return FileSystems.getDefault().getPathMatcher("glob:" + include).matches(path);
 	}
 
 	protected void ensureGroupsFromRepositoryExist(RepositoryRule repositoryRule) {
@@ -142,7 +244,14 @@ public class ConfigImpl implements Config {
 
 	@Override
 	public boolean deleteRepositoryRule(RepositoryRule rule) {
-		return repositoryRules.remove(rule);
+		int index = repositoryRules.indexOf(rule);
+		if(index < 0) {
+			return false;
+		}
+		RepositoryRule removed = repositoryRules.remove(index);
+		partitions.remove(removed);
+		repositoryRuleIndex.remove(removed);
+		return true;
 	}
 
 	@Override
@@ -184,15 +293,153 @@ public class ConfigImpl implements Config {
 
 	@Override
 	public void write(Writer writer) throws IOException {
-		for(Rule rule : getRules()) {
-			rule.write(writer);
+		synchronized (serializer) {
+			serializer.setCanonical(false);
+			for(Rule rule : getRules()) {
+				serializer.append(rule);
+			}
+			serializer.writeTo(writer);
+		}
+	}
+
+	@Override
+	public void write(String partition, Writer writer) throws IOException {
+		write(partition, writer, false);
+	}
+
+	@Override
+	public void write(String partition, Writer writer, boolean canonical) throws IOException {
+		Preconditions.checkArgument(partitionNames.contains(partition), "Unknown partition %s", partition);
+		boolean main = MAIN_PARTITION.equals(partition);
+		synchronized (serializer) {
+			serializer.setCanonical(canonical);
+			if(main) {
+				Collection<? extends Rule> groupRules;
+				if(canonical) {
+					groupRules = CanonicalOrder.sortGroupRules(getGroupRules());
+				}
+				else {
+					LinkedList<Rule> toposortRules = Lists.newLinkedList();
+					getTopoSortGroupRules(toposortRules);
+					groupRules = toposortRules;
+				}
+				for(Rule rule : groupRules) {
+					serializer.append(rule);
+				}
+			}
+			List<RepositoryRule> rules = canonical ? CanonicalOrder.sortRepositoryRules(repositoryRules) : repositoryRules;
+			for(RepositoryRule repositoryRule : rules) {
+				if(partition.equals(getPartition(repositoryRule))) {
+					serializer.append(repositoryRule);
+				}
+			}
+			if(main) {
+				for(String include : getIncludes()) {
+					serializer.appendInclude(include);
+				}
+			}
+			serializer.writeTo(writer);
 		}
 	}
 
+	/**
+	 * Remove all rules. The partitions and {@code include} statements are kept, so that
+	 * the files of the partitions are emptied when the config is written.
+	 */
 	@Override
 	public void clear() {
 		groupRuleMultimap.clear();
 		repositoryRules.clear();
+		repositoryRuleIndex.clear();
+		partitions.clear();
+	}
+
+	/**
+	 * @return the repository rules, in the order in which they are written.
+	 */
+	List<RepositoryRule> getRepositoryRules() {
+		return Collections.unmodifiableList(repositoryRules);
+	}
+
+	/**
+	 * Replace all repository rules, for example by a compacted list of rules.
+	 * @param repositoryRules The new repository rules.
+	 * @param partitions The partitions of the new repository rules that are not in the main partition,
+	 *    by identity of the rule.
+	 * @see ConfigCompactor
+	 */
+	void replaceRepositoryRules(List<? extends RepositoryRule> repositoryRules, Map<? extends RepositoryRule, String> partitions) {
+		repositoryRules.forEach(this::ensureGroupsFromRepositoryExist);
+		this.repositoryRules.clear();
+		this.repositoryRules.addAll(repositoryRules);
+		repositoryRuleIndex.clear();
+		repositoryRules.forEach(repositoryRuleIndex::add);
+		this.partitions.clear();
+		this.partitions.putAll(partitions);
+		this.partitionNames.addAll(partitions.values());
+	}
+
+	@Override
+	public ConfigImpl copy() {
+		Map<GroupRule, GroupRule> copies = Maps.newIdentityHashMap();
+		copies.put(GroupRule.ALL, GroupRule.ALL);
+		List<GroupRule> temporaryMarks = Lists.newArrayList();
+
+		class GroupCopier {
+			GroupRule copy(GroupRule groupRule) {
+				if(groupRule == null) {
+					return null;
+				}
+				GroupRule copy = copies.get(groupRule);
+				if(copy == null) {
+					if(temporaryMarks.stream().anyMatch(mark -> mark == groupRule)) {
+						throw new CyclicDependencyException();
+					}
+					temporaryMarks.add(groupRule);
+					copy = new GroupRule(groupRule.getPattern(),
+						copy(groupRule.getParent()),
+						groupRule.getOwnMembersStream().collect(Collectors.toList()),
+						groupRule.getOwnGroupsStream().map(this::copy).collect(Collectors.toList()));
+					temporaryMarks.remove(temporaryMarks.size() - 1);
+					copies.put(groupRule, copy);
+				}
+				return copy;
+			}
+
+			Identifiable copy(Identifiable identifiable) {
+				return identifiable instanceof GroupRule ? copy((GroupRule) identifiable) : identifiable;
+			}
+
+			AccessRule copy(AccessRule accessRule) {
+				InlineUserGroup members = accessRule.getMembers();
+				return new AccessRule(accessRule.getPermission(), accessRule.getRefex(),
+					members.getOwnGroupsStream().map(this::copy).collect(Collectors.toList()),
+					members.getOwnMembersStream().collect(Collectors.toList()));
+			}
+
+			RepositoryRule copy(RepositoryRule repositoryRule) {
+				return new RepositoryRule(
+					repositoryRule.getIdentifiables().stream().map(this::copy).collect(Collectors.toList()),
+					repositoryRule.getRules().stream().map(this::copy).collect(Collectors.toList()),
+					repositoryRule.getConfigKeys());
+			}
+		}
+
+		GroupCopier groupCopier = new GroupCopier();
+		ConfigImpl copy = new ConfigImpl();
+		groupRuleMultimap.entries().forEach(entry ->
+			copy.groupRuleMultimap.put(entry.getKey(), groupCopier.copy(entry.getValue())));
+		repositoryRules.forEach(repositoryRule -> {
+			RepositoryRule repositoryRuleCopy = groupCopier.copy(repositoryRule);
+			copy.repositoryRules.add(repositoryRuleCopy);
+			copy.repositoryRuleIndex.add(repositoryRuleCopy);
+			if(partitions.containsKey(repositoryRule)) {
+				copy.partitions.put(repositoryRuleCopy, partitions.get(repositoryRule));
+			}
+		});
+		copy.partitionNames.addAll(partitionNames);
+		copy.includes.addAll(includes);
+		return copy;
 	}
 
 }
@@ -0,0 +1,194 @@
+package nl.tudelft.ewi.gitolite.config;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+import com.google.common.collect.Sets;
+import nl.tudelft.ewi.gitolite.objects.Identifiable;
+import nl.tudelft.ewi.gitolite.parser.rules.RepositoryRule;
+
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Index of the repository rules of a {@link ConfigImpl} by the patterns of their identifiables,
+ * so that the rules for a repository are found without scanning every rule.
+ *
+ * <p>A rule is indexed under the patterns it has when it is added. The index
+ * {@link RepositoryRule#addIdentifiablesListener listens} for changes to the identifiables of its
+ * rules, and indexes the changed rules again before the next lookup. The index returns candidates
+ * that still have to be matched against the rules themselves.</p>
+ *
+ * <p>The index is guarded in the same way as the {@code ConfigImpl} that owns it.</p>
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+final class RepositoryRuleIndex implements RepositoryRule.IdentifiablesListener {
+
+	/**
+	 * Sequence number of the next rule that is added. Rules are always added to the end of the
+	 * repository rules, so the sequence numbers follow the order of the rules.
+	 */
+	private long nextSequence = 0;
+
+	/**
+	 * Rules of which the identifiables changed since they were indexed, by identity.
+	 */
+	private final Set<RepositoryRule> changedRules = Sets.newIdentityHashSet();
+
+	/**
+	 * Entries for every time a rule was added, by identity of the rule.
+	 */
+	private final Map<RepositoryRule, Deque<Entry>> entries = Maps.newIdentityHashMap();
+
+	/**
+	 * Rules by the patterns of their identifiables, and by sequence number.
+	 */
+	private final Map<String, NavigableMap<Long, RepositoryRule>> rulesByPattern = Maps.newHashMap();
+
+	/**
+	 * Rules without identifiables, which match every lookup.
+	 */
+	private final NavigableMap<Long, RepositoryRule> rulesWithoutIdentifiables = Maps.newTreeMap();
+
+	/**
+	 * Index a rule that is added to the end of the repository rules.
+	 * @param repositoryRule The rule to index.
+	 */
+	void add(RepositoryRule repositoryRule) {
+		Entry entry = new Entry(nextSequence++, getPatterns(repositoryRule));
+		entries.computeIfAbsent(repositoryRule, rule -> {
+			rule.addIdentifiablesListener(this);
+			return Queues.newArrayDeque();
+		}).add(entry);
+		index(repositoryRule, entry);
+	}
+
+	@Override
+	public void identifiablesChanged(RepositoryRule repositoryRule) {
+		if(entries.containsKey(repositoryRule)) {
+			changedRules.add(repositoryRule);
+		}
+	}
+
+	private static Set<String> getPatterns(RepositoryRule repositoryRule) {
+		return repositoryRule.getIdentifiables().stream()
+			.map(Identifiable::getPattern)
+			.collect(Collectors.toSet());
+	}
+
+	private void index(RepositoryRule repositoryRule, Entry entry) {
+		if(entry.patterns.isEmpty()) {
+			rulesWithoutIdentifiables.put(entry.sequence, repositoryRule);
+		}
+		for(String pattern : entry.patterns) {
+			rulesByPattern.computeIfAbsent(pattern, key -> Maps.newTreeMap()).put(entry.sequence, repositoryRule);
+		}
+	}
+
+	private void unindex(Entry entry) {
+		if(entry.patterns.isEmpty()) {
+			rulesWithoutIdentifiables.remove(entry.sequence);
+		}
+		for(String pattern : entry.patterns) {
+			NavigableMap<Long, RepositoryRule> rules = rulesByPattern.get(pattern);
+			rules.remove(entry.sequence);
+			if(rules.isEmpty()) {
+				rulesByPattern.remove(pattern);
+			}
+		}
+	}
+
+	/**
+	 * Index the rules of which the identifiables changed since they were indexed again.
+	 */
+	private void reindexChangedRules() {
+		if(changedRules.isEmpty()) {
+			return;
+		}
+		for(RepositoryRule repositoryRule : changedRules) {
+			Deque<Entry> occurrences = entries.get(repositoryRule);
+			if(occurrences == null) {
+				continue;
+			}
+			Set<String> patterns = getPatterns(repositoryRule);
+			for(Entry entry : occurrences) {
+				if(!entry.patterns.equals(patterns)) {
+					unindex(entry);
+					entry.patterns = patterns;
+					index(repositoryRule, entry);
+				}
+			}
+		}
+		changedRules.clear();
+	}
+
+	/**
+	 * Remove the first occurrence of a rule from the index.
+	 * @param repositoryRule The rule that is removed from the repository rules.
+	 */
+	void remove(RepositoryRule repositoryRule) {
+		Deque<Entry> occurrences = entries.get(repositoryRule);
+		if(occurrences == null) {
+			return;
+		}
+		Entry entry = occurrences.remove();
+		if(occurrences.isEmpty()) {
+			entries.remove(repositoryRule);
+			repositoryRule.removeIdentifiablesListener(this);
+		}
+		unindex(entry);
+	}
+
+	void clear() {
+		entries.keySet().forEach(repositoryRule -> repositoryRule.removeIdentifiablesListener(this));
+		entries.clear();
+		changedRules.clear();
+		rulesByPattern.clear();
+		rulesWithoutIdentifiables.clear();
+	}
+
+	/**
+	 * @param identifiables The identifiables to look up.
+	 * @return the rules that were indexed under one of the patterns of the identifiables, or
+	 *    without identifiables, in the order of the repository rules.
+	 */
+	List<RepositoryRule> getCandidates(Identifiable... identifiables) {
+		reindexChangedRules();
+		if(identifiables.length == 1 && rulesWithoutIdentifiables.isEmpty()) {
+			NavigableMap<Long, RepositoryRule> rules = rulesByPattern.get(identifiables[0].getPattern());
+			return rules == null ? Collections.emptyList() : Lists.newArrayList(rules.values());
+		}
+
+		NavigableMap<Long, RepositoryRule> candidates = Maps.newTreeMap(rulesWithoutIdentifiables);
+		for(Identifiable identifiable : identifiables) {
+			NavigableMap<Long, RepositoryRule> rules = rulesByPattern.get(identifiable.getPattern());
+			if(rules != null) {
+				candidates.putAll(rules);
+			}
+		}
+		return Lists.newArrayList(candidates.values());
+	}
+
+	private static class Entry {
+
+		private final long sequence;
+
+		/**
+		 * Patterns under which the rule is indexed.
+		 */
+		private Set<String> patterns;
+
+		private Entry(long sequence, Set<String> patterns) {
+			this.sequence = sequence;
+			this.patterns = patterns;
+		}
+
+	}
+
+}
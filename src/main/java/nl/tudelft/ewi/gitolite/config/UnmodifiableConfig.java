@@ -0,0 +1,116 @@
+package nl.tudelft.ewi.gitolite.config;
+
+import lombok.RequiredArgsConstructor;
+import nl.tudelft.ewi.gitolite.objects.Identifiable;
+import nl.tudelft.ewi.gitolite.parser.rules.GroupRule;
+import nl.tudelft.ewi.gitolite.parser.rules.RepositoryRule;
+import nl.tudelft.ewi.gitolite.parser.rules.Rule;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * A {@link Config} view that rejects modifications with an {@code UnsupportedOperationException}.
+ * The view does not prevent modifications to the rules it returns, therefore it is usually
+ * created over a {@link Config#copy() copy} that is not shared with anyone else.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+@RequiredArgsConstructor
+public class UnmodifiableConfig implements Config {
+
+	private final Config delegate;
+
+	@Override
+	public GroupRule getGroup(String name) {
+		return delegate.getGroup(name);
+	}
+
+	@Override
+	public void addGroup(GroupRule groupRule) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean deleteGroup(GroupRule groupRule) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public Collection<? extends GroupRule> getGroupRules() {
+		return Collections.unmodifiableCollection(delegate.getGroupRules());
+	}
+
+	@Override
+	public void deleteIdentifierUses(Identifiable identifier) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public Collection<? extends RepositoryRule> getRepositoryRule(Identifiable... identifiables) {
+		return Collections.unmodifiableCollection(delegate.getRepositoryRule(identifiables));
+	}
+
+	@Override
+	public RepositoryRule getFirstRepositoryRule(Identifiable... identifiables) {
+		return delegate.getFirstRepositoryRule(identifiables);
+	}
+
+	@Override
+	public void addRepositoryRule(RepositoryRule repositoryRule) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void addRepositoryRule(RepositoryRule repositoryRule, String partition) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean deleteRepositoryRule(RepositoryRule rule) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public Collection<Rule> getRules() {
+		return Collections.unmodifiableCollection(delegate.getRules());
+	}
+
+	@Override
+	public void clear() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public Config copy() {
+		return delegate.copy();
+	}
+
+	@Override
+	public String getPartition(RepositoryRule repositoryRule) {
+		return delegate.getPartition(repositoryRule);
+	}
+
+	@Override
+	public Collection<String> getPartitions() {
+		return Collections.unmodifiableCollection(delegate.getPartitions());
+	}
+
+	@Override
+	public void write(Writer writer) throws IOException {
+		delegate.write(writer);
+	}
+
+	@Override
+	public void write(String partition, Writer writer) throws IOException {
+		delegate.write(partition, writer);
+	}
+
+	@Override
+	public void write(String partition, Writer writer, boolean canonical) throws IOException {
+		delegate.write(partition, writer, canonical);
+	}
+
+}
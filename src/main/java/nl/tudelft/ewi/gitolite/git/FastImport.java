@@ -0,0 +1,221 @@
+package nl.tudelft.ewi.gitolite.git;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A long running {@code git fast-import} process, that creates commits on a branch without
+ * starting a process per commit. Every commit is followed by a {@code checkpoint}, so that the
+ * branch is updated before {@link #commit(File, Collection, String, long)} returns, and the
+ * commit can be pushed. The index is not updated.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+@Slf4j
+class FastImport implements Closeable {
+
+	private final Process process;
+
+	private final OutputStream input;
+
+	private final BufferedReader output;
+
+	/**
+	 * The errors of the process, which are read in the background.
+	 */
+	private final StringBuffer errors = new StringBuffer();
+
+	/**
+	 * The branch to commit to, for example {@code refs/heads/master}.
+	 */
+	private final String branch;
+
+	/**
+	 * The name and email address of the committer.
+	 */
+	private final String committer;
+
+	/**
+	 * Whether the branch has a commit yet.
+	 */
+	private boolean branchExists;
+
+	private long commits;
+
+	/**
+	 * Start a {@code git fast-import} process.
+	 * @param processBuilder The process builder for {@code git fast-import}.
+	 * @param branch The branch to commit to.
+	 * @param committer The name and email address of the committer, as in {@code Name <email>}.
+	 * @param branchExists Whether the branch has a commit yet.
+	 * @throws IOException If the process could not be started.
+	 */
+	FastImport(ProcessBuilder processBuilder, String branch, String committer, boolean branchExists) throws IOException {
+		this.process = processBuilder.start();
+		this.input = new BufferedOutputStream(process.getOutputStream());
+		this.output = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+		this.branch = branch;
+		this.committer = committer;
+		this.branchExists = branchExists;
+
+		CompletableFuture.runAsync(() -> {
+			try(BufferedReader reader = new BufferedReader(new InputStreamReader(process.getErrorStream(), StandardCharsets.UTF_8))) {
+				for(String line; (line = reader.readLine()) != null;) {
+					errors.append(line).append('\n');
+				}
+			}
+			catch (IOException e) {
+				log.debug("Stopped reading the errors of git fast-import", e);
+			}
+		}, NativeGitManager.STREAM_READERS);
+	}
+
+	/**
+	 * @return true if the process is still running.
+	 */
+	boolean isAlive() {
+		return process.isAlive();
+	}
+
+	/**
+	 * @return the number of commits that were created by this process.
+	 */
+	long getCommits() {
+		return commits;
+	}
+
+	/**
+	 * Commit the current contents of the given files in the working directory, on top of the
+	 * current commit of the branch. Files that do not exist are deleted.
+	 * @param workingDirectory The working directory.
+	 * @param paths The paths of the files, relative to the working directory.
+	 * @param message The commit message.
+	 * @param timeout Time in milliseconds to wait for the commit, or {@code 0} to wait indefinitely.
+	 * @throws IOException If a file could not be read.
+	 * @throws InterruptedException If the thread was interrupted. The process is killed.
+	 * @throws GitException If the commit failed or timed out. The process is killed.
+	 */
+	void commit(File workingDirectory, Collection<String> paths, String message, long timeout)
+		throws IOException, InterruptedException, GitException {
+		String token = "committed " + (commits + 1);
+		try {
+			write("commit " + branch + "\n");
+			write("committer " + committer + " " + System.currentTimeMillis() / 1000 + " +0000\n");
+			data(message.getBytes(StandardCharsets.UTF_8));
+			if(branchExists) {
+				// Read the branch from the repository, as it may have been reset since the last commit
+				write("from " + branch + "^0\n");
+			}
+			for(String path : paths) {
+				File file = new File(workingDirectory, path);
+				if(file.isFile()) {
+					write("M 100644 inline " + quote(path) + "\n");
+					data(Files.readAllBytes(file.toPath()));
+				}
+				else {
+					write("D " + quote(path) + "\n");
+				}
+			}
+			write("\ncheckpoint\n\nprogress " + token + "\n\n");
+			input.flush();
+		}
+		catch (IOException e) {
+			process.destroyForcibly();
+			throw new GitException("git fast-import failed: " + errors, e);
+		}
+
+		awaitProgress(token, timeout);
+		branchExists = true;
+		commits++;
+	}
+
+	private void awaitProgress(String token, long timeout) throws InterruptedException, GitException {
+		CompletableFuture<Boolean> progress = CompletableFuture.supplyAsync(() -> {
+			try {
+				for(String line; (line = output.readLine()) != null;) {
+					if(line.equals("progress " + token)) {
+						return true;
+					}
+				}
+				return false;
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}, NativeGitManager.STREAM_READERS);
+
+		try {
+			boolean committed = timeout > 0 ? progress.get(timeout, TimeUnit.MILLISECONDS) : progress.get();
+			if(!committed) {
+				throw new GitException("git fast-import failed: " + errors);
+			}
+		}
+		catch (TimeoutException e) {
+			process.destroyForcibly();
+			throw new GitException("git fast-import timed out after " + timeout + " ms");
+		}
+		catch (ExecutionException e) {
+			process.destroyForcibly();
+			throw new GitException("git fast-import failed: " + errors, e.getCause());
+		}
+		catch (InterruptedException e) {
+			process.destroyForcibly();
+			throw e;
+		}
+	}
+
+	private void data(byte[] data) throws IOException {
+		write("data " + data.length + "\n");
+		input.write(data);
+		write("\n");
+	}
+
+	private void write(String string) throws IOException {
+		input.write(string.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Quote a path that fast-import would not read literally.
+	 */
+	private static String quote(String path) {
+		if(!path.startsWith("\"") && path.indexOf('\n') < 0) {
+			return path;
+		}
+		return "\"" + path.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+	}
+
+	/**
+	 * Close the input of the process, and wait for it to write its last checkpoint.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			input.close();
+			if(!process.waitFor(10, TimeUnit.SECONDS)) {
+				log.warn("git fast-import did not stop, killing it");
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			process.destroyForcibly();
+		}
+	}
+
+}
@@ -8,6 +8,10 @@ public class GitException extends RuntimeException {
 	public GitException() {
 	}
 
+	public GitException(String message) {
+		super(message);
+	}
+
 	public GitException(Throwable cause) {
 		super(cause);
 	}
@@ -2,6 +2,13 @@ package nl.tudelft.ewi.gitolite.git;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.stream.Stream;
 
 /**
  * This interface is designed to be extended to support different java-git
@@ -56,6 +63,23 @@ public interface GitManager {
 	 */
 	void clone(String uri) throws IOException, InterruptedException, GitException;
 
+	/**
+	 * This method clones a git repository from the specified URI, to the current
+	 * working directory, with a history truncated to the specified number of commits.
+	 * Implementations that do not support shallow clones clone the full history.
+	 *
+	 * @param uri The URI to clone the git repository from. This cannot be NULL.
+	 * @param depth The number of commits to fetch, or {@code 0} to fetch the full history.
+	 *
+	 * @throws IOException If an I/O error occurs.
+	 *
+	 * @throws GitException If an exception occurred while using the Git API.
+	 * @throws InterruptedException If the thread was interrupted.
+	 */
+	default void clone(String uri, int depth) throws IOException, InterruptedException, GitException {
+		clone(uri);
+	}
+
 	/**
 	 * This method initializes a new git repository in the working directory.
 	 *
@@ -85,16 +109,105 @@ public interface GitManager {
 	 */
 	void commitChanges() throws InterruptedException, IOException, GitException;
 
+	/**
+	 * Commits the changes to the given files to the local git repository. Only these files are
+	 * staged, so that the rest of the working directory does not have to be scanned. The
+	 * default implementation commits all changes.
+	 *
+	 * @param paths The paths of the files that were written or deleted, relative to the root
+	 *           of the repository.
+	 * @throws InterruptedException If the thread was interrupted.
+	 * @throws IOException If the add or commit operations failed.
+	 * @throws GitException If an exception occurred while using the Git API.
+	 */
+	default void commitChanges(Collection<String> paths) throws InterruptedException, IOException, GitException {
+		commitChanges();
+	}
+
 	/**
 	 * This method pushes the locally committed changes to the remote git
 	 * repository.
 	 *
 	 * @throws IOException If the add or commit operations failed.
 	 * @throws InterruptedException If the thread was interrupted.
+	 * @throws PushRejectedException If the remote contains commits that are not in the local repository.
 	 * @throws GitException If an exception occurred while using the Git API.
 	 */
 	void push() throws IOException, InterruptedException, GitException;
 
+	/**
+	 * Fetch the remote git repository, and reset the local branch and the working directory
+	 * to the remote branch. Local commits that were not pushed are discarded.
+	 *
+	 * @throws IOException If an I/O error occurs.
+	 * @throws InterruptedException If the thread was interrupted.
+	 * @throws GitException If an exception occurred while using the Git API.
+	 */
+	void resetToRemote() throws IOException, InterruptedException, GitException;
+
+	/**
+	 * Read the files in a folder, and its subfolders, as of the last commit. The default
+	 * implementation reads the working directory, which matches the last commit after a
+	 * clone, pull or reset. Implementations that can read the object database directly
+	 * do not need a checkout.
+	 *
+	 * @param folder The folder, relative to the root of the repository.
+	 * @return The contents of the files, by path relative to the folder. The map is empty
+	 *            if the folder does not exist.
+	 * @throws IOException If an I/O error occurs.
+	 */
+	default SortedMap<String, byte[]> readFolder(String folder) throws IOException {
+		SortedMap<String, byte[]> files = new TreeMap<>();
+		Path root = new File(getWorkingDirectory(), folder).toPath();
+		if(!Files.isDirectory(root)) {
+			return files;
+		}
+		try(Stream<Path> paths = Files.walk(root)) {
+			Iterator<Path> iterator = paths.filter(Files::isRegularFile).iterator();
+			while(iterator.hasNext()) {
+				Path path = iterator.next();
+				files.put(root.relativize(path).toString().replace(File.separatorChar, '/'), Files.readAllBytes(path));
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Check if the repository is bare. A bare repository has no working directory, so files
+	 * can only be read with {@link #readFolder(String)} and changed with {@link #writeFile(String, byte[])}
+	 * and {@link #deleteFile(String)}.
+	 *
+	 * @return true if the repository is bare.
+	 */
+	default boolean isBare() {
+		return false;
+	}
+
+	/**
+	 * Write a file, so that it is committed with the next call to {@link #commitChanges()}.
+	 * The default implementation writes the file to the working directory.
+	 *
+	 * @param path The path of the file, relative to the root of the repository.
+	 * @param contents The new contents of the file.
+	 * @throws IOException If an I/O error occurs.
+	 */
+	default void writeFile(String path, byte[] contents) throws IOException {
+		Path file = new File(getWorkingDirectory(), path).toPath();
+		Files.createDirectories(file.getParent());
+		Files.write(file, contents);
+	}
+
+	/**
+	 * Delete a file, so that it is removed with the next call to {@link #commitChanges()}.
+	 * The default implementation deletes the file from the working directory.
+	 *
+	 * @param path The path of the file, relative to the root of the repository.
+	 * @throws IOException If an I/O error occurs.
+	 */
+	default void deleteFile(String path) throws IOException {
+		Files.deleteIfExists(new File(getWorkingDirectory(), path).toPath());
+	}
+
 	/**
 	 * @return The working directory of this {@link GitManager} object.
 	 */
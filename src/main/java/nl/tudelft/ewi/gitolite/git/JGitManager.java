@@ -1,7 +1,15 @@
 package nl.tudelft.ewi.gitolite.git;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 
 import lombok.extern.slf4j.Slf4j;
 import org.eclipse.jgit.api.AddCommand;
@@ -10,13 +18,37 @@ import org.eclipse.jgit.api.CommitCommand;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.InitCommand;
 import org.eclipse.jgit.api.PullCommand;
+import org.eclipse.jgit.api.ResetCommand.ResetType;
 import org.eclipse.jgit.api.RmCommand;
+import org.eclipse.jgit.api.TransportCommand;
 import org.eclipse.jgit.api.errors.GitAPIException;
 import org.eclipse.jgit.api.errors.JGitInternalException;
 import org.eclipse.jgit.api.errors.NoFilepatternException;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEditor;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.BranchConfig;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryCache;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.transport.CredentialsProvider;
 import org.eclipse.jgit.transport.PushResult;
 import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.eclipse.jgit.transport.SshSessionFactory;
+import org.eclipse.jgit.transport.SshTransport;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.PathFilter;
+import org.eclipse.jgit.util.FS;
 
 import com.google.common.base.Preconditions;
 
@@ -24,10 +56,20 @@ import com.google.common.base.Preconditions;
  * The {@link JGitManager} class is responsible for communicating with the
  * remote git repository containing the gitolite configuration.
  *
+ * <p>A bare {@code JGitManager} keeps the repository without a working directory. Files that
+ * are written or deleted are kept in memory until {@link #commitChanges()}, which inserts them
+ * as blobs, edits an in-memory {@link DirCache} of the last commit, and creates the commit
+ * directly. The cost of a commit then depends on the changed paths, and not on the number of
+ * files in the repository.</p>
+ *
+ * <p>With {@link #setSshSessionIdleTimeout(long, TimeUnit)}, SSH sessions to the remote are
+ * kept open after a clone, fetch, pull or push, and reused by the next operation with the same
+ * {@link CredentialsProvider}, until they are idle for the timeout.</p>
+ *
  * @author Michael de Jong &lt;<a href="mailto:michaelj@minicom.nl">michaelj@minicom.nl</a>&gt;
  */
 @Slf4j
-public class JGitManager extends AbstractGitManager implements GitManager {
+public class JGitManager extends AbstractGitManager implements GitManager, Closeable {
 
 	/**
 	 * The {@link CredentialsProvider} to use to
@@ -35,12 +77,99 @@ public class JGitManager extends AbstractGitManager implements GitManager {
 	 */
 	private final CredentialsProvider credentialProvider;
 
+	/**
+	 * Whether the repository is bare.
+	 */
+	private final boolean bare;
+
 	private final Object gitLock = new Object();
 	private Git git;
 
+	/**
+	 * Session factory that reuses SSH sessions between operations, or {@code null} to open
+	 * a new session for every operation.
+	 */
+	private PooledSshSessionFactory sshSessionFactory;
+
+	/**
+	 * Files to change with the next commit in a bare repository, by path. Deleted files map to {@code null}.
+	 */
+	private final Map<String, byte[]> pendingChanges = new TreeMap<>();
+
+	/**
+	 * In-memory index of the commit {@link #indexCommitId} in a bare repository, reused between commits.
+	 */
+	private DirCache index;
+	private ObjectId indexCommitId;
+
 	public JGitManager(File workingDirectory, CredentialsProvider credentialProvider) {
+		this(workingDirectory, credentialProvider, false);
+	}
+
+	public JGitManager(File workingDirectory, CredentialsProvider credentialProvider, boolean bare) {
 		super(workingDirectory);
 		this.credentialProvider = credentialProvider;
+		this.bare = bare;
+	}
+
+	@Override
+	public boolean exists() {
+		if(bare) {
+			return RepositoryCache.FileKey.isGitRepository(workingDirectory, FS.DETECTED);
+		}
+		return super.exists();
+	}
+
+	@Override
+	public boolean isBare() {
+		return bare;
+	}
+
+	/**
+	 * Keep SSH sessions open between operations on the remote.
+	 * @param timeout Time after which an idle session is closed, or {@code 0} to open a new
+	 *            session for every operation, which is the default.
+	 * @param unit The unit of the timeout.
+	 */
+	public void setSshSessionIdleTimeout(long timeout, TimeUnit unit) {
+		synchronized (gitLock) {
+			if(sshSessionFactory != null) {
+				sshSessionFactory.close();
+				sshSessionFactory = null;
+			}
+			if(timeout > 0) {
+				sshSessionFactory = new PooledSshSessionFactory(SshSessionFactory.getInstance(), timeout, unit);
+			}
+		}
+	}
+
+	/**
+	 * Set the credentials of a command, and let SSH transports use the pooled sessions.
+	 */
+	private <C extends TransportCommand<C, ?>> C configureTransport(C command) {
+		command.setCredentialsProvider(credentialProvider);
+		PooledSshSessionFactory sessionFactory = sshSessionFactory;
+		if(sessionFactory != null) {
+			command.setTransportConfigCallback(transport -> {
+				if(transport instanceof SshTransport) {
+					((SshTransport) transport).setSshSessionFactory(sessionFactory);
+				}
+			});
+		}
+		return command;
+	}
+
+	/**
+	 * Close the SSH sessions that are kept open.
+	 */
+	@Override
+	public void close() {
+		synchronized (gitLock) {
+			if(sshSessionFactory != null) {
+				sshSessionFactory.close();
+				sshSessionFactory = null;
+			}
+		}
 	}
 
 	/*
@@ -62,6 +191,10 @@ public class JGitManager extends AbstractGitManager implements GitManager {
 	 */
 	@Override
 	public void remove(String filePattern) throws IOException, GitException {
+		if(bare) {
+			deleteFile(filePattern);
+			return;
+		}
 		synchronized (gitLock) {
 			RmCommand rm = git.rm();
 			rm.addFilepattern(filePattern);
@@ -88,7 +221,8 @@ public class JGitManager extends AbstractGitManager implements GitManager {
 			CloneCommand clone = Git.cloneRepository();
 			clone.setDirectory(workingDirectory);
 			clone.setURI(uri);
-			clone.setCredentialsProvider(credentialProvider);
+			clone.setBare(bare);
+			configureTransport(clone);
 			try {
 				git = clone.call();
 			} catch (NullPointerException e) {
@@ -109,6 +243,7 @@ public class JGitManager extends AbstractGitManager implements GitManager {
 		synchronized (gitLock) {
 			InitCommand initCommand = Git.init();
 			initCommand.setDirectory(workingDirectory);
+			initCommand.setBare(bare);
 			try {
 				git = initCommand.call();
 			} catch (GitAPIException e) {
@@ -123,11 +258,14 @@ public class JGitManager extends AbstractGitManager implements GitManager {
 	 * @see nl.minicom.gitolite.manager.git.GitManager#pull()
 	 */
 	@Override
-	public boolean pull() throws GitException {
+	public boolean pull() throws IOException, GitException {
 		log.info("Pulling changes from remote git repo");
 		synchronized (gitLock) {
 			try {
-				PullCommand pull = git.pull();
+				if(bare) {
+					return updateToRemote(false);
+				}
+				PullCommand pull = configureTransport(git.pull());
 				return !pull.call().getFetchResult().getTrackingRefUpdates().isEmpty();
 			} catch (NullPointerException e) {
 				throw new ServiceUnavailable(e);
@@ -145,11 +283,182 @@ public class JGitManager extends AbstractGitManager implements GitManager {
 	@Override
 	public void commitChanges() throws IOException, GitException {
 		synchronized (gitLock) {
+			if(bare) {
+				commitPendingChanges("Changed config...");
+				return;
+			}
 			add(git, ".");
 			commit(git, "Changed config...");
 		}
 	}
 
+	/**
+	 * Commit the changes to the given files. The files are added to, or removed from, the index
+	 * directly, without walking the working directory.
+	 *
+	 * @see GitManager#commitChanges(Collection)
+	 */
+	@Override
+	public void commitChanges(Collection<String> paths) throws IOException, GitException {
+		synchronized (gitLock) {
+			if(bare) {
+				// The written and deleted files are already pending
+				commitPendingChanges("Changed config...");
+				return;
+			}
+			stage(paths);
+			commit(git, "Changed config...");
+		}
+	}
+
+	private void stage(Collection<String> paths) throws IOException {
+		log.info("Adding {} changed files to commit", paths.size());
+		Repository repository = git.getRepository();
+		DirCache index = repository.lockDirCache();
+		try(ObjectInserter inserter = repository.newObjectInserter()) {
+			DirCacheEditor editor = index.editor();
+			for(String path : paths) {
+				File file = new File(workingDirectory, path);
+				if(!file.isFile()) {
+					editor.add(new DirCacheEditor.DeletePath(path));
+					continue;
+				}
+				byte[] contents = Files.readAllBytes(file.toPath());
+				ObjectId blobId = inserter.insert(Constants.OBJ_BLOB, contents);
+				long lastModified = file.lastModified();
+				editor.add(new DirCacheEditor.PathEdit(path) {
+					@Override
+					public void apply(DirCacheEntry entry) {
+						entry.setFileMode(FileMode.REGULAR_FILE);
+						entry.setObjectId(blobId);
+						entry.setLength(contents.length);
+						entry.setLastModified(lastModified);
+					}
+				});
+			}
+			inserter.flush();
+			editor.commit();
+		}
+		finally {
+			index.unlock();
+		}
+	}
+
+	@Override
+	public void writeFile(String path, byte[] contents) throws IOException {
+		if(!bare) {
+			GitManager.super.writeFile(path, contents);
+			return;
+		}
+		synchronized (gitLock) {
+			pendingChanges.put(path, contents);
+		}
+	}
+
+	@Override
+	public void deleteFile(String path) throws IOException {
+		if(!bare) {
+			GitManager.super.deleteFile(path);
+			return;
+		}
+		synchronized (gitLock) {
+			pendingChanges.put(path, null);
+		}
+	}
+
+	/**
+	 * Commit the {@link #pendingChanges} of a bare repository, without a working directory.
+	 * @param message The commit message.
+	 * @throws IOException If the object database could not be read or written.
+	 * @throws GitException If {@code HEAD} could not be updated.
+	 */
+	private void commitPendingChanges(String message) throws IOException, GitException {
+		log.info("Commiting {} changed files to local git repo", pendingChanges.size());
+		Repository repository = git.getRepository();
+		ObjectId headId = repository.resolve(Constants.HEAD);
+		try(ObjectInserter inserter = repository.newObjectInserter();
+			ObjectReader reader = repository.newObjectReader();
+			RevWalk revWalk = new RevWalk(reader)) {
+			RevCommit head = headId != null ? revWalk.parseCommit(headId) : null;
+			DirCache index = getIndex(reader, head);
+
+			DirCacheEditor editor = index.editor();
+			for(Map.Entry<String, byte[]> change : pendingChanges.entrySet()) {
+				if(change.getValue() == null) {
+					editor.add(new DirCacheEditor.DeletePath(change.getKey()));
+					continue;
+				}
+				ObjectId blobId = inserter.insert(Constants.OBJ_BLOB, change.getValue());
+				editor.add(new DirCacheEditor.PathEdit(change.getKey()) {
+					@Override
+					public void apply(DirCacheEntry entry) {
+						entry.setFileMode(FileMode.REGULAR_FILE);
+						entry.setObjectId(blobId);
+					}
+				});
+			}
+			editor.finish();
+
+			ObjectId treeId = index.writeTree(inserter);
+			if(head != null && treeId.equals(head.getTree())) {
+				inserter.flush();
+				log.info("Nothing to commit");
+				return;
+			}
+
+			PersonIdent ident = new PersonIdent(repository);
+			CommitBuilder commit = new CommitBuilder();
+			commit.setAuthor(ident);
+			commit.setCommitter(ident);
+			commit.setMessage(message);
+			commit.setTreeId(treeId);
+			if(head != null) {
+				commit.setParentId(head);
+			}
+			ObjectId commitId = inserter.insert(commit);
+			inserter.flush();
+
+			RefUpdate refUpdate = repository.updateRef(Constants.HEAD);
+			refUpdate.setNewObjectId(commitId);
+			refUpdate.setExpectedOldObjectId(headId != null ? headId : ObjectId.zeroId());
+			refUpdate.setRefLogMessage("commit: " + message, false);
+			RefUpdate.Result result = refUpdate.update(revWalk);
+			switch(result) {
+				case NEW:
+				case FAST_FORWARD:
+					indexCommitId = commitId;
+					break;
+				default:
+					throw new GitException("Cannot commit config: " + result);
+			}
+		}
+		catch (IOException | RuntimeException e) {
+			// The index may contain some of the changes
+			this.index = null;
+			throw e;
+		}
+		finally {
+			pendingChanges.clear();
+		}
+	}
+
+	/**
+	 * @return the in-memory index of a commit, which is only read from the tree if it is not the
+	 * commit of the previous call.
+	 */
+	private DirCache getIndex(ObjectReader reader, RevCommit commit) throws IOException {
+		if(index == null || !Objects.equals(indexCommitId, commit)) {
+			index = DirCache.newInCore();
+			DirCacheBuilder builder = index.builder();
+			if(commit != null) {
+				builder.addTree(new byte[0], DirCacheEntry.STAGE_0, reader, commit.getTree());
+			}
+			builder.finish();
+			indexCommitId = commit != null ? commit.copy() : null;
+		}
+		return index;
+	}
+
 	private void commit(Git git, String message) throws GitException {
 		synchronized (gitLock) {
 			log.info("Commiting changes to local git repo");
@@ -186,8 +495,7 @@ public class JGitManager extends AbstractGitManager implements GitManager {
 		synchronized (gitLock) {
 			try {
 				log.info("Pushing changes to remote git repo");
-				PushResult pushResult = git.push()
-					.setCredentialsProvider(credentialProvider)
+				PushResult pushResult = configureTransport(git.push())
 					.call().iterator().next();
 
 				for(RemoteRefUpdate update : pushResult.getRemoteUpdates()) {
@@ -201,6 +509,125 @@ public class JGitManager extends AbstractGitManager implements GitManager {
 		}
 	}
 
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see nl.minicom.gitolite.manager.git.GitManager#resetToRemote()
+	 */
+	@Override
+	public void resetToRemote() throws IOException, GitException {
+		synchronized (gitLock) {
+			try {
+				log.info("Resetting to remote git repo");
+				if(bare) {
+					pendingChanges.clear();
+					updateToRemote(true);
+					return;
+				}
+				configureTransport(git.fetch())
+					.call();
+
+				git.reset()
+					.setMode(ResetType.HARD)
+					.setRef(getTrackingBranch(git.getRepository()))
+					.call();
+			} catch (NullPointerException e) {
+				throw new ServiceUnavailable(e);
+			} catch (GitAPIException | JGitInternalException e) {
+				throw new GitException(e);
+			}
+		}
+	}
+
+	/**
+	 * Read the files in a folder from the tree of {@code HEAD}, through an {@link ObjectReader},
+	 * without checking them out.
+	 *
+	 * @see GitManager#readFolder(String)
+	 */
+	@Override
+	public SortedMap<String, byte[]> readFolder(String folder) throws IOException {
+		return readFolder(Constants.HEAD, folder);
+	}
+
+	/**
+	 * Read the files in a folder from the tree of a revision.
+	 * @param revision The revision to read, for example a ref name.
+	 * @param folder The folder, relative to the root of the repository.
+	 * @return The contents of the files, by path relative to the folder. The map is empty
+	 *            if the revision or the folder does not exist.
+	 * @throws IOException If the object database could not be read.
+	 */
+	public SortedMap<String, byte[]> readFolder(String revision, String folder) throws IOException {
+		synchronized (gitLock) {
+			SortedMap<String, byte[]> files = new TreeMap<>();
+			Repository repository = git.getRepository();
+			ObjectId commitId = repository.resolve(revision);
+			if(commitId == null) {
+				return files;
+			}
+
+			try(ObjectReader reader = repository.newObjectReader();
+				RevWalk revWalk = new RevWalk(reader);
+				TreeWalk treeWalk = new TreeWalk(reader)) {
+				treeWalk.addTree(revWalk.parseCommit(commitId).getTree());
+				treeWalk.setRecursive(true);
+				treeWalk.setFilter(PathFilter.create(folder));
+
+				int prefix = folder.length() + 1;
+				while(treeWalk.next()) {
+					if(treeWalk.getPathLength() < prefix ||
+						(treeWalk.getRawMode(0) & FileMode.TYPE_MASK) != FileMode.TYPE_FILE) {
+						continue;
+					}
+					byte[] contents = reader.open(treeWalk.getObjectId(0), Constants.OBJ_BLOB).getBytes();
+					files.put(treeWalk.getPathString().substring(prefix), contents);
+				}
+			}
+			return files;
+		}
+	}
+
+	private static String getTrackingBranch(Repository repository) throws IOException {
+		String branch = repository.getBranch();
+		String trackingBranch = new BranchConfig(repository.getConfig(), branch).getTrackingBranch();
+		if(trackingBranch == null) {
+			trackingBranch = Constants.R_REMOTES + Constants.DEFAULT_REMOTE_NAME + "/" + branch;
+		}
+		return trackingBranch;
+	}
+
+	/**
+	 * Fetch the remote, and move the current branch of a bare repository to the remote branch.
+	 * @param force Whether the branch may be moved if it is not fast forwarded.
+	 * @return true if the branch was moved.
+	 */
+	private boolean updateToRemote(boolean force) throws IOException, GitAPIException {
+		Repository repository = git.getRepository();
+		ObjectId previousId = repository.resolve(Constants.HEAD);
+		configureTransport(git.fetch())
+			.call();
+
+		// Depending on the refspec, the fetch may already have updated the branch
+		ObjectId remoteId = repository.resolve(getTrackingBranch(repository));
+		if(remoteId != null && !remoteId.equals(repository.resolve(Constants.HEAD))) {
+			RefUpdate refUpdate = repository.updateRef(Constants.HEAD);
+			refUpdate.setNewObjectId(remoteId);
+			refUpdate.setForceUpdate(force);
+			refUpdate.setRefLogMessage(force ? "reset: moving to remote" : "pull: fast-forward", false);
+			RefUpdate.Result result = refUpdate.update();
+			switch(result) {
+				case NEW:
+				case FAST_FORWARD:
+				case FORCED:
+					break;
+				default:
+					throw new GitException("Cannot update to remote: " + result);
+			}
+		}
+		return !Objects.equals(previousId, repository.resolve(Constants.HEAD));
+	}
+
 	/**
 	 * Check if the push succedded (remote is either up to date or the push could be fast forwarded)
 	 * @param update {@code RemoteRefUpdate} to check
@@ -210,8 +637,13 @@ public class JGitManager extends AbstractGitManager implements GitManager {
 			case OK:
 			case UP_TO_DATE:
 				return;
+			case REJECTED_NONFASTFORWARD:
+			case REJECTED_REMOTE_CHANGED:
+				throw new PushRejectedException("Cannot push config to gitolite config: " + update.getStatus());
 			default:
-				throw new IllegalStateException("Cannot push config to gitolite config: " + update.getStatus());
+				// For example rejected by a hook, which would reject the push again after a rebase
+				throw new GitException(String.format("Cannot push config to gitolite config: %s (%s)",
+					update.getStatus(), update.getMessage()));
 		}
 	}
 
@@ -4,6 +4,7 @@ import lombok.Data;
 import org.eclipse.jgit.transport.CredentialsProvider;
 
 import java.io.File;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Jan-Willem Gmelig Meyling
@@ -13,9 +14,25 @@ public class JGitManagerFactory implements GitManagerFactory {
 
 	private CredentialsProvider credentialsProvider;
 
+	/**
+	 * Clone the administration repository as a bare repository, which is changed without
+	 * a working directory. Defaults to {@code false}.
+	 */
+	private boolean bare = false;
+
+	/**
+	 * Time in milliseconds that an idle SSH session stays open, or {@code 0} to open a new SSH
+	 * session for every operation. Defaults to {@code 0}.
+	 *
+	 * @see JGitManager#setSshSessionIdleTimeout(long, TimeUnit)
+	 */
+	private long sshSessionIdleTimeout = 0;
+
 	@Override
 	public JGitManager create(File repositoryFolder) {
-		return new JGitManager(repositoryFolder, credentialsProvider);
+		JGitManager gitManager = new JGitManager(repositoryFolder, credentialsProvider, bare);
+		gitManager.setSshSessionIdleTimeout(sshSessionIdleTimeout, TimeUnit.MILLISECONDS);
+		return gitManager;
 	}
 
 }
@@ -1,112 +1,433 @@
 package nl.tudelft.ewi.gitolite.git;
 
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A {@link GitManager} backed by the native Git application. Git should be available on the path.
  *
+ * <p>The output and errors of every process are read on background threads, so that a process
+ * never blocks on a full pipe. The errors are included in the {@link GitException} if the process
+ * fails. A process that runs longer than the {@link #setTimeout(String, long, TimeUnit) timeout}
+ * of its command, or whose caller is interrupted, is killed.</p>
+ *
+ * <p>Two options avoid starting a new process, and a new connection, for every operation. With
+ * {@link #setSshControlPersist(long, TimeUnit)}, SSH connections to the remote are multiplexed
+ * over a master connection that stays open between operations. Git 2.3 or newer is required.
+ * With {@link #setFastImport(boolean)}, {@link #commitChanges(Collection)} writes the commits
+ * to a long running {@code git fast-import} process. The index is then only updated when an
+ * operation needs it.</p>
+ *
  * @author Jan-Willem Gmelig Meyling
  */
 @Slf4j
-public class NativeGitManager extends AbstractGitManager implements GitManager {
+public class NativeGitManager extends AbstractGitManager implements GitManager, Closeable {
 
 	private static final String GIT = "git";
 
+	/**
+	 * Threads that read the output and errors of the processes.
+	 */
+	static final ExecutorService STREAM_READERS = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+		.setNameFormat("native-git-stream-%d")
+		.setDaemon(true)
+		.build());
+
+	/**
+	 * Timeouts in milliseconds by git command.
+	 */
+	private final Map<String, Long> timeouts = new ConcurrentHashMap<>();
+
+	/**
+	 * Timeout in milliseconds for commands without a timeout of their own, or {@code 0} to wait indefinitely.
+	 */
+	private volatile long defaultTimeout = 0;
+
+	/**
+	 * Time in seconds that an idle SSH master connection stays open, or {@code 0} to not multiplex connections.
+	 */
+	private volatile long sshControlPersist = 0;
+
+	/**
+	 * Folder for the sockets of the SSH master connections.
+	 */
+	private Path sshControlDirectory;
+
+	/**
+	 * Whether commits are written to a {@code git fast-import} process.
+	 */
+	private volatile boolean fastImport = false;
+
+	private FastImport fastImportProcess;
+
+	/**
+	 * Number of fast-import commits after which {@code git gc --auto} runs, to pack the small packs
+	 * that every checkpoint writes.
+	 */
+	private static final int FAST_IMPORT_GC_INTERVAL = 100;
+
+	/**
+	 * Whether the branch was committed to with {@code git fast-import} since the index was last updated.
+	 */
+	private boolean indexStale = false;
+
 	public NativeGitManager(File workingDirectory) {
 		super(workingDirectory);
 	}
 
+	/**
+	 * Set the timeout for commands that have no timeout of their own.
+	 * @param timeout The timeout, or {@code 0} to wait indefinitely.
+	 * @param unit The unit of the timeout.
+	 */
+	public void setDefaultTimeout(long timeout, TimeUnit unit) {
+		this.defaultTimeout = unit.toMillis(timeout);
+	}
+
+	/**
+	 * Set the timeout for a git command.
+	 * @param command The git command, for example {@code push}.
+	 * @param timeout The timeout, or {@code 0} to wait indefinitely.
+	 * @param unit The unit of the timeout.
+	 */
+	public void setTimeout(String command, long timeout, TimeUnit unit) {
+		timeouts.put(command, unit.toMillis(timeout));
+	}
+
+	/**
+	 * Multiplex the SSH connections to the remote over a master connection, which is kept open
+	 * while it is used, and for the given time after that. Ignored if {@code GIT_SSH} or
+	 * {@code GIT_SSH_COMMAND} is set.
+	 * @param timeout Time that an idle master connection stays open, or {@code 0} to not multiplex connections.
+	 *    SSH only supports whole seconds, so the time is rounded up to the next second.
+	 * @param unit The unit of the timeout.
+	 */
+	public void setSshControlPersist(long timeout, TimeUnit unit) {
+		Preconditions.checkArgument(timeout >= 0, "Negative timeout %s", timeout);
+		long millis = unit.toMillis(timeout);
+		this.sshControlPersist = millis / 1000 + (millis % 1000 > 0 ? 1 : 0);
+	}
+
+	/**
+	 * Write the commits of {@link #commitChanges(Collection)} to a long running {@code git fast-import}
+	 * process, instead of staging and committing them with two new processes.
+	 * @param fastImport Whether to use {@code git fast-import}.
+	 */
+	public void setFastImport(boolean fastImport) {
+		this.fastImport = fastImport;
+	}
+
 	@Override
 	public void open() {}
 
 	@Override
 	public void remove(String filePattern) throws IOException, GitException, InterruptedException {
-		ProcessBuilder processBuilder = new ProcessBuilder(GIT, "rm", filePattern).directory(workingDirectory);
-		Process process = processBuilder.start();
-
-		process.waitFor();
-		int exitValue = process.exitValue();
-
-		if(exitValue != 0) {
-			throw new GitException();
-		}
+		refreshIndex();
+		run("rm", filePattern).check();
 		log.info("Removed {} from {}", filePattern, workingDirectory);
 	}
 
 	@Override
 	public void clone(String uri) throws IOException, InterruptedException, GitException {
-		ProcessBuilder processBuilder = new ProcessBuilder(GIT, "clone", uri, workingDirectory.getAbsolutePath());
-		Process process = processBuilder.start();
-
-		IOUtils.lineIterator(process.getInputStream(), Charset.defaultCharset())
-			.forEachRemaining(log::info);
-
-		process.waitFor();
-		int exitValue = process.exitValue();
+		clone(uri, 0);
+	}
 
-		if(exitValue != 0) {
-			throw new GitException();
-		}
+	@Override
+	public void clone(String uri, int depth) throws IOException, InterruptedException, GitException {
+		Result result = depth > 0 ?
+			run("clone", "--depth", Integer.toString(depth), uri, workingDirectory.getAbsolutePath()) :
+			run("clone", uri, workingDirectory.getAbsolutePath());
+		result.check();
+		Splitter.on('\n').omitEmptyStrings().split(result.getOutput()).forEach(log::info);
 		log.info("Cloned {} into {}", uri, workingDirectory);
 	}
 
 	@Override
 	public void init() throws IOException, InterruptedException, GitException {
-		ProcessBuilder processBuilder = new ProcessBuilder(GIT, "init").directory(workingDirectory);
-		Process process = processBuilder.start();
-		process.waitFor();
-		int exitValue = process.exitValue();
-
-		if(exitValue != 0) {
-			throw new GitException();
-		}
+		run("init").check();
 		log.info("Initialized repository in {}", workingDirectory);
 	}
 
 	@Override
 	public boolean pull() throws IOException, InterruptedException, GitException {
-		ProcessBuilder processBuilder = new ProcessBuilder(GIT, "pull").directory(workingDirectory);
-		Process process = processBuilder.start();
-		process.waitFor();
-		int exitValue = process.exitValue();
-
-		if(exitValue != 0) {
-			throw new GitException();
-		}
+		refreshIndex();
+		run("pull").check();
 		log.info("Pulled remote changes into {}", workingDirectory);
 		return false;
 	}
 
+	/**
+	 * Stage all changes in the working directory, including new and deleted files, and commit them.
+	 *
+	 * @see GitManager#commitChanges()
+	 */
 	@Override
 	public void commitChanges() throws IOException, GitException, InterruptedException {
-		ProcessBuilder processBuilder = new ProcessBuilder(GIT, "commit", "-m", "Changed config...").directory(workingDirectory);
-		Process process = processBuilder.start();
-		process.waitFor();
-		int exitValue = process.exitValue();
+		refreshIndex();
+		run("add", "--all").check();
+		commit();
+	}
 
-		if(exitValue != 0) {
-			throw new GitException();
+	/**
+	 * Stage the given files with {@code git update-index}, which does not scan the rest of the
+	 * working directory, and commit them.
+	 *
+	 * @see GitManager#commitChanges(Collection)
+	 */
+	@Override
+	public void commitChanges(Collection<String> paths) throws IOException, GitException, InterruptedException {
+		if(fastImport) {
+			commitWithFastImport(paths);
+			return;
 		}
+		refreshIndex();
+		StringBuilder input = new StringBuilder();
+		for(String path : paths) {
+			input.append(path).append('\n');
+		}
+		runWithInput(input.toString(), "update-index", "--add", "--remove", "--stdin").check();
+		log.info("Staged {} changed files in {}", paths.size(), workingDirectory);
+		commit();
+	}
+
+	/**
+	 * Commit the staged changes.
+	 */
+	private void commit() throws IOException, GitException, InterruptedException {
+		run("commit", "-m", "Changed config...").check();
 		log.info("Committed changes in {}", workingDirectory);
 	}
 
 	@Override
 	public void push() throws GitException, IOException, InterruptedException {
-		ProcessBuilder processBuilder = new ProcessBuilder(GIT, "push").directory(workingDirectory);
-		Process process = processBuilder.start();
-		process.waitFor();
+		Result result = run("push");
+		if(result.getExitValue() != 0) {
+			String errors = result.getErrors();
+			// Only a non-fast-forward can succeed after a rebase, a rejection by a hook would be rejected again
+			if((errors.contains("[rejected]") || errors.contains("[remote rejected]"))
+					&& (errors.contains("non-fast-forward") || errors.contains("fetch first"))) {
+				throw new PushRejectedException(errors);
+			}
+			throw new GitException(errors);
+		}
+		log.info("Pushed changes in {} to remote", workingDirectory);
+	}
 
-		int exitValue = process.exitValue();
+	@Override
+	public void resetToRemote() throws IOException, InterruptedException, GitException {
+		run("fetch").check();
+		run("reset", "--hard", "@{u}").check();
+		synchronized (this) {
+			indexStale = false;
+		}
+		log.info("Reset {} to remote", workingDirectory);
+	}
 
-		if(exitValue != 0) {
-			throw new GitException();
+	private synchronized void commitWithFastImport(Collection<String> paths) throws IOException, GitException, InterruptedException {
+		if(fastImportProcess == null || !fastImportProcess.isAlive()) {
+			String ident = run("var", "GIT_COMMITTER_IDENT").check().getOutput().trim();
+			// Strip the timestamp and time zone
+			String committer = ident.substring(0, ident.lastIndexOf('>') + 1);
+			String branch = run("symbolic-ref", "HEAD").check().getOutput().trim();
+			boolean branchExists = run("rev-parse", "--verify", "--quiet", "HEAD").getExitValue() == 0;
+			fastImportProcess = new FastImport(processBuilder(Lists.newArrayList(GIT, "fast-import", "--quiet")),
+				branch, committer, branchExists);
 		}
-		log.info("Pushed changes in {} to remote", workingDirectory);
+
+		fastImportProcess.commit(workingDirectory, paths, "Changed config...",
+			timeouts.getOrDefault("fast-import", defaultTimeout));
+		indexStale = true;
+		log.info("Committed {} changed files in {} with fast-import", paths.size(), workingDirectory);
+
+		if(fastImportProcess.getCommits() % FAST_IMPORT_GC_INTERVAL == 0) {
+			run("gc", "--auto", "--quiet").check();
+		}
+	}
+
+	/**
+	 * Reset the index to the current commit, if commits were written with {@code git fast-import}
+	 * since the index was last updated. The working directory is not changed.
+	 */
+	private synchronized void refreshIndex() throws IOException, GitException, InterruptedException {
+		if(indexStale) {
+			run("reset", "--quiet").check();
+			indexStale = false;
+		}
+	}
+
+	/**
+	 * Run a git command in the working directory.
+	 * @param arguments The git command and its arguments.
+	 * @return the result of the process.
+	 * @throws IOException If the process could not be started.
+	 * @throws InterruptedException If the thread was interrupted. The process is killed.
+	 * @throws GitException If the process timed out. The process is killed.
+	 */
+	protected Result run(String... arguments) throws IOException, InterruptedException, GitException {
+		return runWithInput(null, arguments);
+	}
+
+	/**
+	 * Run a git command in the working directory.
+	 * @param input The input to write to the process, or {@code null}.
+	 * @param arguments The git command and its arguments.
+	 * @return the result of the process.
+	 * @throws IOException If the process could not be started.
+	 * @throws InterruptedException If the thread was interrupted. The process is killed.
+	 * @throws GitException If the process timed out. The process is killed.
+	 */
+	protected Result runWithInput(String input, String... arguments) throws IOException, InterruptedException, GitException {
+		List<String> command = Lists.asList(GIT, arguments);
+		Process process = processBuilder(command).start();
+
+		try {
+			CompletableFuture<String> output = read(process.getInputStream());
+			CompletableFuture<String> errors = read(process.getErrorStream());
+			try(Writer writer = new OutputStreamWriter(process.getOutputStream(), Charset.defaultCharset())) {
+				if(input != null) {
+					writer.write(input);
+				}
+			}
+
+			long timeout = timeouts.getOrDefault(arguments[0], defaultTimeout);
+			if(timeout <= 0) {
+				process.waitFor();
+			}
+			else if(!process.waitFor(timeout, TimeUnit.MILLISECONDS)) {
+				throw new GitException(String.format("%s timed out after %d ms", String.join(" ", command), timeout));
+			}
+			return new Result(process.exitValue(), output.join(), errors.join());
+		}
+		finally {
+			if(process.isAlive()) {
+				log.warn("Killing {} in {}", command, workingDirectory);
+				process.destroyForcibly();
+			}
+		}
+	}
+
+	private ProcessBuilder processBuilder(List<String> command) throws IOException, GitException {
+		File directory = null;
+		if(!"clone".equals(command.get(1))) {
+			// Running in another directory could change an unrelated repository
+			if(!workingDirectory.isDirectory()) {
+				throw new GitException(String.format("Working directory %s does not exist", workingDirectory));
+			}
+			directory = workingDirectory;
+		}
+		ProcessBuilder processBuilder = new ProcessBuilder(command).directory(directory);
+		Map<String, String> environment = processBuilder.environment();
+		if(sshControlPersist > 0 && !environment.containsKey("GIT_SSH") && !environment.containsKey("GIT_SSH_COMMAND")) {
+			environment.put("GIT_SSH_COMMAND", String.format(
+				"ssh -o ControlMaster=auto -o 'ControlPath=%s/%%C' -o ControlPersist=%d",
+				getSshControlDirectory(), sshControlPersist));
+		}
+		return processBuilder;
+	}
+
+	private synchronized Path getSshControlDirectory() throws IOException {
+		if(sshControlDirectory == null) {
+			sshControlDirectory = Files.createTempDirectory("gitolite-ssh-",
+				PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+		}
+		return sshControlDirectory;
+	}
+
+	/**
+	 * Stop the {@code git fast-import} process and the SSH master connections.
+	 * @throws IOException If an I/O error occurs.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if(fastImportProcess != null) {
+			fastImportProcess.close();
+			fastImportProcess = null;
+		}
+		if(sshControlDirectory != null) {
+			try(DirectoryStream<Path> sockets = Files.newDirectoryStream(sshControlDirectory)) {
+				for(Path socket : sockets) {
+					Process process = new ProcessBuilder("ssh", "-o", "ControlPath=" + socket, "-O", "exit", "gitolite")
+						.redirectErrorStream(true)
+						.start();
+					process.getInputStream().close();
+					try {
+						if(!process.waitFor(5, TimeUnit.SECONDS)) {
+							process.destroyForcibly();
+						}
+					}
+					catch (InterruptedException e) {
+						process.destroyForcibly();
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+			FileUtils.deleteQuietly(sshControlDirectory.toFile());
+			sshControlDirectory = null;
+		}
+	}
+
+	private static CompletableFuture<String> read(InputStream inputStream) {
+		return CompletableFuture.supplyAsync(() -> {
+			try(InputStream stream = inputStream) {
+				return IOUtils.toString(stream, Charset.defaultCharset());
+			}
+			catch (IOException e) {
+				// The stream is closed when the process is killed
+				throw new UncheckedIOException(e);
+			}
+		}, STREAM_READERS);
+	}
+
+	/**
+	 * The result of a git process.
+	 */
+	@Value
+	protected static class Result {
+
+		int exitValue;
+
+		String output;
+
+		String errors;
+
+		/**
+		 * @return this result.
+		 * @throws GitException with the errors of the process, if it failed.
+		 */
+		Result check() throws GitException {
+			if(exitValue != 0) {
+				throw new GitException(errors);
+			}
+			return this;
+		}
+
 	}
 
 }
@@ -1,17 +1,55 @@
 package nl.tudelft.ewi.gitolite.git;
 
+import lombok.Data;
+
 import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * {@link GitManager} implementation that returns a {@link NativeGitManager}.
  *
  * @author Jan-Willem Gmelig Meyling
  */
+@Data
 public class NativeGitManagerFactory implements GitManagerFactory {
 
+	/**
+	 * Timeout in milliseconds after which a git process is killed, or {@code 0} to wait
+	 * indefinitely. Defaults to {@code 0}.
+	 */
+	private long timeout = 0;
+
+	/**
+	 * Timeouts in milliseconds by git command, for example {@code push}, that override
+	 * the {@link #timeout}.
+	 */
+	private Map<String, Long> timeouts = new HashMap<>();
+
+	/**
+	 * Time in milliseconds that an idle SSH master connection stays open, or {@code 0} to open a
+	 * new SSH connection for every operation. Defaults to {@code 0}.
+	 *
+	 * @see NativeGitManager#setSshControlPersist(long, TimeUnit)
+	 */
+	private long sshControlPersist = 0;
+
+	/**
+	 * Write commits to a long running {@code git fast-import} process. Defaults to {@code false}.
+	 *
+	 * @see NativeGitManager#setFastImport(boolean)
+	 */
+	private boolean fastImport = false;
+
 	@Override
 	public NativeGitManager create(File repositoryFolder) {
-		return new NativeGitManager(repositoryFolder);
+		NativeGitManager gitManager = new NativeGitManager(repositoryFolder);
+		gitManager.setDefaultTimeout(timeout, TimeUnit.MILLISECONDS);
+		timeouts.forEach((command, timeout) -> gitManager.setTimeout(command, timeout, TimeUnit.MILLISECONDS));
+		gitManager.setSshControlPersist(sshControlPersist, TimeUnit.MILLISECONDS);
+		gitManager.setFastImport(fastImport);
+		return gitManager;
 	}
 
 }
@@ -0,0 +1,214 @@
+package nl.tudelft.ewi.gitolite.git;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.jgit.errors.TransportException;
+import org.eclipse.jgit.transport.CredentialsProvider;
+import org.eclipse.jgit.transport.RemoteSession;
+import org.eclipse.jgit.transport.SshSessionFactory;
+import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.util.FS;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link SshSessionFactory} that keeps the SSH sessions of another factory open after a
+ * transport is closed, so that the next fetch or push to the same host, as the same user and
+ * with the same {@link CredentialsProvider}, skips the handshake and authentication. Sessions
+ * that are not used for the idle timeout are disconnected. If a command cannot be started on
+ * a reused session, because the server closed it, a new session is opened.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+@Slf4j
+public class PooledSshSessionFactory extends SshSessionFactory implements Closeable {
+
+	private final SshSessionFactory delegate;
+
+	private final long idleTimeout;
+
+	/**
+	 * Sessions that are not used by a transport, most recently used first.
+	 */
+	private final Map<Key, Deque<PooledSession>> idleSessions = new HashMap<>();
+
+	private final ScheduledExecutorService evictor;
+
+	private boolean closed = false;
+
+	/**
+	 * Create a new {@code PooledSshSessionFactory}.
+	 * @param delegate The factory that opens the sessions.
+	 * @param idleTimeout Time after which an unused session is disconnected.
+	 * @param unit The unit of the timeout.
+	 */
+	public PooledSshSessionFactory(SshSessionFactory delegate, long idleTimeout, TimeUnit unit) {
+		this.delegate = delegate;
+		this.idleTimeout = unit.toNanos(idleTimeout);
+		this.evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+			.setNameFormat("ssh-session-evictor-%d")
+			.setDaemon(true)
+			.build());
+		long period = Math.max(unit.toMillis(idleTimeout) / 2, 1);
+		evictor.scheduleWithFixedDelay(this::evictIdleSessions, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public RemoteSession getSession(URIish uri, CredentialsProvider credentialsProvider, FS fs, int tms) throws TransportException {
+		Key key = new Key(uri.getUser(), uri.getHost(), uri.getPort(), credentialsProvider);
+		synchronized (idleSessions) {
+			Deque<PooledSession> sessions = idleSessions.get(key);
+			if(sessions != null && !sessions.isEmpty()) {
+				log.debug("Reusing SSH session to {}", uri.getHost());
+				PooledSession session = sessions.pollFirst();
+				session.reused = true;
+				return session;
+			}
+		}
+		log.debug("Opening SSH session to {}", uri.getHost());
+		return new PooledSession(key, uri, fs, tms, delegate.getSession(uri, credentialsProvider, fs, tms));
+	}
+
+	@Override
+	public void releaseSession(RemoteSession session) {
+		if(!(session instanceof PooledSession)) {
+			delegate.releaseSession(session);
+			return;
+		}
+		PooledSession pooledSession = (PooledSession) session;
+		synchronized (idleSessions) {
+			if(!closed) {
+				pooledSession.lastUsed = System.nanoTime();
+				idleSessions.computeIfAbsent(pooledSession.key, key -> new ArrayDeque<>()).addFirst(pooledSession);
+				return;
+			}
+		}
+		pooledSession.disconnect();
+	}
+
+	/**
+	 * @return the number of sessions that are open, but not used by a transport.
+	 */
+	public int getIdleSessions() {
+		synchronized (idleSessions) {
+			return idleSessions.values().stream().mapToInt(Deque::size).sum();
+		}
+	}
+
+	/**
+	 * Disconnect the sessions that were not used for the idle timeout.
+	 */
+	void evictIdleSessions() {
+		List<PooledSession> expired = new ArrayList<>();
+		long now = System.nanoTime();
+		synchronized (idleSessions) {
+			Iterator<Deque<PooledSession>> iterator = idleSessions.values().iterator();
+			while(iterator.hasNext()) {
+				Deque<PooledSession> sessions = iterator.next();
+				sessions.removeIf(session -> now - session.lastUsed >= idleTimeout && expired.add(session));
+				if(sessions.isEmpty()) {
+					iterator.remove();
+				}
+			}
+		}
+		if(!expired.isEmpty()) {
+			log.debug("Disconnecting {} idle SSH sessions", expired.size());
+			expired.forEach(PooledSession::disconnect);
+		}
+	}
+
+	/**
+	 * Disconnect the idle sessions. Sessions that are in use are disconnected when they are released.
+	 */
+	@Override
+	public void close() {
+		List<PooledSession> sessions = new ArrayList<>();
+		synchronized (idleSessions) {
+			closed = true;
+			idleSessions.values().forEach(sessions::addAll);
+			idleSessions.clear();
+		}
+		evictor.shutdownNow();
+		sessions.forEach(PooledSession::disconnect);
+	}
+
+	@Value
+	private static class Key {
+
+		String user;
+
+		String host;
+
+		int port;
+
+		CredentialsProvider credentialsProvider;
+
+	}
+
+	/**
+	 * A session that is returned to the pool when it is released.
+	 */
+	private class PooledSession implements RemoteSession {
+
+		private final Key key;
+
+		private final URIish uri;
+
+		private final FS fs;
+
+		private final int tms;
+
+		private RemoteSession session;
+
+		private volatile long lastUsed;
+
+		/**
+		 * Whether the session was taken from the pool, and may have been closed by the server.
+		 */
+		private volatile boolean reused;
+
+		PooledSession(Key key, URIish uri, FS fs, int tms, RemoteSession session) {
+			this.key = key;
+			this.uri = uri;
+			this.fs = fs;
+			this.tms = tms;
+			this.session = session;
+		}
+
+		@Override
+		public Process exec(String commandName, int timeout) throws IOException {
+			try {
+				return session.exec(commandName, timeout);
+			}
+			catch (IOException e) {
+				if(!reused) {
+					throw e;
+				}
+				log.debug("Reused SSH session to {} was closed, opening a new session", uri.getHost(), e);
+				reused = false;
+				session.disconnect();
+				session = delegate.getSession(uri, key.getCredentialsProvider(), fs, tms);
+				return session.exec(commandName, timeout);
+			}
+		}
+
+		@Override
+		public void disconnect() {
+			session.disconnect();
+		}
+
+	}
+
+}
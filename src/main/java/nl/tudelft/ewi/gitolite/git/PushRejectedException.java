@@ -0,0 +1,17 @@
+package nl.tudelft.ewi.gitolite.git;
+
+/**
+ * Thrown when the remote rejects a push because it contains commits that are not in the
+ * local repository, for example because another client pushed in the meantime.
+ * The push may succeed after {@link GitManager#resetToRemote() resetting} to the remote
+ * and reapplying the changes.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+public class PushRejectedException extends GitException {
+
+	public PushRejectedException(String message) {
+		super(message);
+	}
+
+}
@@ -0,0 +1,177 @@
+package nl.tudelft.ewi.gitolite.keystore;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.TreeMultimap;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import nl.tudelft.ewi.gitolite.git.GitManager;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * {@link KeyStore} implementation that reads and writes the key files through a {@link GitManager}.
+ * A {@link nl.tudelft.ewi.gitolite.git.JGitManager JGitManager} reads the key files from the tree
+ * of the last commit, so the key folder does not have to be checked out, and a bare
+ * {@code JGitManager} commits the keys that are put or deleted without a working directory.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+@EqualsAndHashCode(of = "keyMultimap")
+public class GitKeyStore implements KeyStore {
+
+	private final GitManager gitManager;
+
+	/**
+	 * The key folder, relative to the root of the repository.
+	 */
+	private final String folder;
+
+	private final Multimap<String, GitKey> keyMultimap;
+
+	private long version = 0;
+
+	/**
+	 * Paths of the key files, relative to the key folder, that were written or deleted since the
+	 * last {@link #pollChangedFiles()}.
+	 */
+	private final Set<String> changedFiles = new TreeSet<>();
+
+	public GitKeyStore(final GitManager gitManager, final String folder) throws IOException {
+		this.gitManager = gitManager;
+		this.folder = folder;
+		this.keyMultimap = TreeMultimap.create();
+		scan();
+	}
+
+	@Override
+	public void scan() throws IOException {
+		keyMultimap.clear();
+		for(Map.Entry<String, byte[]> file : gitManager.readFolder(folder).entrySet()) {
+			String path = file.getKey();
+			if(path.substring(path.lastIndexOf('/') + 1).contains(KeyStoreImpl.PUB_FILE_EXT)) {
+				GitKey key = new GitKey(folder + "/" + path, firstLine(file.getValue()));
+				keyMultimap.put(key.getUser(), key);
+			}
+		}
+		version++;
+	}
+
+	private static String firstLine(byte[] contents) {
+		String string = new String(contents, Charset.defaultCharset());
+		int end = 0;
+		while(end < string.length() && string.charAt(end) != '\n' && string.charAt(end) != '\r') {
+			end++;
+		}
+		return string.substring(0, end);
+	}
+
+	@Override
+	public GitKey getKey(String user, String name) {
+		return keyMultimap.get(user).stream()
+			.filter(key -> key.getName().equals(name))
+			.findAny().get();
+	}
+
+	@Override
+	public Collection<GitKey> getKeys(String user) {
+		return keyMultimap.get(user);
+	}
+
+	@Override
+	public GitKey put(Key draft) throws IOException {
+		for (Key key : keyMultimap.get(draft.getUser())) {
+			if (key.getName().equals(draft.getName()) ||
+				key.getContents().equals(draft.getContents())) {
+				throw new IllegalArgumentException("Duplicate key: " + draft);
+			}
+		}
+
+		KeyStoreImpl.validateKey(draft);
+		StringBuilder builder = new StringBuilder(folder).append('/');
+		builder.append(draft.getUser());
+		if (!Strings.isNullOrEmpty(draft.getName())) {
+			builder.append(KeyStoreImpl.KEY_NAME_SEPARATOR).append(draft.getName());
+		}
+		builder.append(KeyStoreImpl.PUB_FILE_EXT);
+
+		GitKey key = new GitKey(builder.toString(), draft.getContents());
+		gitManager.writeFile(key.getPath(), key.getContents().getBytes(Charset.defaultCharset()));
+		fileChanged(key.getPath());
+
+		keyMultimap.put(key.getUser(), key);
+		version++;
+		return key;
+	}
+
+	@Override
+	public Collection<String> getUsers() {
+		return Collections.unmodifiableCollection(keyMultimap.keys());
+	}
+
+	@Override
+	public long getVersion() {
+		return version;
+	}
+
+	@Override
+	public Collection<String> pollChangedFiles() {
+		synchronized (changedFiles) {
+			List<String> files = new ArrayList<>(changedFiles);
+			changedFiles.clear();
+			return files;
+		}
+	}
+
+	private void fileChanged(String path) {
+		synchronized (changedFiles) {
+			changedFiles.add(path.substring(folder.length() + 1));
+		}
+	}
+
+	@Data
+	protected class GitKey implements PersistedKey {
+
+		/**
+		 * Path of the key file, relative to the root of the repository.
+		 */
+		private final String path;
+
+		private final String contents;
+
+		@Override
+		public String getUser() {
+			return getFileNameParts()[0];
+		}
+
+		@Override
+		public String getName() {
+			String[] parts = getFileNameParts();
+			return parts.length > 1 ? parts[1] : EMPTY_KEY_NAME;
+		}
+
+		protected String[] getFileNameParts() {
+			String fileName = path.substring(path.lastIndexOf('/') + 1);
+			fileName = fileName.substring(0, fileName.indexOf(KeyStoreImpl.PUB_FILE_EXT));
+			return fileName.split(KeyStoreImpl.KEY_NAME_SEPARATOR);
+		}
+
+		@Override
+		public void delete() throws IOException {
+			gitManager.deleteFile(path);
+			fileChanged(path);
+			keyMultimap.remove(getUser(), this);
+			version++;
+		}
+
+	}
+
+}
@@ -42,4 +42,20 @@ public interface KeyStore {
 	 */
 	void scan() throws IOException;
 
+	/**
+	 * The version of this key store is incremented whenever keys are added, deleted or scanned.
+	 * @return the modification version of this key store.
+	 */
+	long getVersion();
+
+	/**
+	 * Get the key files that were written or deleted since the previous call, so that
+	 * only those files have to be committed.
+	 * @return the paths of the files relative to the key folder, or {@code null} if this
+	 * key store does not track the files that it changes.
+	 */
+	default Collection<String> pollChangedFiles() {
+		return null;
+	}
+
 }
@@ -21,8 +21,12 @@ import java.nio.charset.Charset;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
@@ -31,7 +35,7 @@ import java.util.stream.StreamSupport;
  *
  * @author Jan-Willem Gmelig Meyling
  */
-@EqualsAndHashCode
+@EqualsAndHashCode(exclude = {"version", "changedFiles"})
 public class KeyStoreImpl implements KeyStore {
 
 	public static final String PUB_FILE_EXT = ".pub";
@@ -41,6 +45,13 @@ public class KeyStoreImpl implements KeyStore {
 
 	private final Multimap<String, KeyImpl> keyMultimap;
 
+	private long version = 0;
+
+	/**
+	 * Names of the key files that were written or deleted since the last {@link #pollChangedFiles()}.
+	 */
+	private final Set<String> changedFiles = new TreeSet<>();
+
 	public KeyStoreImpl(final File folder) {
 		this.keyMultimap = TreeMultimap.create();
 		this.folder = folder.toPath();
@@ -48,10 +59,15 @@ public class KeyStoreImpl implements KeyStore {
 	}
 
 	public void scan() {
+		// The keys are read from the folder again, so the files that changed before are no longer pending
+		synchronized (changedFiles) {
+			changedFiles.clear();
+		}
 		keyMultimap.clear();
 		filesAsStream(folder)
 			.filter(path -> path.getFileName().toString().contains(PUB_FILE_EXT))
 			.map(KeyImpl::new).forEach(key -> keyMultimap.put(key.getUser(), key));
+		version++;
 	}
 
 	@SneakyThrows
@@ -107,13 +123,25 @@ public class KeyStoreImpl implements KeyStore {
 		try(Writer writer = Files.newBufferedWriter(path)) {
 			writer.write(draft.getContents());
 		}
+		fileChanged(path);
 
 		KeyImpl key = new KeyImpl(path);
 		keyMultimap.put(draft.getUser(), key);
+		version++;
 		return key;
 	}
 
 	protected void validate(Key key) throws IOException {
+		validateKey(key);
+	}
+
+	/**
+	 * Check that a key has a name, and contents that contain a valid public key.
+	 * @param key the key to validate.
+	 * @throws IOException if the contents could not be read.
+	 * @throws IllegalArgumentException if the key is not valid.
+	 */
+	static void validateKey(Key key) throws IOException {
 		Preconditions.checkNotNull(key.getName());
 		String content = Preconditions.checkNotNull(key.getContents());
 		try {
@@ -132,6 +160,26 @@ public class KeyStoreImpl implements KeyStore {
 		return Collections.unmodifiableCollection(keyMultimap.keys());
 	}
 
+	@Override
+	public long getVersion() {
+		return version;
+	}
+
+	@Override
+	public Collection<String> pollChangedFiles() {
+		synchronized (changedFiles) {
+			List<String> files = new ArrayList<>(changedFiles);
+			changedFiles.clear();
+			return files;
+		}
+	}
+
+	private void fileChanged(Path path) {
+		synchronized (changedFiles) {
+			changedFiles.add(path.getFileName().toString());
+		}
+	}
+
 	@Data
 	@RequiredArgsConstructor
 	protected class KeyImpl implements PersistedKey {
@@ -168,7 +216,9 @@ public class KeyStoreImpl implements KeyStore {
 		@Override
 		public void delete() throws IOException {
 			Files.delete(getPath());
+			fileChanged(getPath());
 			keyMultimap.remove(getUser(), this);
+			version++;
 		}
 
 	}
@@ -0,0 +1,107 @@
+package nl.tudelft.ewi.gitolite.keystore;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * A {@link KeyStore} that is loaded in the background. Key lookups and modifications wait
+ * until the {@code KeyStore} is loaded, but the {@link LazyKeyStore#getVersion() version}
+ * is available immediately: it starts at {@code 0} and is not affected by the initial load.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+public class LazyKeyStore implements KeyStore {
+
+	private final CompletableFuture<? extends KeyStore> delegate;
+
+	/**
+	 * Version of the delegate right after it was loaded.
+	 */
+	private final CompletableFuture<Long> initialVersion;
+
+	/**
+	 * Create a new {@code LazyKeyStore}.
+	 * @param delegate A future that completes with the loaded {@code KeyStore}.
+	 */
+	public LazyKeyStore(CompletableFuture<? extends KeyStore> delegate) {
+		this.delegate = Preconditions.checkNotNull(delegate);
+		this.initialVersion = delegate.thenApply(KeyStore::getVersion);
+	}
+
+	/**
+	 * @return true if the {@code KeyStore} is loaded.
+	 */
+	public boolean isLoaded() {
+		return delegate.isDone();
+	}
+
+	/**
+	 * Wait until the {@code KeyStore} is loaded.
+	 * @return the loaded {@code KeyStore}.
+	 * @throws IOException If the {@code KeyStore} could not be loaded.
+	 */
+	public KeyStore await() throws IOException {
+		try {
+			return delegate.join();
+		}
+		catch (CompletionException e) {
+			Throwables.propagateIfPossible(e.getCause(), IOException.class);
+			throw e;
+		}
+	}
+
+	private KeyStore get() {
+		try {
+			return await();
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Failed to load the key store", e);
+		}
+	}
+
+	@Override
+	public PersistedKey getKey(String user, String name) {
+		return get().getKey(user, name);
+	}
+
+	@Override
+	public Collection<? extends PersistedKey> getKeys(String user) {
+		return get().getKeys(user);
+	}
+
+	@Override
+	public PersistedKey put(Key key) throws IOException {
+		return await().put(key);
+	}
+
+	@Override
+	public Collection<String> getUsers() {
+		return get().getUsers();
+	}
+
+	@Override
+	public void scan() throws IOException {
+		await().scan();
+	}
+
+	@Override
+	public long getVersion() {
+		if(!initialVersion.isDone() || initialVersion.isCompletedExceptionally()) {
+			return 0;
+		}
+		return get().getVersion() - initialVersion.join();
+	}
+
+	@Override
+	public Collection<String> pollChangedFiles() {
+		// Keys can only be changed after the key store is loaded
+		return isLoaded() ? get().pollChangedFiles() : Collections.emptyList();
+	}
+
+}
@@ -25,19 +25,21 @@ public class Identifier implements Identifiable {
 	 * Get an identifier. As {@code Identifiers} should be immutable, they are stored in a
 	 * {@code WeakHashMap} for caching purposes. This method tries to find {@code Identifiers}
 	 * in the cache first, and only creates a new instance if not. Therefore, this method is
-	 * preferred over using a constructor.
+	 * preferred over using a constructor. This method is thread safe.
 	 *
 	 * @param name Name for the identifier.
 	 * @return Identifier
 	 */
 	public static Identifier valueOf(String name) {
-		WeakReference<Identifier> ref = identifiableMap.get(name);
-		Identifier identifiable;
-		if(ref == null || (identifiable = ref.get()) == null) {
-			identifiable = new Identifier(name);
-			identifiableMap.put(name, new WeakReference<>(identifiable));
+		synchronized (identifiableMap) {
+			WeakReference<Identifier> ref = identifiableMap.get(name);
+			Identifier identifiable;
+			if(ref == null || (identifiable = ref.get()) == null) {
+				identifiable = new Identifier(name);
+				identifiableMap.put(name, new WeakReference<>(identifiable));
+			}
+			return identifiable;
 		}
-		return identifiable;
 	}
 
 }
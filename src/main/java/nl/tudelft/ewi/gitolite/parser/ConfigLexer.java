@@ -0,0 +1,406 @@
+package nl.tudelft.ewi.gitolite.parser;
+
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+/**
+ * Lexer for gitolite configuration files. The lexer operates on a {@code char} array, and
+ * only describes the current token by its offsets in the array. Strings are only created when
+ * the {@link ConfigLexer#value() value} of a token is requested, and are interned per lexer, so
+ * that repeated identifiers share a single {@code String}. A lexer over a {@code Reader} reads the
+ * input in chunks, and the interner is bounded, so that arbitrarily large inputs can be streamed.
+ *
+ * <p>The tokens are the same as those of the {@link java.io.StreamTokenizer} that was previously
+ * used: words consist of the printable ASCII characters and characters from {@code Ā},
+ * quoted strings are delimited by single or double quotes and support the same escape sequences,
+ * {@code #} starts a comment until the end of the line, and other characters are skipped.</p>
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+class ConfigLexer {
+
+	/**
+	 * Type of the token at the end of the input.
+	 */
+	static final int EOF = -1;
+
+	/**
+	 * Type of a line break token.
+	 */
+	static final int EOL = '\n';
+
+	/**
+	 * Type of a word token.
+	 */
+	static final int WORD = -3;
+
+	/**
+	 * Type of a quoted string token.
+	 */
+	static final int QUOTED = -4;
+
+	private static final int INITIAL_INTERNER_SIZE = 256;
+
+	/**
+	 * Maximum number of interned strings. The interner is cleared when it is full, so that
+	 * lexing a large input does not retain every distinct identifier.
+	 */
+	private static final int MAX_INTERNED = 1 << 16;
+
+	/**
+	 * Number of characters that is read from a {@code Reader} at once.
+	 */
+	private static final int CHUNK_SIZE = 8192;
+
+	private Reader reader;
+
+	private char[] buffer;
+
+	private int position;
+
+	private int limit;
+
+	/**
+	 * Type of the current token.
+	 */
+	private int type;
+
+	/**
+	 * Array that holds the characters of the current token. This is the input buffer, unless
+	 * the token is a quoted string with escape sequences.
+	 */
+	private char[] tokenBuffer;
+
+	private int tokenStart;
+
+	private int tokenEnd;
+
+	/**
+	 * Offset of the first character of the current token in the input, including the quote.
+	 */
+	private int offset;
+
+	/**
+	 * Offset of the first character of the token that is being read, or {@code -1}. The
+	 * characters from the mark are kept when the buffer is refilled.
+	 */
+	private int mark = -1;
+
+	private boolean pushedBack;
+
+	/**
+	 * Buffer for quoted strings with escape sequences.
+	 */
+	private char[] scratch = new char[64];
+
+	private String[] interned = new String[INITIAL_INTERNER_SIZE];
+
+	private int internedCount;
+
+	/**
+	 * Create a lexer that reads from a {@code Reader} in chunks. Only the current token is kept
+	 * in memory, so the memory use does not depend on the size of the input.
+	 * @param reader The reader to read from.
+	 */
+	ConfigLexer(Reader reader) {
+		this.reader = Preconditions.checkNotNull(reader);
+		this.buffer = new char[CHUNK_SIZE];
+	}
+
+	/**
+	 * Create a lexer over the remaining characters in a {@code CharBuffer}. If the buffer is
+	 * backed by an array, the array is used directly.
+	 * @param chars The characters to tokenize.
+	 */
+	ConfigLexer(CharBuffer chars) {
+		if(chars.hasArray()) {
+			this.buffer = chars.array();
+			this.position = chars.arrayOffset() + chars.position();
+			this.limit = chars.arrayOffset() + chars.limit();
+		}
+		else {
+			this.buffer = new char[chars.remaining()];
+			chars.duplicate().get(buffer);
+			this.limit = buffer.length;
+		}
+	}
+
+	/**
+	 * Read the next chunk from the {@code Reader}. The characters before the {@link #mark}, or
+	 * before the position if there is no mark, are discarded.
+	 * @return false if there are no more characters.
+	 * @throws IOException If the input could not be read.
+	 */
+	private boolean fill() throws IOException {
+		if(reader == null) {
+			return false;
+		}
+		int keep = mark >= 0 ? mark : position;
+		if(keep > 0) {
+			System.arraycopy(buffer, keep, buffer, 0, limit - keep);
+			limit -= keep;
+			position -= keep;
+			if(mark >= 0) {
+				mark = 0;
+			}
+		}
+		if(limit == buffer.length) {
+			// The current token does not fit in the buffer
+			buffer = Arrays.copyOf(buffer, buffer.length * 2);
+		}
+		int read = reader.read(buffer, limit, buffer.length - limit);
+		if(read < 0) {
+			reader = null;
+			return false;
+		}
+		limit += read;
+		return true;
+	}
+
+	private boolean available() throws IOException {
+		return position < limit || fill();
+	}
+
+	private static boolean isWordChar(char c) {
+		return c >= 33 && c <= 126 && c != '#' && c != '\'' && c != '"' || c >= 256;
+	}
+
+	/**
+	 * Read the next token.
+	 * @return the type of the token: {@link #EOF}, {@link #EOL}, {@link #WORD} or {@link #QUOTED}.
+	 * @throws IOException If the input could not be read.
+	 */
+	int nextToken() throws IOException {
+		if(pushedBack) {
+			pushedBack = false;
+			return type;
+		}
+
+		while(available()) {
+			char c = buffer[position];
+			if(c == '\n') {
+				position++;
+				return type = EOL;
+			}
+			else if(isWordChar(c)) {
+				mark = position++;
+				while(available() && isWordChar(buffer[position])) {
+					position++;
+				}
+				setToken(WORD, buffer, mark, position);
+				return type;
+			}
+			else if(c == '\'' || c == '"') {
+				mark = position++;
+				return readQuoted(c);
+			}
+			else if(c == '#') {
+				while(available() && buffer[position] != '\n' && buffer[position] != '\r') {
+					position++;
+				}
+			}
+			else {
+				position++;
+			}
+		}
+		return type = EOF;
+	}
+
+	private int readQuoted(char quote) throws IOException {
+		while(available()) {
+			char c = buffer[position];
+			if(c == quote) {
+				setToken(QUOTED, buffer, mark + 1, position++);
+				return type;
+			}
+			else if(c == '\n' || c == '\r') {
+				setToken(QUOTED, buffer, mark + 1, position);
+				return type;
+			}
+			else if(c == '\\') {
+				position = mark + 1;
+				return readEscapedQuoted(quote);
+			}
+			position++;
+		}
+		setToken(QUOTED, buffer, mark + 1, position);
+		return type;
+	}
+
+	/**
+	 * Read a quoted string with escape sequences, in the same way as {@link java.io.StreamTokenizer}.
+	 */
+	private int readEscapedQuoted(char quote) throws IOException {
+		int length = 0;
+		int d = read();
+		while(d >= 0 && d != quote && d != '\n' && d != '\r') {
+			int c;
+			if(d == '\\') {
+				c = read();
+				int first = c;
+				if(c >= '0' && c <= '7') {
+					c = c - '0';
+					int c2 = read();
+					if('0' <= c2 && c2 <= '7') {
+						c = (c << 3) + (c2 - '0');
+						c2 = read();
+						if('0' <= c2 && c2 <= '7' && first <= '3') {
+							c = (c << 3) + (c2 - '0');
+							d = read();
+						}
+						else {
+							d = c2;
+						}
+					}
+					else {
+						d = c2;
+					}
+				}
+				else {
+					switch (c) {
+						case 'a': c = 0x7; break;
+						case 'b': c = '\b'; break;
+						case 'f': c = 0xC; break;
+						case 'n': c = '\n'; break;
+						case 'r': c = '\r'; break;
+						case 't': c = '\t'; break;
+						case 'v': c = 0xB; break;
+					}
+					d = read();
+				}
+			}
+			else {
+				c = d;
+				d = read();
+			}
+			if(length == scratch.length) {
+				scratch = Arrays.copyOf(scratch, scratch.length * 2);
+			}
+			scratch[length++] = (char) c;
+		}
+		if(d >= 0 && d != quote) {
+			// Line breaks end the string, but are tokens themselves
+			position--;
+		}
+		setToken(QUOTED, scratch, 0, length);
+		return type;
+	}
+
+	private int read() throws IOException {
+		return available() ? buffer[position++] : -1;
+	}
+
+	/**
+	 * Set the current token, and release the {@link #mark}.
+	 */
+	private void setToken(int type, char[] tokenBuffer, int start, int end) {
+		this.offset = mark;
+		this.mark = -1;
+		this.type = type;
+		this.tokenBuffer = tokenBuffer;
+		this.tokenStart = start;
+		this.tokenEnd = end;
+	}
+
+	/**
+	 * Return the current token again on the next call to {@link #nextToken()}.
+	 */
+	void pushBack() {
+		pushedBack = true;
+	}
+
+	/**
+	 * @return the offset of the first character of the current word or quoted string in the
+	 *    input. A lexer that starts at this offset reads the same token. Only meaningful for
+	 *    lexers over a {@code CharBuffer}, as a {@code Reader} is read in chunks.
+	 */
+	int getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Check whether the current word or quoted string starts with a prefix, without creating a {@code String}.
+	 * @param prefix The prefix.
+	 * @return true if the current token starts with the prefix.
+	 */
+	boolean startsWith(String prefix) {
+		int length = prefix.length();
+		if(tokenEnd - tokenStart < length) {
+			return false;
+		}
+		for(int i = 0; i < length; i++) {
+			if(tokenBuffer[tokenStart + i] != prefix.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the interned value of the current word or quoted string.
+	 */
+	String value() {
+		int hash = 0;
+		for(int i = tokenStart; i < tokenEnd; i++) {
+			hash = 31 * hash + tokenBuffer[i];
+		}
+
+		int mask = interned.length - 1;
+		int index = mix(hash) & mask;
+		for(String candidate; (candidate = interned[index]) != null; index = (index + 1) & mask) {
+			if(candidate.hashCode() == hash && matches(candidate)) {
+				return candidate;
+			}
+		}
+
+		String value = new String(tokenBuffer, tokenStart, tokenEnd - tokenStart);
+		interned[index] = value;
+		if(++internedCount * 2 > interned.length) {
+			if(internedCount >= MAX_INTERNED) {
+				Arrays.fill(interned, null);
+				internedCount = 0;
+			}
+			else {
+				rehash();
+			}
+		}
+		return value;
+	}
+
+	private boolean matches(String candidate) {
+		int length = tokenEnd - tokenStart;
+		if(candidate.length() != length) {
+			return false;
+		}
+		for(int i = 0; i < length; i++) {
+			if(candidate.charAt(i) != tokenBuffer[tokenStart + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int mix(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+
+	private void rehash() {
+		String[] old = interned;
+		interned = new String[old.length * 2];
+		int mask = interned.length - 1;
+		for(String value : old) {
+			if(value != null) {
+				int index = mix(value.hashCode()) & mask;
+				while(interned[index] != null) {
+					index = (index + 1) & mask;
+				}
+				interned[index] = value;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,72 @@
+package nl.tudelft.ewi.gitolite.parser;
+
+import nl.tudelft.ewi.gitolite.permission.Permission;
+
+import java.util.List;
+
+/**
+ * Receives the statements of a gitolite configuration while it is
+ * {@link TokenizerBasedParser#accept(ConfigVisitor) streamed}, without building the rules.
+ * Identifiers are passed as they appear in the configuration, so group references start with
+ * {@code @} and are not resolved. The lists are only valid during the call.
+ *
+ * <p>All methods do nothing by default, so that visitors only implement the events they need.</p>
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+public interface ConfigVisitor {
+
+	/**
+	 * Called for a group definition.
+	 * @param name The name of the group, including the {@code @}.
+	 * @param members The members and groups that are added to the group.
+	 */
+	default void onGroup(String name, List<String> members) {
+	}
+
+	/**
+	 * Called at the start of a repository block.
+	 * @param patterns The repositories and repository groups of the block.
+	 */
+	default void onRepoStart(List<String> patterns) {
+	}
+
+	/**
+	 * Called for an access rule in a repository block.
+	 * @param permission The permission.
+	 * @param refex The refex, or {@code null} if the rule applies to all refs.
+	 * @param members The users and groups that the rule applies to.
+	 */
+	default void onAccessRule(Permission permission, String refex, List<String> members) {
+	}
+
+	/**
+	 * Called for a {@code config} line in a repository block.
+	 * @param key The configuration key.
+	 * @param value The value.
+	 */
+	default void onConfigKey(String key, String value) {
+	}
+
+	/**
+	 * Called for an {@code option} line in a repository block.
+	 * @param option The option, without the {@code gitolite-options.} prefix.
+	 * @param value The value.
+	 */
+	default void onOption(String option, String value) {
+	}
+
+	/**
+	 * Called at the end of a repository block.
+	 */
+	default void onRepoEnd() {
+	}
+
+	/**
+	 * Called for an {@code include} statement, before the included files are visited.
+	 * @param pattern The pattern of the files to include.
+	 */
+	default void onInclude(String pattern) {
+	}
+
+}
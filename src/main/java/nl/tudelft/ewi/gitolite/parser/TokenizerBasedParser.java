@@ -1,7 +1,9 @@
 package nl.tudelft.ewi.gitolite.parser;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import nl.tudelft.ewi.gitolite.config.Config;
 import nl.tudelft.ewi.gitolite.config.ConfigImpl;
 import nl.tudelft.ewi.gitolite.objects.Identifiable;
@@ -14,44 +16,107 @@ import nl.tudelft.ewi.gitolite.parser.rules.AccessRule;
 import nl.tudelft.ewi.gitolite.parser.rules.RepositoryRule;
 import nl.tudelft.ewi.gitolite.permission.Permission;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
-import java.io.StreamTokenizer;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * @author Jan-Willem Gmelig Meyling
  */
 public class TokenizerBasedParser {
 
-	private final StreamTokenizer streamTokenizer;
-	private final Map<String, GroupRule> groupRuleMap = Maps.newHashMap();
+	/**
+	 * Number of repository blocks that a fork/join task parses without splitting.
+	 */
+	private static final int PARALLEL_THRESHOLD = 256;
 
-	private boolean eof = false;
+	/**
+	 * Size in bytes from which a file is mapped into memory instead of read onto the heap.
+	 */
+	private static final long MAPPED_READ_THRESHOLD = 16L * 1024 * 1024;
+
+	private final ConfigLexer lexer;
+	private final Map<String, GroupRule> groupRuleMap;
+	private final Includes includes;
+
+	/**
+	 * Partition of the rules that are parsed by this parser.
+	 */
+	private final String partition;
 
+	/**
+	 * Create a parser that streams from a {@code Reader}. The reader is read in chunks, so
+	 * {@link #accept(ConfigVisitor)} and {@link #rules()} do not keep the input in memory.
+	 * @param reader The reader to parse.
+	 */
 	public TokenizerBasedParser(final Reader reader) {
-		streamTokenizer = new StreamTokenizer(reader);
-		streamTokenizer.resetSyntax();
-		// Set everything as word char
-		streamTokenizer.wordChars(33, 126);
-		// Allow strings within quotes
-		streamTokenizer.quoteChar('\'');
-		streamTokenizer.quoteChar('\"');
-		// EOL is significant
-		streamTokenizer.eolIsSignificant(true);
-		// Slice off comments
-		streamTokenizer.commentChar('#');
+		this(reader, new Includes(null), Config.MAIN_PARTITION);
+	}
+
+	/**
+	 * Create a parser that streams from a {@code Reader}, sharing the included files with another parser.
+	 * @param reader The reader to parse.
+	 * @param includes The included files.
+	 * @param partition The partition of the rules in the reader.
+	 */
+	private TokenizerBasedParser(final Reader reader, final Includes includes, final String partition) {
+		this.lexer = new ConfigLexer(reader);
+		this.groupRuleMap = Maps.newHashMap();
+		this.includes = includes;
+		this.partition = partition;
 	}
 
 	/**
-	 * Check if there is a next token on the {@code StreamTokenizer}.
+	 * Create a parser over the remaining characters in a {@code CharBuffer}. If the buffer is
+	 * backed by an array, the characters are not copied.
+	 * @param chars The characters to parse.
+	 */
+	public TokenizerBasedParser(final CharBuffer chars) {
+		this(chars, Maps.newHashMap(), new Includes(null), Config.MAIN_PARTITION);
+	}
+
+	/**
+	 * Create a parser that resolves group references against an existing group table.
+	 * @param chars The characters to parse.
+	 * @param groupRuleMap The groups that are defined before the characters.
+	 * @param includes The included files.
+	 * @param partition The partition of the rules in the characters.
+	 */
+	private TokenizerBasedParser(final CharBuffer chars, final Map<String, GroupRule> groupRuleMap,
+	                             final Includes includes, final String partition) {
+		this.lexer = new ConfigLexer(chars);
+		this.groupRuleMap = groupRuleMap;
+		this.includes = includes;
+		this.partition = partition;
+	}
+
+	/**
+	 * Check if there is a next token.
 	 * @return true if there is a new token
 	 * @throws IOException IO exception if a new token cannot be read.
 	 */
@@ -60,7 +125,7 @@ public class TokenizerBasedParser {
 	}
 
 	/**
-	 * Check if there is a next token on the {@code StreamTokenizer}.
+	 * Check if there is a next token that starts with a pattern.
 	 * @param pattern a pattern to search for.
 	 * @return true if there is a next token and it matches the pattern.
 	 * @throws IOException IO exception if a new token cannot be read.
@@ -68,9 +133,9 @@ public class TokenizerBasedParser {
 	protected boolean hasNext(String pattern) throws IOException {
 		boolean val = false;
 		if(hasNext()) {
-			String next = next();
-			val = next.startsWith(pattern);
-			streamTokenizer.pushBack();
+			lexer.nextToken();
+			val = lexer.startsWith(pattern);
+			lexer.pushBack();
 		}
 		return val;
 	}
@@ -82,28 +147,22 @@ public class TokenizerBasedParser {
 	 * @throws IOException IO exception if a new token cannot be read.
 	 */
 	protected boolean hasNext(boolean sameLine) throws IOException {
-		for(int token; !eof;) {
-			token = streamTokenizer.nextToken();
-			switch (token) {
-				case StreamTokenizer.TT_EOF:
-					eof = true;
+		for(;;) {
+			switch (lexer.nextToken()) {
+				case ConfigLexer.EOF:
 					return false;
-				case StreamTokenizer.TT_EOL:
+				case ConfigLexer.EOL:
 					if(sameLine) {
 						return false;
 					}
 					else {
 						continue;
 					}
-				case '\"': // Double quoted strings
-				case '\'': // Single quoted strings
-				case StreamTokenizer.TT_WORD:
-				case StreamTokenizer.TT_NUMBER:
-					streamTokenizer.pushBack();
+				default:
+					lexer.pushBack();
 					return true;
 			}
 		}
-		return false;
 	}
 
 	/**
@@ -122,16 +181,9 @@ public class TokenizerBasedParser {
 	 * @throws IOException If the next token could not be read.
 	 */
 	protected String next(boolean sameLine) throws IOException {
-		for(int token; hasNext(sameLine);) {
-			token = streamTokenizer.nextToken();
-			switch (token) {
-				case '\"': // Double quoted strings
-				case '\'': // Single quoted strings
-				case StreamTokenizer.TT_WORD:
-					return streamTokenizer.sval;
-				case StreamTokenizer.TT_NUMBER:
-					return Long.toString(Math.round(streamTokenizer.nval));
-			}
+		if(hasNext(sameLine)) {
+			lexer.nextToken();
+			return lexer.value();
 		}
 		throw new NoSuchElementException();
 	}
@@ -257,7 +309,7 @@ public class TokenizerBasedParser {
 		List<ConfigKey> configKeys = Lists.newArrayList();
 
 		for(;;) {
-			if(hasNext("repo") || hasNext("@")) break;
+			if(hasNext("repo") || hasNext("@") || hasNext("include")) break;
 			else if(hasNext("config")) configKeys.add(parseConfigRule());
 			else if(hasNext("option")) configKeys.add(parseOption());
 			else if(hasNext()) rules.add(parseAccessRule());
@@ -267,6 +319,31 @@ public class TokenizerBasedParser {
 		return new RepositoryRule(identifiables, rules, configKeys);
 	}
 
+	/**
+	 * Skip a {@link RepositoryRule} without creating its rules.
+	 * @throws IOException  if the next token could not be read.
+	 */
+	protected void skipRepositoryRule() throws IOException {
+		next("repo");
+		skipLine();
+
+		for(;;) {
+			if(hasNext("repo") || hasNext("@") || hasNext("include")) break;
+			else if(hasNext()) skipLine();
+			else break;
+		}
+	}
+
+	/**
+	 * Skip the remaining tokens on the current line.
+	 * @throws IOException  if the next token could not be read.
+	 */
+	private void skipLine() throws IOException {
+		while(hasNext(true)) {
+			lexer.nextToken();
+		}
+	}
+
 	/**
 	 * Parse rules and put them in a collection.
 	 * @param rules Collection to add the parsed rules to.
@@ -284,10 +361,184 @@ public class TokenizerBasedParser {
 	 */
 	public void parse(final Collection<? super RepositoryRule> repositoryRules, final Collection<? super GroupRule> groupRules) throws IOException {
 		for(;;) {
-			if(hasNext("repo")) repositoryRules.add(parseRepositoryRule());
+			if(hasNext("repo")) repositoryRules.add(includes.add(parseRepositoryRule(), partition));
 			else if(hasNext("@")) groupRules.add(parseGroupRule());
+			else if(hasNext("include")) parseInclude(repositoryRules, groupRules);
+			else break;
+		}
+	}
+
+	/**
+	 * Parse an {@code include} statement, and the rules in the files that it includes. The pattern
+	 * in the statement is a glob, relative to the folder of the main configuration file. Files are
+	 * included in alphabetical order, and at most once. If the parser does not read from a file,
+	 * only the pattern is recorded.
+	 * @param repositoryRules Collection to add the parsed {@link RepositoryRule} rules to.
+	 * @param groupRules Collection to add the parsed {@link GroupRule} rules to.
+	 * @throws IOException if an included file could not be parsed.
+	 */
+	protected void parseInclude(final Collection<? super RepositoryRule> repositoryRules, final Collection<? super GroupRule> groupRules) throws IOException {
+		next("include");
+		String pattern = next(true);
+		for(String name : includes.resolve(pattern)) {
+			TokenizerBasedParser parser = new TokenizerBasedParser(
+				includes.read(name), groupRuleMap, includes, name);
+			parser.parse(repositoryRules, groupRules);
+		}
+	}
+
+	/**
+	 * Stream the statements to a {@link ConfigVisitor}, without building the rules. A parser over a
+	 * {@code Reader} only keeps the current line in memory. Included files are visited after the
+	 * {@link ConfigVisitor#onInclude(String) include} event if the parser reads from a file.
+	 * @param visitor The visitor.
+	 * @throws IOException if the document could not be parsed.
+	 */
+	public void accept(final ConfigVisitor visitor) throws IOException {
+		List<String> tokens = Lists.newArrayList();
+		for(;;) {
+			if(hasNext("repo")) {
+				acceptRepositoryRule(visitor, tokens);
+			}
+			else if(hasNext("@")) {
+				String name = next();
+				next("=");
+				readLine(tokens);
+				visitor.onGroup(name, tokens);
+			}
+			else if(hasNext("include")) {
+				next("include");
+				String pattern = next(true);
+				visitor.onInclude(pattern);
+				for(String name : includes.resolve(pattern)) {
+					try(Reader reader = includes.newReader(name)) {
+						new TokenizerBasedParser(reader, includes, name).accept(visitor);
+					}
+				}
+			}
+			else break;
+		}
+	}
+
+	private void acceptRepositoryRule(final ConfigVisitor visitor, final List<String> tokens) throws IOException {
+		next("repo");
+		readLine(tokens);
+		visitor.onRepoStart(tokens);
+
+		for(;;) {
+			if(hasNext("repo") || hasNext("@") || hasNext("include")) break;
+			else if(hasNext("config")) {
+				next("config");
+				String key = next(true);
+				next("=");
+				visitor.onConfigKey(key, next(true));
+			}
+			else if(hasNext("option")) {
+				next("option");
+				String option = next(true);
+				next("=");
+				visitor.onOption(option, next(true));
+			}
+			else if(hasNext()) {
+				Permission permission = Permission.valueOf(next());
+				String refex = next();
+				if(refex.equals("=")) {
+					refex = null;
+				}
+				else {
+					next("=");
+				}
+				readLine(tokens);
+				visitor.onAccessRule(permission, refex, tokens);
+			}
 			else break;
 		}
+
+		visitor.onRepoEnd();
+	}
+
+	/**
+	 * Read the remaining tokens on the current line.
+	 * @param tokens List that is cleared and filled with the tokens.
+	 * @throws IOException  if the next token could not be read.
+	 */
+	private void readLine(final List<String> tokens) throws IOException {
+		tokens.clear();
+		while(hasNext(true)) {
+			tokens.add(next());
+		}
+	}
+
+	/**
+	 * Iterate over the rules, parsing every rule when it is requested. Only the group rules are
+	 * retained, as repository rules may refer to them. {@code include} statements are skipped.
+	 * @return an iterator over the {@link GroupRule GroupRules} and {@link RepositoryRule RepositoryRules}.
+	 *    The iterator throws an {@code UncheckedIOException} if the document could not be read.
+	 */
+	public Iterator<Rule> rules() {
+		return new Iterator<Rule>() {
+
+			@Override
+			public boolean hasNext() {
+				try {
+					return hasNextRule();
+				}
+				catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+
+			@Override
+			public Rule next() {
+				try {
+					return nextRule();
+				}
+				catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+
+		};
+	}
+
+	private boolean hasNextRule() throws IOException {
+		for(;;) {
+			if(hasNext("repo") || hasNext("@")) {
+				return true;
+			}
+			else if(hasNext("include")) {
+				next("include");
+				next(true);
+			}
+			else {
+				return false;
+			}
+		}
+	}
+
+	private Rule nextRule() throws IOException {
+		if(!hasNextRule()) {
+			throw new NoSuchElementException();
+		}
+		return hasNext("repo") ? parseRepositoryRule() : parseGroupRule();
+	}
+
+	/**
+	 * Stream the statements in a file, and the files it includes, to a {@link ConfigVisitor}.
+	 * @param configurationFile file to parse
+	 * @param visitor the visitor
+	 * @throws IOException if the document could not be parsed.
+	 * @see #accept(ConfigVisitor)
+	 */
+	public static void accept(final File configurationFile, final ConfigVisitor visitor) throws IOException {
+		Includes includes = new Includes(configurationFile.getAbsoluteFile().getParentFile());
+		try(Reader reader = newReader(configurationFile)) {
+			new TokenizerBasedParser(reader, includes, Config.MAIN_PARTITION).accept(visitor);
+		}
+	}
+
+	private static Reader newReader(final File file) throws IOException {
+		return new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8);
 	}
 
 	/**
@@ -297,15 +548,307 @@ public class TokenizerBasedParser {
 	 * @throws IOException if the document could not be parsed.
 	 */
 	public static Config parse(final File configurationFile) throws IOException {
+		Includes includes = new Includes(configurationFile.getAbsoluteFile().getParentFile());
+		return parse(read(configurationFile), includes);
+	}
+
+	private static Config parse(final CharBuffer chars, final Includes includes) throws IOException {
 		List<GroupRule> groupRules = Lists.newArrayList();
 		List<RepositoryRule> repositoryRules = Lists.newArrayList();
 
-		try(BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(new FileInputStream(configurationFile)))) {
-			TokenizerBasedParser parser = new TokenizerBasedParser(bufferedReader);
-			parser.parse(repositoryRules, groupRules);
+		TokenizerBasedParser parser = new TokenizerBasedParser(chars,
+			Maps.newHashMap(), includes, Config.MAIN_PARTITION);
+		parser.parse(repositoryRules, groupRules);
+
+		return includes.createConfig(groupRules, repositoryRules);
+	}
+
+	/**
+	 * Parse a Config from a file, optionally {@link #parseParallel(CharBuffer) in parallel}.
+	 * @param configurationFile file to parse
+	 * @param parallel whether to parse the repository blocks in parallel
+	 * @return the parsed config
+	 * @throws IOException if the document could not be parsed.
+	 */
+	public static Config parse(final File configurationFile, final boolean parallel) throws IOException {
+		if(!parallel) {
+			return parse(configurationFile);
+		}
+		Includes includes = new Includes(configurationFile.getAbsoluteFile().getParentFile());
+		return parseParallel(read(configurationFile), includes);
+	}
+
+	/**
+	 * Parse a Config from the contents of the files in the configuration folder, for example as
+	 * read from a git tree. The main configuration file is {@link Config#MAIN_PARTITION}, and
+	 * {@code include} statements are resolved against the other files.
+	 * @param files the contents of the files, by path relative to the configuration folder
+	 * @param parallel whether to parse the repository blocks in parallel
+	 * @return the parsed config
+	 * @throws IOException if the document could not be parsed.
+	 */
+	public static Config parse(final Map<String, byte[]> files, final boolean parallel) throws IOException {
+		if(!files.containsKey(Config.MAIN_PARTITION)) {
+			throw new FileNotFoundException(Config.MAIN_PARTITION);
 		}
+		Includes includes = new Includes(files);
+		CharBuffer chars = includes.read(Config.MAIN_PARTITION);
+		return parallel ? parseParallel(chars, includes) : parse(chars, includes);
+	}
 
-		return new ConfigImpl(groupRules, repositoryRules);
+	/**
+	 * Parse a Config, parsing the repository blocks in parallel on the common {@code ForkJoinPool}.
+	 *
+	 * <p>A first pass parses the group definitions, and only finds the offsets of the repository
+	 * blocks. The repository blocks are then parsed as fork/join tasks, against a read-only copy
+	 * of the groups that were defined before them. The resulting config contains the rules in the
+	 * same order as {@link #parse(Collection, Collection)}.</p>
+	 *
+	 * @param chars the characters to parse
+	 * @return the parsed config
+	 * @throws IOException if the document could not be parsed.
+	 */
+	public static Config parseParallel(final CharBuffer chars) throws IOException {
+		return parseParallel(chars, new Includes(null));
+	}
+
+	private static Config parseParallel(final CharBuffer chars, final Includes includes) throws IOException {
+		final CharBuffer input = chars.hasArray() ? chars : CharBuffer.wrap(chars.toString());
+		final char[] array = input.array();
+		final int limit = input.arrayOffset() + input.limit();
+
+		List<GroupRule> groupRules = Lists.newArrayList();
+		List<Block> blocks = Lists.newArrayList();
+
+		TokenizerBasedParser scanner = new TokenizerBasedParser(input, Maps.newHashMap(), includes, Config.MAIN_PARTITION);
+		Map<String, GroupRule> groupTable = null;
+		for(;;) {
+			if(scanner.hasNext("repo")) {
+				if(groupTable == null) {
+					groupTable = ImmutableMap.copyOf(scanner.groupRuleMap);
+				}
+				// hasNext leaves the repo token as the current token
+				Block block = new Block(scanner.lexer.getOffset(), groupTable);
+				scanner.skipRepositoryRule();
+				block.end = scanner.hasNext() ? scanner.lexer.getOffset() : limit;
+				blocks.add(block);
+			}
+			else if(scanner.hasNext("@")) {
+				groupRules.add(scanner.parseGroupRule());
+				groupTable = null;
+			}
+			else if(scanner.hasNext("include")) {
+				// Included files are parsed sequentially, and may define groups
+				List<RepositoryRule> included = Lists.newArrayList();
+				scanner.parseInclude(included, groupRules);
+				included.forEach(repositoryRule -> blocks.add(new Block(repositoryRule)));
+				groupTable = null;
+			}
+			else break;
+		}
+
+		class ParseBlocks extends RecursiveAction {
+
+			private final int from, to;
+
+			ParseBlocks(int from, int to) {
+				this.from = from;
+				this.to = to;
+			}
+
+			@Override
+			protected void compute() {
+				if(to - from > PARALLEL_THRESHOLD) {
+					int middle = (from + to) >>> 1;
+					invokeAll(new ParseBlocks(from, middle), new ParseBlocks(middle, to));
+					return;
+				}
+				for(int i = from; i < to; i++) {
+					Block block = blocks.get(i);
+					if(block.repositoryRule != null) {
+						continue;
+					}
+					TokenizerBasedParser parser = new TokenizerBasedParser(
+						CharBuffer.wrap(array, block.start, block.end - block.start),
+						block.groupTable, includes, Config.MAIN_PARTITION);
+					try {
+						block.repositoryRule = parser.parseRepositoryRule();
+					}
+					catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}
+			}
+
+		}
+
+		try {
+			new ParseBlocks(0, blocks.size()).invoke();
+		}
+		catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+
+		List<RepositoryRule> repositoryRules = blocks.stream()
+			.map(block -> block.repositoryRule)
+			.collect(Collectors.toList());
+		return includes.createConfig(groupRules, repositoryRules);
+	}
+
+	/**
+	 * A repository block that is parsed by {@link #parseParallel(CharBuffer)}.
+	 */
+	private static class Block {
+
+		private final int start;
+
+		private int end;
+
+		/**
+		 * The groups that are defined before the block.
+		 */
+		private final Map<String, GroupRule> groupTable;
+
+		private RepositoryRule repositoryRule;
+
+		Block(int start, Map<String, GroupRule> groupTable) {
+			this.start = start;
+			this.groupTable = groupTable;
+		}
+
+		/**
+		 * Create a block for a repository rule that is already parsed.
+		 */
+		Block(RepositoryRule repositoryRule) {
+			this(-1, null);
+			this.repositoryRule = repositoryRule;
+		}
+
+	}
+
+	/**
+	 * The files that are included while a configuration is parsed, and the partitions of the
+	 * repository rules that are parsed from them.
+	 */
+	private static class Includes {
+
+		/**
+		 * Folder of the main configuration file, or {@code null} if the configuration is not
+		 * read from a file.
+		 */
+		private final File folder;
+
+		/**
+		 * Contents of the files in the configuration folder, if the configuration is read from
+		 * memory instead of from a folder.
+		 */
+		private final Map<String, byte[]> files;
+
+		private final List<String> patterns = Lists.newArrayList();
+
+		private final Set<String> partitionNames = Sets.newLinkedHashSet();
+
+		private final Map<RepositoryRule, String> partitions = Maps.newIdentityHashMap();
+
+		Includes(File folder) {
+			this.folder = folder;
+			this.files = null;
+		}
+
+		Includes(Map<String, byte[]> files) {
+			this.folder = null;
+			this.files = files;
+		}
+
+		/**
+		 * Record the partition of a repository rule.
+		 * @return the repository rule.
+		 */
+		RepositoryRule add(RepositoryRule repositoryRule, String partition) {
+			if(!Config.MAIN_PARTITION.equals(partition)) {
+				partitions.put(repositoryRule, partition);
+			}
+			return repositoryRule;
+		}
+
+		/**
+		 * Record an {@code include} pattern, and find the files that it includes for the first time.
+		 * @return the names of the files, relative to the folder.
+		 */
+		List<String> resolve(String pattern) throws IOException {
+			if(!patterns.contains(pattern)) {
+				patterns.add(pattern);
+			}
+			PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+			if(files != null) {
+				return files.keySet().stream()
+					.filter(name -> matcher.matches(Paths.get(name)))
+					.filter(name -> !Config.MAIN_PARTITION.equals(name))
+					.sorted()
+					.filter(partitionNames::add)
+					.collect(Collectors.toList());
+			}
+			if(folder == null) {
+				return Collections.emptyList();
+			}
+			Path root = folder.toPath();
+			try(Stream<Path> paths = Files.walk(root)) {
+				return paths.filter(Files::isRegularFile)
+					.map(root::relativize)
+					.filter(matcher::matches)
+					.map(path -> path.toString().replace(File.separatorChar, '/'))
+					.filter(name -> !Config.MAIN_PARTITION.equals(name))
+					.sorted()
+					.filter(partitionNames::add)
+					.collect(Collectors.toList());
+			}
+		}
+
+		/**
+		 * @return the characters in a file, relative to the folder.
+		 */
+		CharBuffer read(String name) throws IOException {
+			if(files != null) {
+				return StandardCharsets.UTF_8.decode(ByteBuffer.wrap(files.get(name)));
+			}
+			return TokenizerBasedParser.read(new File(folder, name));
+		}
+
+		/**
+		 * @return a reader for a file, relative to the folder.
+		 */
+		Reader newReader(String name) throws IOException {
+			if(files != null) {
+				return new InputStreamReader(new ByteArrayInputStream(files.get(name)), StandardCharsets.UTF_8);
+			}
+			return TokenizerBasedParser.newReader(new File(folder, name));
+		}
+
+		Config createConfig(List<GroupRule> groupRules, List<RepositoryRule> repositoryRules) {
+			return new ConfigImpl(groupRules, repositoryRules, partitions, partitionNames, patterns);
+		}
+
+	}
+
+	/**
+	 * Read a file and decode it as UTF-8. Files of {@link #MAPPED_READ_THRESHOLD} bytes or more
+	 * are mapped into memory, so that they are not copied onto the heap before they are decoded.
+	 *
+	 * <p>A mapping is only released when the buffer is garbage collected. On Windows a mapped
+	 * file cannot be replaced or deleted until then, so a configuration file of that size may
+	 * not be replaced directly after it was parsed.</p>
+	 *
+	 * @param file file to read
+	 * @return the characters in the file
+	 * @throws IOException if the file could not be read.
+	 */
+	static CharBuffer read(final File file) throws IOException {
+		if(file.length() < MAPPED_READ_THRESHOLD) {
+			return StandardCharsets.UTF_8.decode(ByteBuffer.wrap(Files.readAllBytes(file.toPath())));
+		}
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return StandardCharsets.UTF_8.decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
 	}
 
 }
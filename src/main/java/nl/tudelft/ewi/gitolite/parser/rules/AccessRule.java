@@ -157,11 +157,7 @@ public class AccessRule implements Writable {
 
 	@Override
 	public void write(final Writer writer) throws IOException {
-		String tempRexes = refex == null ? "" : refex;
-		writer.write(String.format("    %-7s %-7s = ", permission.valueOf(), tempRexes));
-		members.write(writer);
-		writer.write('\n');
-		writer.flush();
+		new ConfigSerializer(128).append(this).writeTo(writer);
 	}
 
 	@Override
@@ -40,9 +40,7 @@ public class ConfigKey implements Rule {
 
 	@Override
 	public void write(Writer writer) throws IOException {
-		writer.write(toString());
-		writer.write('\n');
-		writer.flush();
+		new ConfigSerializer(128).append(this).writeTo(writer);
 	}
 
 	protected String escapeValue() {
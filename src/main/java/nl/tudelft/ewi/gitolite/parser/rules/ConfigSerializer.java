@@ -0,0 +1,305 @@
+package nl.tudelft.ewi.gitolite.parser.rules;
+
+import nl.tudelft.ewi.gitolite.objects.Identifiable;
+import nl.tudelft.ewi.gitolite.objects.Identifier;
+import org.apache.commons.io.output.StringBuilderWriter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Serializes rules in the gitolite configuration format. The rules are appended to a single
+ * buffer, which is written and flushed once by {@link #writeTo(Writer)}, and then reused for
+ * the next rules. Columns are padded by hand instead of through {@code String.format}.
+ *
+ * <p>A {@link #setCanonical(boolean) canonical} serializer sorts the repository names of a
+ * repository rule and the members of group and access rules, whose order has no meaning to gitolite.</p>
+ *
+ * <p>A {@code ConfigSerializer} is not thread safe.</p>
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+public class ConfigSerializer {
+
+	private static final int DEFAULT_CAPACITY = 8192;
+
+	/**
+	 * Width of the group name column in a group rule.
+	 */
+	private static final int GROUP_PATTERN_WIDTH = 20;
+
+	/**
+	 * Width of the permission and refex columns in an access rule.
+	 */
+	private static final int ACCESS_RULE_COLUMN_WIDTH = 7;
+
+	private static final String INDENT = "    ";
+
+	private final StringBuilder buffer;
+
+	/**
+	 * Chunk used to copy the buffer to a writer, without creating a {@code String}.
+	 */
+	private char[] chunk;
+
+	/**
+	 * Whether repository names and members are sorted.
+	 */
+	private boolean canonical = false;
+
+	public ConfigSerializer() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Create a new {@code ConfigSerializer}.
+	 * @param capacity The initial capacity of the buffer.
+	 */
+	public ConfigSerializer(int capacity) {
+		this.buffer = new StringBuilder(capacity);
+	}
+
+	/**
+	 * @param canonical Whether repository names and members are sorted.
+	 * @return this serializer.
+	 */
+	public ConfigSerializer setCanonical(boolean canonical) {
+		this.canonical = canonical;
+		return this;
+	}
+
+	/**
+	 * Append a rule.
+	 * @param rule The rule to append.
+	 * @return this serializer.
+	 */
+	public ConfigSerializer append(Rule rule) {
+		if(rule instanceof GroupRule) {
+			return append((GroupRule) rule);
+		}
+		else if(rule instanceof RepositoryRule) {
+			return append((RepositoryRule) rule);
+		}
+		else if(rule instanceof ConfigKey) {
+			return append((ConfigKey) rule);
+		}
+		try {
+			rule.write(new StringBuilderWriter(buffer));
+		}
+		catch (IOException e) {
+			// Writing to a StringBuilder does not throw
+			throw new IllegalStateException(e);
+		}
+		return this;
+	}
+
+	/**
+	 * Append a group rule, for example {@code @group = member}.
+	 * @param groupRule The group rule to append.
+	 * @return this serializer.
+	 */
+	public ConfigSerializer append(GroupRule groupRule) {
+		if(groupRule == GroupRule.ALL) {
+			return this;
+		}
+		pad(groupRule.getPattern(), GROUP_PATTERN_WIDTH);
+		buffer.append("=   ");
+		appendPatterns(groupRule.getGroups(), groupRule.getMembers());
+		buffer.append('\n');
+		return this;
+	}
+
+	/**
+	 * Append a repository rule, with its access rules and config keys.
+	 * @param repositoryRule The repository rule to append.
+	 * @return this serializer.
+	 */
+	public ConfigSerializer append(RepositoryRule repositoryRule) {
+		buffer.append("\nrepo");
+		List<Identifiable> identifiables = repositoryRule.getIdentifiables();
+		if(canonical) {
+			for(String pattern : sortedPatterns(identifiables)) {
+				buffer.append(' ').append(pattern);
+			}
+		}
+		else {
+			for(Identifiable identifiable : identifiables) {
+				buffer.append(' ').append(identifiable.getPattern());
+			}
+		}
+		buffer.append('\n');
+		List<AccessRule> rules = repositoryRule.getRules();
+		List<ConfigKey> configKeys = repositoryRule.getConfigKeys();
+		for(AccessRule rule : rules) {
+			append(rule);
+		}
+		if(!rules.isEmpty() && !configKeys.isEmpty()) {
+			buffer.append('\n');
+		}
+		for(ConfigKey configKey : configKeys) {
+			append(configKey);
+		}
+		return this;
+	}
+
+	/**
+	 * Append an access rule, for example {@code RW+ master = user}.
+	 * @param accessRule The access rule to append.
+	 * @return this serializer.
+	 */
+	public ConfigSerializer append(AccessRule accessRule) {
+		String refex = accessRule.getRefex();
+		buffer.append(INDENT);
+		pad(accessRule.getPermission().valueOf(), ACCESS_RULE_COLUMN_WIDTH);
+		buffer.append(' ');
+		pad(refex == null ? "" : refex, ACCESS_RULE_COLUMN_WIDTH);
+		buffer.append(" = ");
+		appendMembers(accessRule.getMembers());
+		buffer.append('\n');
+		return this;
+	}
+
+	/**
+	 * Append the groups and members of an inline user group, separated by spaces.
+	 * @param members The members to append.
+	 * @return this serializer.
+	 */
+	public ConfigSerializer appendMembers(InlineUserGroup members) {
+		appendPatterns(members.getGroups(), members.getMembers());
+		return this;
+	}
+
+	/**
+	 * Append a config key or option.
+	 * @param configKey The config key to append.
+	 * @return this serializer.
+	 */
+	public ConfigSerializer append(ConfigKey configKey) {
+		buffer.append(INDENT);
+		if(configKey instanceof Option) {
+			buffer.append("option ").append(((Option) configKey).getOption());
+		}
+		else {
+			buffer.append("config ").append(configKey.getKey());
+		}
+		buffer.append(" = ");
+		appendValue(configKey.getValue());
+		buffer.append('\n');
+		return this;
+	}
+
+	/**
+	 * Append an {@code include} statement.
+	 * @param include The pattern of the included files.
+	 * @return this serializer.
+	 */
+	public ConfigSerializer appendInclude(String include) {
+		buffer.append("include \"").append(include).append("\"\n");
+		return this;
+	}
+
+	/**
+	 * Write the buffer to a writer, flush the writer and clear the buffer.
+	 * @param writer The writer to write to.
+	 * @throws IOException If an IO error occurs.
+	 */
+	public void writeTo(Writer writer) throws IOException {
+		try {
+			int length = buffer.length();
+			if(chunk == null || chunk.length < Math.min(length, DEFAULT_CAPACITY)) {
+				chunk = new char[Math.min(length, DEFAULT_CAPACITY)];
+			}
+			for(int offset = 0; offset < length; offset += chunk.length) {
+				int end = Math.min(offset + chunk.length, length);
+				buffer.getChars(offset, end, chunk, 0);
+				writer.write(chunk, 0, end - offset);
+			}
+			writer.flush();
+		}
+		finally {
+			reset();
+		}
+	}
+
+	/**
+	 * Clear the buffer, keeping its capacity.
+	 */
+	public void reset() {
+		buffer.setLength(0);
+	}
+
+	/**
+	 * @return the contents of the buffer.
+	 */
+	@Override
+	public String toString() {
+		return buffer.toString();
+	}
+
+	private void appendPatterns(List<GroupRule> groups, List<Identifier> members) {
+		if(canonical) {
+			appendSorted(sortedPatterns(groups), sortedPatterns(members));
+			return;
+		}
+		boolean first = true;
+		for(GroupRule group : groups) {
+			if(!first) {
+				buffer.append(' ');
+			}
+			buffer.append(group.getPattern());
+			first = false;
+		}
+		for(Identifier member : members) {
+			if(!first) {
+				buffer.append(' ');
+			}
+			buffer.append(member.getPattern());
+			first = false;
+		}
+	}
+
+	private void appendSorted(String[] groups, String[] members) {
+		boolean first = true;
+		for(String[] patterns : new String[][] { groups, members }) {
+			for(String pattern : patterns) {
+				if(!first) {
+					buffer.append(' ');
+				}
+				buffer.append(pattern);
+				first = false;
+			}
+		}
+	}
+
+	private static String[] sortedPatterns(List<? extends Identifiable> identifiables) {
+		String[] patterns = new String[identifiables.size()];
+		for(int i = 0; i < patterns.length; i++) {
+			patterns[i] = identifiables.get(i).getPattern();
+		}
+		Arrays.sort(patterns);
+		return patterns;
+	}
+
+	private void appendValue(String value) {
+		if(value.indexOf(' ') < 0) {
+			buffer.append(value);
+		}
+		else {
+			char quote = value.indexOf('"') < 0 ? '"' : '\'';
+			buffer.append(quote).append(value).append(quote);
+		}
+	}
+
+	/**
+	 * Append a value, followed by spaces up to the width.
+	 */
+	private void pad(String value, int width) {
+		buffer.append(value);
+		for(int i = value.length(); i < width; i++) {
+			buffer.append(' ');
+		}
+	}
+
+}
@@ -1,6 +1,5 @@
 package nl.tudelft.ewi.gitolite.parser.rules;
 
-import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 import lombok.Builder;
@@ -132,18 +131,13 @@ public class GroupRule implements RecursiveAndPrototypeStreamingGroup<GroupRule,
 
 	@Override
 	public void write(Writer writer) throws IOException {
-		writer.write(String.format("%-20s=   %s\n", pattern, Joiner.on(' ').join(Stream.concat(getOwnGroupsStream(), getOwnMembersStream())
-			.map(Identifiable::getPattern)
-			.iterator())));
-		writer.flush();
+		new ConfigSerializer(128).append(this).writeTo(writer);
 	}
 
 
 	@Override
 	public String toString() {
-		return (String.format("%-20s=   %s\n", pattern, Joiner.on(' ').join(Stream.concat(getOwnGroupsStream(), getOwnMembersStream())
-			.map(Identifiable::getPattern)
-			.iterator())));
+		return new ConfigSerializer(128).append(this).toString();
 	}
 
 }
@@ -0,0 +1,146 @@
+package nl.tudelft.ewi.gitolite.parser.rules;
+
+import nl.tudelft.ewi.gitolite.objects.Identifiable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Objects;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/**
+ * The identifiables of a {@link RepositoryRule}. Notifies the
+ * {@link RepositoryRule.IdentifiablesListener listeners} of the rule when its identifiables change,
+ * so that an index of repository rules only has to index the changed rules again.
+ *
+ * <p>Listeners are held weakly, so that the indexes of configs that are no longer used, such as
+ * copies, can be garbage collected while the rule is still in use.</p>
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+class IdentifiableList extends ArrayList<Identifiable> {
+
+	private static final long serialVersionUID = 1L;
+
+	private final transient RepositoryRule repositoryRule;
+
+	private transient Set<RepositoryRule.IdentifiablesListener> listeners;
+
+	IdentifiableList(RepositoryRule repositoryRule, Collection<? extends Identifiable> identifiables) {
+		super(identifiables);
+		this.repositoryRule = repositoryRule;
+	}
+
+	synchronized void addListener(RepositoryRule.IdentifiablesListener listener) {
+		if(listeners == null) {
+			listeners = Collections.newSetFromMap(new WeakHashMap<>());
+		}
+		listeners.add(listener);
+	}
+
+	synchronized void removeListener(RepositoryRule.IdentifiablesListener listener) {
+		if(listeners != null) {
+			listeners.remove(listener);
+		}
+	}
+
+	private void changed() {
+		RepositoryRule.IdentifiablesListener[] notify;
+		synchronized (this) {
+			if(listeners == null || listeners.isEmpty()) {
+				return;
+			}
+			notify = listeners.toArray(new RepositoryRule.IdentifiablesListener[listeners.size()]);
+		}
+		for(RepositoryRule.IdentifiablesListener listener : notify) {
+			listener.identifiablesChanged(repositoryRule);
+		}
+	}
+
+	private boolean changed(boolean changed) {
+		if(changed) {
+			changed();
+		}
+		return changed;
+	}
+
+	@Override
+	public Identifiable set(int index, Identifiable element) {
+		Identifiable previous = super.set(index, element);
+		changed(!Objects.equals(previous, element));
+		return previous;
+	}
+
+	@Override
+	public boolean add(Identifiable identifiable) {
+		return changed(super.add(identifiable));
+	}
+
+	@Override
+	public void add(int index, Identifiable element) {
+		super.add(index, element);
+		changed();
+	}
+
+	@Override
+	public Identifiable remove(int index) {
+		Identifiable removed = super.remove(index);
+		changed();
+		return removed;
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		return changed(super.remove(o));
+	}
+
+	@Override
+	public void clear() {
+		boolean changed = !isEmpty();
+		super.clear();
+		changed(changed);
+	}
+
+	@Override
+	public boolean addAll(Collection<? extends Identifiable> c) {
+		return changed(super.addAll(c));
+	}
+
+	@Override
+	public boolean addAll(int index, Collection<? extends Identifiable> c) {
+		return changed(super.addAll(index, c));
+	}
+
+	@Override
+	protected void removeRange(int fromIndex, int toIndex) {
+		super.removeRange(fromIndex, toIndex);
+		changed(fromIndex < toIndex);
+	}
+
+	@Override
+	public boolean removeAll(Collection<?> c) {
+		return changed(super.removeAll(c));
+	}
+
+	@Override
+	public boolean retainAll(Collection<?> c) {
+		return changed(super.retainAll(c));
+	}
+
+	@Override
+	public boolean removeIf(Predicate<? super Identifiable> filter) {
+		return changed(super.removeIf(filter));
+	}
+
+	@Override
+	public void replaceAll(UnaryOperator<Identifiable> operator) {
+		Object[] previous = toArray();
+		super.replaceAll(operator);
+		changed(!Arrays.equals(previous, toArray()));
+	}
+
+}
@@ -1,13 +1,11 @@
 package nl.tudelft.ewi.gitolite.parser.rules;
 
 import com.google.common.collect.Lists;
+import lombok.AccessLevel;
 import lombok.Builder;
 import lombok.EqualsAndHashCode;
-
-import com.google.common.base.Joiner;
-
+import lombok.Getter;
 import lombok.Singular;
-import nl.tudelft.ewi.gitolite.objects.Identifiable;
 import nl.tudelft.ewi.gitolite.objects.Identifier;
 import nl.tudelft.ewi.gitolite.util.RecursiveStreamingGroup;
 
@@ -28,9 +26,11 @@ import java.util.stream.Stream;
 public class InlineUserGroup implements RecursiveStreamingGroup<GroupRule, Identifier>, Writable {
 
 	@Singular
+	@Getter(AccessLevel.PACKAGE)
 	private final List<GroupRule> groups;
 
 	@Singular
+	@Getter(AccessLevel.PACKAGE)
 	private final List<Identifier> members;
 
 	public InlineUserGroup(GroupRule... groups) {
@@ -101,18 +101,12 @@ public class InlineUserGroup implements RecursiveStreamingGroup<GroupRule, Ident
 
 	@Override
 	public void write(Writer writer) throws IOException {
-		writer.write(writeString());
-	}
-
-	private String writeString() {
-		return Joiner.on(' ').join(Stream.concat(getOwnGroupsStream(), getOwnMembersStream())
-			.map(Identifiable::getPattern)
-			.iterator());
+		new ConfigSerializer(64).appendMembers(this).writeTo(writer);
 	}
 
 	@Override
 	public String toString() {
-		return writeString();
+		return new ConfigSerializer(64).appendMembers(this).toString();
 	}
 
 }
@@ -85,7 +85,7 @@ public class RepositoryRule implements Rule {
 				throw new IllegalArgumentException("Invalid refex: " + id);
 			});
 
-		this.identifiables = Lists.newArrayList(patterns);
+		this.identifiables = new IdentifiableList(this, patterns);
 		this.rules = Lists.newArrayList(rules);
 		this.configKeys = Lists.newArrayList(configKeys);
 	}
@@ -95,28 +95,44 @@ public class RepositoryRule implements Rule {
 		return this;
 	}
 
+	/**
+	 * Listen for changes to the {@link #getIdentifiables() identifiables} of this rule. The
+	 * listener is held weakly.
+	 * @param listener The listener.
+	 */
+	public void addIdentifiablesListener(IdentifiablesListener listener) {
+		((IdentifiableList) identifiables).addListener(listener);
+	}
+
+	/**
+	 * Stop listening for changes to the identifiables of this rule.
+	 * @param listener The listener.
+	 */
+	public void removeIdentifiablesListener(IdentifiablesListener listener) {
+		((IdentifiableList) identifiables).removeListener(listener);
+	}
+
 	public boolean removeIdentifiable(Identifiable o) {
 		return getIdentifiables().remove(o);
 	}
 
+	/**
+	 * Listener for changes to the identifiables of a {@code RepositoryRule}, for example to
+	 * keep an index of repository rules up to date.
+	 */
+	public interface IdentifiablesListener {
+
+		/**
+		 * Called after the identifiables of a rule changed.
+		 * @param repositoryRule The rule.
+		 */
+		void identifiablesChanged(RepositoryRule repositoryRule);
+
+	}
+
 	@Override
 	public void write(Writer writer) throws IOException {
-		writer.write("\nrepo");
-		for(Identifiable identifiable : identifiables) {
-			writer.write(' ');
-			writer.write(identifiable.getPattern());
-		}
-		writer.write('\n');
-		for(AccessRule rule : rules) {
-			rule.write(writer);
-		}
-		if(!rules.isEmpty() && !configKeys.isEmpty()) {
-			writer.write('\n');
-		}
-		for(ConfigKey config : configKeys) {
-			config.write(writer);
-		}
-		writer.flush();
+		new ConfigSerializer(256).append(this).writeTo(writer);
 	}
 
 	@Override
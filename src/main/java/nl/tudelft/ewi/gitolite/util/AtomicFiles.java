@@ -0,0 +1,109 @@
+package nl.tudelft.ewi.gitolite.util;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Replaces files atomically. The new contents are written to a temporary file in the same
+ * directory, which is then renamed over the file, so that a crash or an exception while writing
+ * never leaves a truncated file behind.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+@Slf4j
+public final class AtomicFiles {
+
+	private static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+
+	private AtomicFiles() {
+	}
+
+	/**
+	 * Replace the contents of a file.
+	 * @param file The file to write. Its parent directories are created if they do not exist.
+	 * @param contents The new contents of the file.
+	 * @param fsyncPolicy What to force to the storage device.
+	 * @throws IOException If an I/O error occurs. The file is then left unchanged.
+	 */
+	public static void write(Path file, byte[] contents, FsyncPolicy fsyncPolicy) throws IOException {
+		Path directory = file.toAbsolutePath().getParent();
+		Files.createDirectories(directory);
+		String prefix = "." + file.getFileName() + ".";
+		deleteTemporaryFiles(directory, prefix);
+
+		Path temporaryFile = directory.resolve(prefix + Long.toHexString(ThreadLocalRandom.current().nextLong()) + TEMPORARY_FILE_SUFFIX);
+		try {
+			try(FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+				ByteBuffer buffer = ByteBuffer.wrap(contents);
+				while(buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+				if(fsyncPolicy != FsyncPolicy.NONE) {
+					channel.force(false);
+				}
+			}
+			move(temporaryFile, file);
+		}
+		finally {
+			Files.deleteIfExists(temporaryFile);
+		}
+
+		if(fsyncPolicy == FsyncPolicy.FILE_AND_DIRECTORY) {
+			forceDirectory(directory);
+		}
+	}
+
+	private static void move(Path source, Path target) throws IOException {
+		try {
+			Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (AtomicMoveNotSupportedException e) {
+			log.debug("Atomic move is not supported for {}, replacing it non-atomically", target);
+			Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Force the entries of a directory to the storage device. Not every platform can open
+	 * a directory, in which case this is skipped.
+	 */
+	private static void forceDirectory(Path directory) throws IOException {
+		try(FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+			channel.force(true);
+		}
+		catch (IOException e) {
+			if(Files.isDirectory(directory)) {
+				log.debug("Cannot force directory {}", directory, e);
+				return;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Delete temporary files that were left behind by a crash, so that they are not committed.
+	 */
+	private static void deleteTemporaryFiles(Path directory, String prefix) throws IOException {
+		try(DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+			path -> {
+				String name = path.getFileName().toString();
+				return name.startsWith(prefix) && name.endsWith(TEMPORARY_FILE_SUFFIX);
+			})) {
+			for(Path file : files) {
+				log.info("Deleting temporary file {}", file);
+				Files.deleteIfExists(file);
+			}
+		}
+	}
+
+}
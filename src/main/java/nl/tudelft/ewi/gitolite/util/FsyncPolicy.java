@@ -0,0 +1,28 @@
+package nl.tudelft.ewi.gitolite.util;
+
+/**
+ * Determines what is forced to the storage device when a file is replaced by {@link AtomicFiles}.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+public enum FsyncPolicy {
+
+	/**
+	 * Leave it to the operating system to write the file. After a crash, the file contains either
+	 * the old or the new contents, or, on some file systems, is empty.
+	 */
+	NONE,
+
+	/**
+	 * Force the contents of the new file before it replaces the old file. After a crash, the file
+	 * contains either the old or the new contents.
+	 */
+	FILE,
+
+	/**
+	 * Force the contents of the new file, and force the directory after the file is replaced, so
+	 * that the replacement itself survives a crash.
+	 */
+	FILE_AND_DIRECTORY
+
+}
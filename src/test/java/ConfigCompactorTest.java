@@ -0,0 +1,131 @@
+import nl.tudelft.ewi.gitolite.config.Config;
+import nl.tudelft.ewi.gitolite.config.ConfigCompactor;
+import nl.tudelft.ewi.gitolite.config.ConfigImpl;
+import nl.tudelft.ewi.gitolite.objects.Identifier;
+import nl.tudelft.ewi.gitolite.parser.TokenizerBasedParser;
+import nl.tudelft.ewi.gitolite.parser.rules.AccessRule;
+import nl.tudelft.ewi.gitolite.parser.rules.GroupRule;
+import nl.tudelft.ewi.gitolite.parser.rules.RepositoryRule;
+import nl.tudelft.ewi.gitolite.permission.BasePermission;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author Jan-Willem Gmelig Meyling
+ */
+public class ConfigCompactorTest {
+
+	private final static Identifier foo = new Identifier("foo");
+	private final static Identifier bar = new Identifier("bar");
+	private final static Identifier baz = new Identifier("baz");
+
+	private final ConfigCompactor compactor = new ConfigCompactor();
+
+	private ConfigImpl config;
+
+	@Before
+	public void setUp() {
+		config = new ConfigImpl();
+	}
+
+	@Test
+	public void testMergesRulesWithTheSameAccessRules() throws IOException {
+		config.addRepositoryRule(new RepositoryRule("a", new AccessRule(BasePermission.R, foo)));
+		config.addRepositoryRule(new RepositoryRule("b", new AccessRule(BasePermission.RW_PLUS, bar)));
+		config.addRepositoryRule(new RepositoryRule("c", new AccessRule(BasePermission.R, foo)));
+		compactor.compact(config);
+
+		RepositoryRule ac = new RepositoryRule(Arrays.asList(new Identifier("a"), new Identifier("c")),
+			Collections.singletonList(new AccessRule(BasePermission.R, foo)), Collections.emptyList());
+		RepositoryRule b = new RepositoryRule("b", new AccessRule(BasePermission.RW_PLUS, bar));
+		assertEquals(ac.toString() + b.toString(), write(config));
+	}
+
+	@Test
+	public void testKeepsRulesForTheSameRepositoryInOrder() throws IOException {
+		RepositoryRule a = new RepositoryRule("a", new AccessRule(BasePermission.R, foo));
+		RepositoryRule b = new RepositoryRule("b", new AccessRule(BasePermission.DENY, bar));
+		RepositoryRule b2 = new RepositoryRule("b", new AccessRule(BasePermission.R, foo));
+		config.addRepositoryRule(a);
+		config.addRepositoryRule(b);
+		config.addRepositoryRule(b2);
+		compactor.compact(config);
+
+		// Merging b2 into the rule for a would move it before the rule that denies bar
+		assertEquals(a.toString() + b.toString() + b2.toString(), write(config));
+	}
+
+	@Test
+	public void testDoesNotMergeAcrossGroupRules() throws IOException {
+		GroupRule group = new GroupRule("@group", new Identifier("b"));
+		RepositoryRule a = new RepositoryRule("a", new AccessRule(BasePermission.R, foo));
+		RepositoryRule all = RepositoryRule.builder()
+			.identifiable(group)
+			.rule(new AccessRule(BasePermission.DENY, foo))
+			.build();
+		RepositoryRule b = new RepositoryRule("b", new AccessRule(BasePermission.R, foo));
+		config.addRepositoryRule(a);
+		config.addRepositoryRule(all);
+		config.addRepositoryRule(b);
+		compactor.compact(config);
+
+		assertEquals(group.toString() + a.toString() + all.toString() + b.toString(), write(config));
+	}
+
+	@Test
+	public void testReplacesRepeatedMemberListsByAGroup() throws IOException {
+		config.addRepositoryRule(new RepositoryRule("a", new AccessRule(BasePermission.RW_PLUS, foo, bar, baz)));
+		config.addRepositoryRule(new RepositoryRule("b", new AccessRule(BasePermission.R, baz, foo, bar)));
+		compactor.compact(config);
+
+		GroupRule group = new GroupRule("@compacted-1", foo, bar, baz);
+		RepositoryRule a = new RepositoryRule("a", new AccessRule(BasePermission.RW_PLUS, group));
+		RepositoryRule b = new RepositoryRule("b", new AccessRule(BasePermission.R, group));
+		assertEquals(group.toString() + a.toString() + b.toString(), write(config));
+	}
+
+	@Test
+	public void testReusesAnExistingGroup() throws IOException {
+		GroupRule group = new GroupRule("@developers", foo, bar, baz);
+		config.addGroup(group);
+		config.addRepositoryRule(new RepositoryRule("a", new AccessRule(BasePermission.RW_PLUS, bar, baz, foo)));
+		compactor.compact(config);
+
+		RepositoryRule a = new RepositoryRule("a", new AccessRule(BasePermission.RW_PLUS, group));
+		assertEquals(group.toString() + a.toString(), write(config));
+	}
+
+	@Test
+	public void testMergedRulesAreFoundByAllTheirRepositoriesAfterReload() throws IOException {
+		config.addRepositoryRule(new RepositoryRule("a", new AccessRule(BasePermission.R, foo)));
+		config.addRepositoryRule(new RepositoryRule("b", new AccessRule(BasePermission.R, foo)));
+		compactor.compact(config);
+		Config reloaded = TokenizerBasedParser.parseParallel(CharBuffer.wrap(write(config)));
+
+		Identifier a = new Identifier("a");
+		Identifier b = new Identifier("b");
+		RepositoryRule ab = new RepositoryRule(Arrays.asList(a, b),
+			Collections.singletonList(new AccessRule(BasePermission.R, foo)), Collections.emptyList());
+		assertThat(reloaded.getRepositoryRule(a), empty());
+		assertThat(reloaded.getRepositoryRule(a, b), contains(ab));
+		assertEquals(ab, reloaded.getFirstRepositoryRule(b, a));
+	}
+
+	private static String write(ConfigImpl config) throws IOException {
+		StringWriter writer = new StringWriter();
+		config.write(ConfigImpl.MAIN_PARTITION, writer);
+		return writer.toString();
+	}
+
+}
@@ -1,8 +1,11 @@
+import com.google.common.collect.Lists;
 import nl.tudelft.ewi.gitolite.config.ConfigImpl;
 import nl.tudelft.ewi.gitolite.config.CyclicDependencyException;
 import nl.tudelft.ewi.gitolite.objects.Identifier;
 import nl.tudelft.ewi.gitolite.parser.rules.AccessRule;
+import nl.tudelft.ewi.gitolite.parser.rules.ConfigKey;
 import nl.tudelft.ewi.gitolite.parser.rules.GroupRule;
+import nl.tudelft.ewi.gitolite.parser.rules.Option;
 import nl.tudelft.ewi.gitolite.parser.rules.RepositoryRule;
 import nl.tudelft.ewi.gitolite.parser.rules.Rule;
 import nl.tudelft.ewi.gitolite.permission.BasePermission;
@@ -14,6 +17,8 @@ import static org.junit.Assert.*;
 import static org.hamcrest.Matchers.*;
 import static java.util.stream.Collectors.toList;
 
+import java.io.IOException;
+import java.io.StringWriter;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -108,6 +113,49 @@ public class ConfigImplTest {
 		assertThat(config.getRepositoryRule(foo), contains(repositoryRule));
 	}
 
+	@Test
+	public void testGetRepositoryRuleAfterDeletes() {
+		RepositoryRule fooRule = new RepositoryRule("foo", new AccessRule(BasePermission.R, baz));
+		RepositoryRule barRule = new RepositoryRule("bar", new AccessRule(BasePermission.R, baz));
+		RepositoryRule fooBarRule = new RepositoryRule(Lists.newArrayList(foo, bar),
+			Lists.newArrayList(new AccessRule(BasePermission.RW_PLUS, baz)), Collections.emptyList());
+		RepositoryRule fooRule2 = new RepositoryRule("foo", new AccessRule(BasePermission.RW_PLUS, baz));
+
+		config.addRepositoryRule(fooRule);
+		config.addRepositoryRule(barRule);
+		config.addRepositoryRule(fooBarRule);
+		config.addRepositoryRule(fooRule2);
+
+		assertThat(config.getRepositoryRule(foo), contains(fooRule, fooRule2));
+		assertThat(config.getRepositoryRule(bar, foo), contains(fooRule, barRule, fooBarRule, fooRule2));
+
+		config.deleteRepositoryRule(fooRule);
+		assertThat(config.getFirstRepositoryRule(foo), equalTo(fooRule2));
+
+		// The rule for foo and bar now only applies to foo
+		config.deleteIdentifierUses(bar);
+		assertThat(config.getRepositoryRule(foo), contains(fooBarRule, fooRule2));
+		assertThat(config.getRepositoryRule(bar), empty());
+	}
+
+	@Test
+	public void testGetRepositoryRuleAfterIdentifiablesChanged() {
+		RepositoryRule fooRule = new RepositoryRule("foo", new AccessRule(BasePermission.R, baz));
+		config.addRepositoryRule(fooRule);
+		assertThat(config.getRepositoryRule(bar), empty());
+
+		fooRule.getIdentifiables().add(bar);
+		assertThat(config.getRepositoryRule(foo, bar), contains(fooRule));
+
+		fooRule.getIdentifiables().set(0, baz);
+		assertThat(config.getRepositoryRule(baz, bar), contains(fooRule));
+		assertThat(config.getRepositoryRule(foo, bar), empty());
+
+		fooRule.getIdentifiables().remove(baz);
+		config.deleteRepositoryRule(fooRule);
+		assertThat(config.getRepositoryRule(bar), empty());
+	}
+
 	@Test
 	public void testAddRepositoryRuleWithGroup() {
 		GroupRule bliep = GroupRule.builder()
@@ -231,6 +279,148 @@ public class ConfigImplTest {
 
 	}
 
+	@Test
+	public void testCopyIsEqualAndIndependent() {
+		GroupRule test = new GroupRule("@test", foo);
+		GroupRule bliep = new GroupRule("@bliep", null, Collections.singleton(bar), Collections.singleton(test));
+		RepositoryRule repositoryRule = RepositoryRule.builder()
+			.identifiable(bliep)
+			.rule(new AccessRule(BasePermission.RW_PLUS, Collections.singleton(test), Collections.singleton(baz)))
+			.build();
+
+		config.addGroup(test);
+		config.addGroup(bliep);
+		config.addRepositoryRule(repositoryRule);
+
+		ConfigImpl copy = config.copy();
+		assertEquals(config, copy);
+		assertThat(copy.getRules(), contains(test, bliep, repositoryRule));
+
+		config.deleteGroup(test);
+		assertThat(copy.getGroup("@test"), equalTo(new GroupRule("@test", foo)));
+		assertThatStream(copy.getGroup("@bliep").getOwnGroupsStream(), contains(test));
+		assertThat(copy.getRules(), hasSize(3));
+	}
+
+	@Test
+	public void testWritePartitions() throws IOException {
+		GroupRule test = new GroupRule("@test", foo);
+		RepositoryRule main = new RepositoryRule("main", new AccessRule(BasePermission.RW_PLUS, test));
+		RepositoryRule course = new RepositoryRule("courses/ti1705", new AccessRule(BasePermission.RW, bar));
+
+		config.addRepositoryRule(main);
+		config.addRepositoryRule(course, "subconf/ti1705.conf");
+
+		assertThat(config.getPartitions(), contains(ConfigImpl.MAIN_PARTITION, "subconf/ti1705.conf"));
+		assertEquals("subconf/ti1705.conf", config.getPartition(course));
+		ConfigImpl copy = config.copy();
+		assertEquals("subconf/ti1705.conf", copy.getPartition(copy.getFirstRepositoryRule(new Identifier("courses/ti1705"))));
+
+		StringWriter mainPartition = new StringWriter();
+		config.write(ConfigImpl.MAIN_PARTITION, mainPartition);
+		assertEquals(test.toString() + main.toString() + "include \"subconf/ti1705.conf\"\n", mainPartition.toString());
+
+		StringWriter coursePartition = new StringWriter();
+		config.write("subconf/ti1705.conf", coursePartition);
+		assertEquals(course.toString(), coursePartition.toString());
+
+		config.deleteRepositoryRule(course);
+		coursePartition = new StringWriter();
+		config.write("subconf/ti1705.conf", coursePartition);
+		assertEquals("", coursePartition.toString());
+	}
+
+	@Test
+	public void testWriteMatchesFormattedOutput() throws IOException {
+		GroupRule test = new GroupRule("@test", foo, bar);
+		GroupRule longName = GroupRule.builder()
+			.pattern("@a-group-name-longer-than-twenty").group(test).member(baz).build();
+		config.addGroup(test);
+		config.addGroup(longName);
+		config.addRepositoryRule(new RepositoryRule(
+			Collections.singletonList(new Identifier("main")),
+			Lists.newArrayList(new AccessRule(BasePermission.RW_PLUS, test),
+				new AccessRule(BasePermission.R, "refs/tags/release", foo)),
+			Lists.newArrayList(new ConfigKey("hooks.mailinglist", "dev@localhost"),
+				new Option("deny-rules", "a b"))));
+
+		String expected = String.format("%-20s=   %s\n", "@test", "foo bar") +
+			String.format("%-20s=   %s\n", "@a-group-name-longer-than-twenty", "@test baz") +
+			"\nrepo main\n" +
+			String.format("    %-7s %-7s = %s\n", "RW+", "", "@test") +
+			String.format("    %-7s %-7s = %s\n", "R", "refs/tags/release", "foo") +
+			"\n" +
+			"    config hooks.mailinglist = dev@localhost\n" +
+			"    option deny-rules = \"a b\"\n";
+
+		StringWriter writer = new StringWriter();
+		config.write(writer);
+		assertEquals(expected, writer.toString());
+
+		// The buffer is reused for the next write
+		writer = new StringWriter();
+		config.write(ConfigImpl.MAIN_PARTITION, writer);
+		assertEquals(expected, writer.toString());
+	}
+
+	@Test
+	public void testCanonicalOrderIsIndependentOfInsertionOrder() throws IOException {
+		GroupRule students = new GroupRule("@students", foo, bar);
+		GroupRule admins = new GroupRule("@admins", null, Collections.singleton(baz), Collections.singleton(students));
+		RepositoryRule b = new RepositoryRule("b", new AccessRule(BasePermission.RW_PLUS, foo, bar));
+		RepositoryRule a = new RepositoryRule("a", new AccessRule(BasePermission.RW_PLUS, foo));
+		RepositoryRule c = new RepositoryRule("c", new AccessRule(BasePermission.R, admins));
+
+		config.addGroup(students);
+		config.addGroup(admins);
+		config.addRepositoryRule(b);
+		config.addRepositoryRule(c);
+		config.addRepositoryRule(a);
+
+		ConfigImpl other = new ConfigImpl();
+		other.addRepositoryRule(a);
+		other.addRepositoryRule(c);
+		other.addRepositoryRule(b);
+
+		StringWriter writer = new StringWriter();
+		config.write(ConfigImpl.MAIN_PARTITION, writer, true);
+		StringWriter otherWriter = new StringWriter();
+		other.write(ConfigImpl.MAIN_PARTITION, otherWriter, true);
+
+		// @admins depends on @students, so it is written after it, and the members of b are sorted
+		assertEquals(students.toString() + admins.toString() + a.toString() +
+			"\nrepo b\n" + String.format("    %-7s %-7s = %s\n", "RW+", "", "bar foo") + c.toString(), writer.toString());
+		assertEquals(writer.toString(), otherWriter.toString());
+	}
+
+	@Test
+	public void testCanonicalOrderKeepsOverlappingRulesInPlace() throws IOException {
+		GroupRule group = new GroupRule("@group", foo);
+		RepositoryRule z = new RepositoryRule("z", new AccessRule(BasePermission.DENY, bar));
+		RepositoryRule all = RepositoryRule.builder()
+			.identifiable(group)
+			.rule(new AccessRule(BasePermission.RW_PLUS, bar))
+			.build();
+		RepositoryRule y = new RepositoryRule("y", new AccessRule(BasePermission.R, bar));
+		RepositoryRule x = new RepositoryRule("x", new AccessRule(BasePermission.R, bar));
+		RepositoryRule y2 = new RepositoryRule("y", new AccessRule(BasePermission.DENY, baz));
+		RepositoryRule w = new RepositoryRule("w", new AccessRule(BasePermission.R, baz));
+
+		config.addRepositoryRule(z);
+		config.addRepositoryRule(all);
+		config.addRepositoryRule(y);
+		config.addRepositoryRule(x);
+		config.addRepositoryRule(y2);
+		config.addRepositoryRule(w);
+
+		StringWriter writer = new StringWriter();
+		config.write(ConfigImpl.MAIN_PARTITION, writer, true);
+
+		// Rules are only sorted between the rule for @group, and rules for y keep their order
+		assertEquals(group.toString() + z.toString() + all.toString() +
+			w.toString() + x.toString() + y.toString() + y2.toString(), writer.toString());
+	}
+
 	public static <T> void assertThatStream(Stream<T> stream, Matcher<? super List<T>> matcher) {
 		assertThat(stream.collect(toList()), matcher);
 	}
@@ -1,7 +1,10 @@
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import nl.tudelft.ewi.gitolite.config.Config;
 import nl.tudelft.ewi.gitolite.objects.Identifiable;
 import nl.tudelft.ewi.gitolite.objects.Identifier;
 import nl.tudelft.ewi.gitolite.parser.rules.Rule;
+import nl.tudelft.ewi.gitolite.parser.ConfigVisitor;
 import nl.tudelft.ewi.gitolite.parser.TokenizerBasedParser;
 import nl.tudelft.ewi.gitolite.parser.rules.ConfigKey;
 import nl.tudelft.ewi.gitolite.parser.rules.GroupRule;
@@ -9,21 +12,31 @@ import nl.tudelft.ewi.gitolite.parser.rules.Option;
 import nl.tudelft.ewi.gitolite.parser.rules.AccessRule;
 import nl.tudelft.ewi.gitolite.parser.rules.RepositoryRule;
 import nl.tudelft.ewi.gitolite.permission.BasePermission;
+import nl.tudelft.ewi.gitolite.permission.Permission;
 import org.hamcrest.Matcher;
 import org.hamcrest.Matchers;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.CharBuffer;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.stream.Stream;
 
 import static java.util.stream.Collectors.toList;
 import static org.hamcrest.Matchers.contains;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
 
@@ -40,6 +53,8 @@ public class TestTokenizedBasedParser {
 	private final static Identifier dilbert = new Identifier("dilbert");
 	private final static Identifier alice = new Identifier("alice");
 
+	@org.junit.Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
 	@Test
 	public void basicParseTest() throws IOException {
 		String in = "@test               =   foo\n" +
@@ -353,6 +368,205 @@ public class TestTokenizedBasedParser {
 		new TokenizerBasedParser(new StringReader(in)).parseRepositoryRule();
 	}
 
+	@Test
+	public void testParseParallelMatchesSequential() throws IOException {
+		StringBuilder in = new StringBuilder("@students = alice bob\n");
+		for(int i = 0; i < 1000; i++) {
+			if(i % 300 == 0) {
+				in.append("@staff = teacher").append(i).append('\n');
+			}
+			in.append("repo courses/group-").append(i).append(" \"quoted ").append(i).append("\"\n")
+				.append("\tRW+ = @staff @students # comment\n")
+				.append("\tRW refs/heads/master = alice\n")
+				.append("\tconfig hooks.mailinglist = \"group-").append(i).append("@example.com\"\n\n");
+		}
+
+		List<RepositoryRule> expectedRepositoryRules = Lists.newArrayList();
+		List<GroupRule> expectedGroupRules = Lists.newArrayList();
+		new TokenizerBasedParser(new StringReader(in.toString())).parse(expectedRepositoryRules, expectedGroupRules);
+		Config config = TokenizerBasedParser.parseParallel(CharBuffer.wrap(in.toString()));
+
+		assertThat(config.getGroupRules(), contains(expectedGroupRules.toArray()));
+		List<RepositoryRule> repositoryRules = config.getRules().stream()
+			.filter(RepositoryRule.class::isInstance)
+			.map(RepositoryRule.class::cast)
+			.collect(toList());
+		assertThat(repositoryRules, contains(expectedRepositoryRules.toArray()));
+
+		// Repository blocks refer to the version of a group that was defined before them
+		GroupRule staff = (GroupRule) repositoryRules.get(299).getRules().get(0).getMembers().getOwnGroupsStream()
+			.filter(group -> group.getPattern().equals("@staff")).findFirst().get();
+		assertSame(staff, repositoryRules.get(300).getRules().get(0).getMembers().getOwnGroupsStream()
+			.filter(group -> group.getPattern().equals("@staff")).findFirst().get().getParent());
+	}
+
+	@Test
+	public void testParseIncludes() throws IOException {
+		File confDir = temporaryFolder.newFolder("conf");
+		File subconfDir = new File(confDir, "subconf");
+		subconfDir.mkdirs();
+		write(new File(confDir, "gitolite.conf"), "@staff = teacher\n" +
+			"repo admin\n" +
+			"\tRW+ = @staff\n" +
+			"include \"subconf/*.conf\"\n");
+		write(new File(subconfDir, "b.conf"), "repo courses/b\n\tRW = bar\n");
+		write(new File(subconfDir, "a.conf"), "@students = foo\nrepo courses/a\n\tRW = @students @staff\n");
+
+		for(boolean parallel : new boolean[] { false, true }) {
+			Config config = TokenizerBasedParser.parse(new File(confDir, "gitolite.conf"), parallel);
+			assertThat(config.getPartitions(), contains(Config.MAIN_PARTITION, "subconf/a.conf", "subconf/b.conf"));
+
+			RepositoryRule courseA = config.getFirstRepositoryRule(new Identifier("courses/a"));
+			assertEquals("subconf/a.conf", config.getPartition(courseA));
+			assertEquals("subconf/b.conf", config.getPartition(config.getFirstRepositoryRule(new Identifier("courses/b"))));
+			assertEquals(Config.MAIN_PARTITION, config.getPartition(config.getFirstRepositoryRule(new Identifier("admin"))));
+
+			StringWriter writer = new StringWriter();
+			config.write(Config.MAIN_PARTITION, writer);
+			assertThat(writer.toString(), Matchers.endsWith("include \"subconf/*.conf\"\n"));
+			assertThat(writer.toString(), Matchers.not(Matchers.containsString("courses/")));
+
+			writer = new StringWriter();
+			config.write("subconf/a.conf", writer);
+			assertEquals(courseA.toString(), writer.toString());
+		}
+	}
+
+	@Test
+	public void testParseIncludesFromMemory() throws IOException {
+		Map<String, byte[]> files = Maps.newTreeMap();
+		files.put("gitolite.conf", ("repo admin\n" +
+			"\tRW+ = teacher\n" +
+			"include \"subconf/*.conf\"\n").getBytes());
+		files.put("subconf/a.conf", "repo courses/a\n\tRW = foo\n".getBytes());
+		files.put("other/b.conf", "repo courses/b\n\tRW = bar\n".getBytes());
+
+		for(boolean parallel : new boolean[] { false, true }) {
+			Config config = TokenizerBasedParser.parse(files, parallel);
+			assertThat(config.getPartitions(), contains(Config.MAIN_PARTITION, "subconf/a.conf"));
+			assertEquals("subconf/a.conf", config.getPartition(config.getFirstRepositoryRule(new Identifier("courses/a"))));
+			assertEquals(0, config.getRepositoryRule(new Identifier("courses/b")).size());
+		}
+	}
+
+	@Test
+	public void testVisitor() throws IOException {
+		String in = "@staff = teacher\n" +
+			"repo courses/ti1705/group-1 courses/ti1705/group-2\n" +
+			"\tRW+ refs/heads/master = @staff alice\n" +
+			"\tconfig hooks.mailinglist = \"foo\"\n" +
+			"\toption deny-rules = 1\n" +
+			"include \"subconf/*.conf\"\n" +
+			"repo courses/ti1706/group-1\n" +
+			"\tRW = bob\n";
+
+		List<String> events = Lists.newArrayList();
+		new TokenizerBasedParser(new StringReader(in)).accept(new ConfigVisitor() {
+
+			@Override
+			public void onGroup(String name, List<String> members) {
+				events.add("group " + name + " " + members);
+			}
+
+			@Override
+			public void onRepoStart(List<String> patterns) {
+				events.add("start " + patterns);
+			}
+
+			@Override
+			public void onAccessRule(Permission permission, String refex, List<String> members) {
+				events.add("rule " + permission.valueOf() + " " + refex + " " + members);
+			}
+
+			@Override
+			public void onConfigKey(String key, String value) {
+				events.add("config " + key + " " + value);
+			}
+
+			@Override
+			public void onOption(String option, String value) {
+				events.add("option " + option + " " + value);
+			}
+
+			@Override
+			public void onRepoEnd() {
+				events.add("end");
+			}
+
+			@Override
+			public void onInclude(String pattern) {
+				events.add("include " + pattern);
+			}
+
+		});
+
+		assertThat(events, contains(
+			"group @staff [teacher]",
+			"start [courses/ti1705/group-1, courses/ti1705/group-2]",
+			"rule RW+ refs/heads/master [@staff, alice]",
+			"config hooks.mailinglist foo",
+			"option deny-rules 1",
+			"end",
+			"include subconf/*.conf",
+			"start [courses/ti1706/group-1]",
+			"rule RW null [bob]",
+			"end"));
+	}
+
+	@Test
+	public void testRulesIterator() throws IOException {
+		String in = "@staff = teacher\n" +
+			"repo foo\n" +
+			"\tRW+ = @staff\n" +
+			"include \"subconf/*.conf\"\n" +
+			"repo bar\n" +
+			"\tRW = alice\n";
+
+		List<Rule> expected = Lists.newArrayList();
+		new TokenizerBasedParser(new StringReader(in)).parse(expected);
+
+		List<Rule> actual = Lists.newArrayList(new TokenizerBasedParser(new StringReader(in)).rules());
+		assertEquals(expected, actual);
+		assertEquals(3, actual.size());
+	}
+
+	private static void write(File file, String contents) throws IOException {
+		try(Writer writer = new FileWriter(file)) {
+			writer.write(contents);
+		}
+	}
+
+	@Test
+	public void testParallelParseEqualsSequentialParse() throws IOException {
+		File configurationFile = temporaryFolder.newFile("gitolite.conf");
+		try(Writer writer = new BufferedWriter(new FileWriter(configurationFile))) {
+			for(int i = 0; i < 1000; i++) {
+				if(i % 100 == 0) {
+					// Groups defined between repository blocks only apply to the blocks after them
+					writer.write(String.format("@group-%d = student%d student%d\n", i / 100, i, i + 1));
+					writer.write(String.format("@staff = teacher%d\n", i / 100));
+				}
+				writer.write(String.format("repo courses/ti1705/group-%d\n" +
+					"\tRW+ = @group-%d @staff # the teacher\n" +
+					"\tRW = student%d student%d\n" +
+					"\t-  VREF/MAX_FILE_SIZE/50 = @all\n", i, i / 100, i, i + 1));
+			}
+		}
+
+		Config sequential = TokenizerBasedParser.parse(configurationFile, false);
+		Config parallel = TokenizerBasedParser.parse(configurationFile, true);
+
+		assertEquals(1000, sequential.getRules().stream().filter(RepositoryRule.class::isInstance).count());
+		assertEquals(Lists.newArrayList(sequential.getRules()), Lists.newArrayList(parallel.getRules()));
+		assertEquals(write(sequential), write(parallel));
+	}
+
+	private static String write(Config config) throws IOException {
+		StringWriter writer = new StringWriter();
+		config.write(writer);
+		return writer.toString();
+	}
+
 	public static <T> void assertThatStream(Stream<T> stream, Matcher<? super List<T>> matcher) {
 		assertThat(stream.collect(toList()), matcher);
 	}
@@ -0,0 +1,99 @@
+package manager;
+
+import lombok.SneakyThrows;
+import nl.tudelft.ewi.gitolite.ManagedConfig;
+import nl.tudelft.ewi.gitolite.ManagedConfigFactory;
+import nl.tudelft.ewi.gitolite.git.GitException;
+import nl.tudelft.ewi.gitolite.git.GitManager;
+import nl.tudelft.ewi.gitolite.git.GitManagerFactory;
+import nl.tudelft.ewi.gitolite.objects.Identifier;
+import nl.tudelft.ewi.gitolite.parser.rules.AccessRule;
+import nl.tudelft.ewi.gitolite.parser.rules.RepositoryRule;
+import nl.tudelft.ewi.gitolite.permission.BasePermission;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the asynchronous write operations of the {@link ManagedConfig}.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class TestAsyncConfig implements GitManagerFactory {
+
+	@Mock private GitManager gitManager;
+	@Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+	private ManagedConfig managedConfig;
+
+	@Override
+	public GitManager create(File repositoryFolder) {
+		when(gitManager.getWorkingDirectory()).thenReturn(repositoryFolder);
+		return gitManager;
+	}
+
+	@Before
+	@SneakyThrows
+	public void setUp() {
+		FileUtils.copyDirectory(new File("src/test/resources/gitolite-admin-1"), temporaryFolder.getRoot());
+		managedConfig = new ManagedConfigFactory()
+			.gitManagerFactory(this)
+			.repositoryFolder(temporaryFolder.getRoot())
+			.init("mocked-gitolite-admin");
+	}
+
+	@After
+	public void tearDown() {
+		managedConfig.close();
+	}
+
+	private static RepositoryRule repositoryRule(String name) {
+		return new RepositoryRule(name, new AccessRule(BasePermission.RW_PLUS, Identifier.valueOf("git")));
+	}
+
+	@Test
+	public void futureCompletesAfterPush() throws Exception {
+		RepositoryRule repositoryRule = repositoryRule("a");
+		RepositoryRule result = managedConfig.writeConfigWithReturnAsync(config -> {
+			config.addRepositoryRule(repositoryRule);
+			return repositoryRule;
+		}).get();
+
+		assertThat(result, equalTo(repositoryRule));
+		verify(gitManager).commitChanges(anyCollectionOf(String.class));
+		verify(gitManager).push();
+	}
+
+	@Test
+	public void futureCompletesExceptionallyWhenPushFails() throws Exception {
+		doThrow(new GitException()).when(gitManager).push();
+
+		try {
+			managedConfig.writeConfigAsync(config -> config.addRepositoryRule(repositoryRule("a"))).get();
+			fail("Expected the push to fail");
+		}
+		catch (ExecutionException e) {
+			assertThat(e.getCause(), instanceOf(GitException.class));
+		}
+	}
+
+}
@@ -0,0 +1,251 @@
+package manager;
+
+import lombok.SneakyThrows;
+import nl.tudelft.ewi.gitolite.ManagedConfig;
+import nl.tudelft.ewi.gitolite.ManagedConfigFactory;
+import nl.tudelft.ewi.gitolite.git.GitManager;
+import nl.tudelft.ewi.gitolite.git.GitManagerFactory;
+import nl.tudelft.ewi.gitolite.git.PushRejectedException;
+import nl.tudelft.ewi.gitolite.objects.Identifier;
+import nl.tudelft.ewi.gitolite.parser.rules.AccessRule;
+import nl.tudelft.ewi.gitolite.parser.rules.RepositoryRule;
+import nl.tudelft.ewi.gitolite.permission.BasePermission;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.hasSize;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Mockito.atMost;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for a {@link ManagedConfig} that applies write operations in batches.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class TestBatchedConfig implements GitManagerFactory {
+
+	@Mock private GitManager gitManager;
+	@Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+	private ManagedConfigFactory managedConfigFactory;
+	private ManagedConfig managedConfig;
+
+	@Override
+	public GitManager create(File repositoryFolder) {
+		when(gitManager.getWorkingDirectory()).thenReturn(repositoryFolder);
+		return gitManager;
+	}
+
+	@Before
+	public void setUp() throws IOException, InterruptedException {
+		FileUtils.copyDirectory(new File("src/test/resources/gitolite-admin-1"), temporaryFolder.getRoot());
+		managedConfigFactory = new ManagedConfigFactory()
+			.gitManagerFactory(this)
+			.repositoryFolder(temporaryFolder.getRoot());
+	}
+
+	@After
+	public void tearDown() {
+		if(managedConfig != null) {
+			managedConfig.close();
+		}
+	}
+
+	@SneakyThrows
+	protected ManagedConfig initManagedConfig() {
+		return managedConfigFactory.init("mocked-gitolite-admin");
+	}
+
+	private static RepositoryRule repositoryRule(String name) {
+		return new RepositoryRule(name, new AccessRule(BasePermission.RW_PLUS, Identifier.valueOf("git")));
+	}
+
+	@Test
+	public void fullBatchIsPushedOnce() throws Exception {
+		managedConfigFactory.batchSize(3).batchWindow(60_000);
+		managedConfig = initManagedConfig();
+
+		ExecutorService executorService = Executors.newFixedThreadPool(3);
+		try {
+			Future<?> a = executorService.submit(() -> managedConfig.writeConfig(config -> config.addRepositoryRule(repositoryRule("a"))));
+			Future<?> b = executorService.submit(() -> managedConfig.writeConfig(config -> config.addRepositoryRule(repositoryRule("b"))));
+			Future<?> c = executorService.submit(() -> managedConfig.writeConfig(config -> config.addRepositoryRule(repositoryRule("c"))));
+			a.get(); b.get(); c.get();
+		}
+		finally {
+			executorService.shutdown();
+		}
+
+		verify(gitManager, times(1)).commitChanges(anyCollectionOf(String.class));
+		verify(gitManager, times(1)).push();
+		managedConfig.readConfig(config -> assertThat(config.getRepositoryRule(
+			Identifier.valueOf("a"), Identifier.valueOf("b"), Identifier.valueOf("c")), hasSize(3)));
+	}
+
+	@Test
+	public void batchIsPushedAfterWindow() throws Exception {
+		managedConfigFactory.batchWindow(50);
+		managedConfig = initManagedConfig();
+
+		managedConfig.writeConfig(config -> config.addRepositoryRule(repositoryRule("a")));
+
+		verify(gitManager, times(1)).commitChanges(anyCollectionOf(String.class));
+		verify(gitManager, times(1)).push();
+	}
+
+	@Test
+	public void writesDuringAPushAreBatchedWithTheDefaultWindow() throws Exception {
+		CountDownLatch releasePush = new CountDownLatch(1);
+		doAnswer(invocation -> {
+			releasePush.await();
+			return null;
+		}).when(gitManager).push();
+
+		managedConfigFactory.pipelined(true);
+		managedConfig = initManagedConfig();
+
+		int writes = 10;
+		CountDownLatch applied = new CountDownLatch(writes);
+		List<CompletableFuture<Void>> futures = new ArrayList<>();
+		for(int i = 0; i < writes; i++) {
+			String name = "repo-" + i;
+			futures.add(managedConfig.writeConfigAsync(config -> {
+				config.addRepositoryRule(repositoryRule(name));
+				applied.countDown();
+			}));
+		}
+		assertTrue(applied.await(10, TimeUnit.SECONDS));
+		// Wait for the last write operation to release the lock, after it enlisted its change
+		managedConfig.readConfigForUpdate(config -> {});
+
+		releasePush.countDown();
+		for(CompletableFuture<Void> future : futures) {
+			future.get();
+		}
+
+		// The first write is pushed on its own, the others are pushed together after it
+		verify(gitManager, atMost(2)).push();
+	}
+
+	@Test
+	public void writeWithinReadDoesNotDeadlock() throws Exception {
+		managedConfigFactory.batchWindow(60_000);
+		managedConfig = initManagedConfig();
+
+		managedConfig.readConfigForUpdate(config ->
+			managedConfig.writeConfig(writeConfig -> writeConfig.addRepositoryRule(repositoryRule("a"))));
+
+		verify(gitManager, times(1)).commitChanges(anyCollectionOf(String.class));
+		verify(gitManager, times(1)).push();
+	}
+
+	@Test
+	public void writeWithinReadDuringRejectedPipelinedPush() throws Exception {
+		doThrow(new PushRejectedException("[rejected] master -> master (fetch first)"))
+			.doNothing()
+			.when(gitManager).push();
+		doAnswer(invocation -> {
+			FileUtils.copyDirectory(new File("src/test/resources/gitolite-admin-1"), temporaryFolder.getRoot());
+			return null;
+		}).when(gitManager).resetToRemote();
+		managedConfigFactory.pipelined(true).pushRetries(1).retryBackoff(10);
+		managedConfig = initManagedConfig();
+
+		// The pipeline rebases the rejected batch while the writer waits within the read
+		managedConfig.readConfigForUpdate(config ->
+			managedConfig.writeConfig(writeConfig -> writeConfig.addRepositoryRule(repositoryRule("a"))));
+
+		verify(gitManager).resetToRemote();
+		verify(gitManager, times(2)).push();
+		managedConfig.readSnapshot(config -> {
+			assertThat(config.getRepositoryRule(Identifier.valueOf("a")), hasSize(1));
+			return null;
+		});
+	}
+
+	@Test
+	public void readDoesNotWaitForPush() throws Exception {
+		CountDownLatch pushStarted = new CountDownLatch(1);
+		CountDownLatch releasePush = new CountDownLatch(1);
+		doAnswer(invocation -> {
+			pushStarted.countDown();
+			releasePush.await();
+			return null;
+		}).when(gitManager).push();
+		managedConfig = initManagedConfig();
+
+		CompletableFuture<Void> write = managedConfig.writeConfigAsync(config -> config.addRepositoryRule(repositoryRule("a")));
+		assertTrue(pushStarted.await(10, TimeUnit.SECONDS));
+
+		// The push holds the WriteLock, the read operates on the last pushed snapshot
+		managedConfig.readConfig(config -> assertThat(config.getRepositoryRule(Identifier.valueOf("a")), empty()));
+
+		releasePush.countDown();
+		write.get();
+		managedConfig.readConfig(config -> assertThat(config.getRepositoryRule(Identifier.valueOf("a")), hasSize(1)));
+	}
+
+	@Test
+	public void pipelinedWriteDoesNotWaitForPush() throws Exception {
+		CountDownLatch pushStarted = new CountDownLatch(1);
+		CountDownLatch releasePush = new CountDownLatch(1);
+		doAnswer(invocation -> {
+			pushStarted.countDown();
+			releasePush.await();
+			return null;
+		}).when(gitManager).push();
+
+		managedConfigFactory.pipelined(true);
+		managedConfig = initManagedConfig();
+
+		CompletableFuture<Void> first = managedConfig.writeConfigAsync(config -> config.addRepositoryRule(repositoryRule("a")));
+		assertTrue(pushStarted.await(10, TimeUnit.SECONDS));
+
+		// The second write operation is applied while the first push is still in progress
+		CountDownLatch secondApplied = new CountDownLatch(1);
+		CompletableFuture<Void> second = managedConfig.writeConfigAsync(config -> {
+			config.addRepositoryRule(repositoryRule("b"));
+			secondApplied.countDown();
+		});
+		assertTrue(secondApplied.await(10, TimeUnit.SECONDS));
+		assertFalse(first.isDone());
+
+		releasePush.countDown();
+		first.get();
+		second.get();
+
+		verify(gitManager, atMost(2)).push();
+		managedConfig.readSnapshot(config -> {
+			assertThat(config.getRepositoryRule(Identifier.valueOf("a"), Identifier.valueOf("b")), hasSize(2));
+			return null;
+		});
+	}
+
+}
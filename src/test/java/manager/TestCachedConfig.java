@@ -0,0 +1,120 @@
+package manager;
+
+import nl.tudelft.ewi.gitolite.ManagedConfig;
+import nl.tudelft.ewi.gitolite.ManagedConfigFactory;
+import nl.tudelft.ewi.gitolite.git.GitException;
+import nl.tudelft.ewi.gitolite.git.GitManager;
+import nl.tudelft.ewi.gitolite.git.GitManagerFactory;
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for a {@link ManagedConfig} that keeps the administration repository in a cache folder.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class TestCachedConfig implements GitManagerFactory {
+
+	private static final String REPOSITORY_URL = "ssh://git@localhost:2222/gitolite-admin.git";
+
+	@Mock private GitManager gitManager;
+	@Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+	private File repositoryFolder;
+
+	@Override
+	public GitManager create(File repositoryFolder) {
+		this.repositoryFolder = repositoryFolder;
+		when(gitManager.getWorkingDirectory()).thenReturn(repositoryFolder);
+		return gitManager;
+	}
+
+	@Before
+	public void setUp() throws IOException, InterruptedException {
+		doAnswer(invocation -> {
+			FileUtils.copyDirectory(new File("src/test/resources/gitolite-admin-1"), repositoryFolder);
+			when(gitManager.exists()).thenReturn(true);
+			return null;
+		}).when(gitManager).clone(anyString());
+	}
+
+	private ManagedConfigFactory managedConfigFactory() {
+		return new ManagedConfigFactory()
+			.gitManagerFactory(this)
+			.cacheFolder(temporaryFolder.getRoot());
+	}
+
+	@Test
+	public void coldStartClonesIntoCache() throws Exception {
+		try(ManagedConfig managedConfig = managedConfigFactory().init(REPOSITORY_URL)) {
+			verify(gitManager).clone(REPOSITORY_URL);
+			assertEquals(temporaryFolder.getRoot(), repositoryFolder.getParentFile());
+			assertTrue(repositoryFolder.getName().startsWith("gitolite-admin-"));
+			assertTrue(new File(temporaryFolder.getRoot(), repositoryFolder.getName() + ".lock").exists());
+		}
+	}
+
+	@Test
+	public void warmStartResetsToRemote() throws Exception {
+		managedConfigFactory().init(REPOSITORY_URL).close();
+		managedConfigFactory().init(REPOSITORY_URL).close();
+
+		verify(gitManager).clone(REPOSITORY_URL);
+		verify(gitManager).resetToRemote();
+	}
+
+	@Test
+	public void reusedFactoryLocksTheCacheAgain() throws Exception {
+		ManagedConfigFactory managedConfigFactory = managedConfigFactory();
+		managedConfigFactory.init(REPOSITORY_URL).close();
+		managedConfigFactory.init(REPOSITORY_URL).close();
+
+		verify(gitManager).resetToRemote();
+		verify(gitManager, never()).pull();
+		assertNull(managedConfigFactory.repositoryFolder());
+	}
+
+	@Test
+	public void corruptCacheIsClonedAgain() throws Exception {
+		managedConfigFactory().init(REPOSITORY_URL).close();
+		doThrow(new GitException()).when(gitManager).resetToRemote();
+		managedConfigFactory().init(REPOSITORY_URL).close();
+
+		verify(gitManager, times(2)).clone(REPOSITORY_URL);
+	}
+
+	@Test
+	public void shallowCloneIsOptIn() throws Exception {
+		doAnswer(invocation -> {
+			FileUtils.copyDirectory(new File("src/test/resources/gitolite-admin-1"), repositoryFolder);
+			return null;
+		}).when(gitManager).clone(anyString(), anyInt());
+
+		managedConfigFactory().cloneDepth(1).init(REPOSITORY_URL).close();
+
+		verify(gitManager).clone(REPOSITORY_URL, 1);
+		verify(gitManager, never()).clone(REPOSITORY_URL);
+	}
+
+}
@@ -1,11 +1,15 @@
 package manager;
 
+import com.google.common.io.Files;
 import lombok.SneakyThrows;
 import nl.tudelft.ewi.gitolite.ManagedConfig;
 import nl.tudelft.ewi.gitolite.ManagedConfigFactory;
 import nl.tudelft.ewi.gitolite.config.Config;
+import nl.tudelft.ewi.gitolite.git.GitException;
 import nl.tudelft.ewi.gitolite.git.GitManager;
 import nl.tudelft.ewi.gitolite.git.GitManagerFactory;
+import nl.tudelft.ewi.gitolite.git.PushRejectedException;
+import nl.tudelft.ewi.gitolite.keystore.KeyHolder;
 import nl.tudelft.ewi.gitolite.objects.Identifier;
 import nl.tudelft.ewi.gitolite.parser.rules.AccessRule;
 import nl.tudelft.ewi.gitolite.parser.rules.GroupRule;
@@ -23,11 +27,18 @@ import org.mockito.runners.MockitoJUnitRunner;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.Collection;
 import java.util.Collections;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -67,7 +78,7 @@ public class TestConfigOne implements GitManagerFactory {
 	@Test
 	public void parseAndStoreConfig() throws IOException, InterruptedException {
 		managedConfig.writeConfig(TestConfigOne::noop);
-		verifyGitoliteAdminPush();
+		verifyNoGitoliteAdminPush();
 
 		managedConfig.readConfig(config ->
 			initManagedConfig().readConfig(config2 -> {
@@ -85,7 +96,7 @@ public class TestConfigOne implements GitManagerFactory {
 
 	@Test
 	public void parseAndStoreAlteredConfig() throws IOException, InterruptedException {
-		managedConfig.readConfig(config -> {
+		managedConfig.readConfigForUpdate(config -> {
 			Collection<GroupRule> TI1706 = Collections.singleton(config.getGroup("@staff"));
 			Collection<Identifier> GIT = Collections.singleton(Identifier.valueOf("git"));
 
@@ -108,9 +119,161 @@ public class TestConfigOne implements GitManagerFactory {
 		});
 	}
 
+	@Test
+	public void snapshotContainsPushedChanges() {
+		RepositoryRule repositoryRule = RepositoryRule.builder()
+			.identifiable(Identifier.valueOf("snapshot"))
+			.rule(new AccessRule(BasePermission.RW_PLUS, Identifier.valueOf("git")))
+			.build();
+
+		Config before = managedConfig.getSnapshot();
+		managedConfig.writeConfig(config -> config.addRepositoryRule(repositoryRule));
+
+		assertThat(before.getRules(), Matchers.not(Matchers.hasItem(repositoryRule)));
+		managedConfig.readSnapshot(config -> {
+			assertThat(config.getRules(), Matchers.hasItem(repositoryRule));
+			return null;
+		});
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void snapshotIsUnmodifiable() {
+		managedConfig.getSnapshot().clear();
+	}
+
+	@Test
+	public void noopWriteIsNotPushed() throws IOException, InterruptedException {
+		managedConfig.writeConfig(config -> config.addGroup(config.getGroup("@staff")));
+		verifyNoGitoliteAdminPush();
+	}
+
+	@Test
+	public void keyStoreChangeIsPushed() throws IOException, InterruptedException {
+		managedConfig.writeKeyStore(keyStore -> keyStore.put(readTestKey()));
+		verifyGitoliteAdminPush();
+	}
+
+	@Test
+	public void transactionIsPushedOnce() throws IOException, InterruptedException {
+		RepositoryRule repositoryRule = RepositoryRule.builder()
+			.identifiable(Identifier.valueOf("transaction"))
+			.rule(new AccessRule(BasePermission.RW_PLUS, Identifier.valueOf("git")))
+			.build();
+
+		managedConfig.writeTransaction((config, keyStore) -> {
+			keyStore.put(readTestKey());
+			config.addRepositoryRule(repositoryRule);
+		});
+
+		verifyGitoliteAdminPush();
+		assertThat(managedConfig.getSnapshot().getRules(), Matchers.hasItem(repositoryRule));
+	}
+
+	@Test
+	public void transactionIsRolledBackWhenPushFails() throws IOException, InterruptedException {
+		doThrow(new GitException()).when(gitManager).push();
+		RepositoryRule repositoryRule = RepositoryRule.builder()
+			.identifiable(Identifier.valueOf("transaction"))
+			.rule(new AccessRule(BasePermission.RW_PLUS, Identifier.valueOf("git")))
+			.build();
+
+		try {
+			managedConfig.writeTransaction((config, keyStore) -> {
+				keyStore.put(readTestKey());
+				config.addRepositoryRule(repositoryRule);
+			});
+			fail("Expected the push to fail");
+		}
+		catch (GitException e) {
+			managedConfig.readConfig(config ->
+				assertThat(config.getRules(), Matchers.not(Matchers.hasItem(repositoryRule))));
+			assertThat(managedConfig.readKeyStore(keyStore -> keyStore.getKeys("git")), Matchers.empty());
+		}
+	}
+
+	@Test
+	public void rejectedPushIsReplayedOnRemote() throws IOException, InterruptedException {
+		RepositoryRule remoteRule = RepositoryRule.builder()
+			.identifiable(Identifier.valueOf("remote"))
+			.rule(new AccessRule(BasePermission.RW_PLUS, Identifier.valueOf("git")))
+			.build();
+		RepositoryRule localRule = RepositoryRule.builder()
+			.identifiable(Identifier.valueOf("local"))
+			.rule(new AccessRule(BasePermission.RW_PLUS, Identifier.valueOf("git")))
+			.build();
+
+		// Another client pushed the remote rule in the meantime
+		doThrow(new PushRejectedException("rejected")).doNothing().when(gitManager).push();
+		doAnswer(invocation -> {
+			resetWorkingDirectory();
+			File configurationFile = new File(temporaryFolder.getRoot(), "conf/gitolite.conf");
+			FileUtils.write(configurationFile, "repo remote\n\tRW+ = git\n", Charset.defaultCharset(), true);
+			return null;
+		}).when(gitManager).resetToRemote();
+
+		managedConfig.writeConfig(config -> config.addRepositoryRule(localRule));
+
+		verify(gitManager).resetToRemote();
+		verify(gitManager, times(2)).push();
+		assertEquals(1, managedConfig.getRejectedPushes());
+		assertEquals(1, managedConfig.getReplayedChanges());
+		assertThat(managedConfig.getSnapshot().getRules(), Matchers.hasItems(remoteRule, localRule));
+	}
+
+	@Test(expected = PushRejectedException.class)
+	public void rejectedPushFailsWhenRetriesAreExhausted() throws IOException, InterruptedException {
+		doThrow(new PushRejectedException("rejected")).when(gitManager).push();
+		doAnswer(invocation -> {
+			resetWorkingDirectory();
+			return null;
+		}).when(gitManager).resetToRemote();
+		managedConfig = managedConfigFactory.pushRetries(1).retryBackoff(1).init("mocked-gitolite-admin");
+
+		managedConfig.writeKeyStore(keyStore -> keyStore.put(readTestKey()));
+	}
+
+	@Test
+	public void lazyKeyStoreIsUsable() throws IOException, InterruptedException {
+		managedConfig = managedConfigFactory.lazyKeyStore(true).init("mocked-gitolite-admin");
+
+		managedConfig.writeKeyStore(keyStore -> keyStore.put(readTestKey()));
+
+		verifyGitoliteAdminPush();
+		assertThat(managedConfig.readKeyStore(keyStore -> keyStore.getKeys("git")), Matchers.hasSize(1));
+	}
+
+	@Test
+	public void onlyChangedFilesAreCommitted() throws IOException, InterruptedException {
+		managedConfig.writeKeyStore(keyStore -> keyStore.put(readTestKey()));
+		verify(gitManager).commitChanges(Collections.singletonList("keydir/git.pub"));
+
+		managedConfig.writeConfig(config -> config.addRepositoryRule(RepositoryRule.builder()
+			.identifiable(Identifier.valueOf("local"))
+			.rule(new AccessRule(BasePermission.RW_PLUS, Identifier.valueOf("git")))
+			.build()));
+		verify(gitManager).commitChanges(Collections.singletonList("conf/gitolite.conf"));
+	}
+
+	private void resetWorkingDirectory() throws IOException {
+		FileUtils.cleanDirectory(temporaryFolder.getRoot());
+		FileUtils.copyDirectory(new File("src/test/resources/gitolite-admin-1"), temporaryFolder.getRoot());
+	}
+
+	@SneakyThrows
+	private static KeyHolder readTestKey() {
+		return new KeyHolder("git", Files.readFirstLine(new File("src/test/resources/keydir/test_rsa.pub"), Charset.defaultCharset()));
+	}
+
+	@SneakyThrows
+	void verifyNoGitoliteAdminPush() {
+		verify(gitManager, never()).commitChanges();
+		verify(gitManager, never()).commitChanges(anyCollectionOf(String.class));
+		verify(gitManager, never()).push();
+	}
+
 	@SneakyThrows
 	void verifyGitoliteAdminPush() {
-		verify(gitManager).commitChanges();
+		verify(gitManager).commitChanges(anyCollectionOf(String.class));
 		verify(gitManager).push();
 	}
 
@@ -0,0 +1,230 @@
+package manager;
+
+import com.google.common.io.Files;
+import lombok.SneakyThrows;
+import nl.tudelft.ewi.gitolite.ManagedConfig;
+import nl.tudelft.ewi.gitolite.ManagedConfigFactory;
+import nl.tudelft.ewi.gitolite.git.GitException;
+import nl.tudelft.ewi.gitolite.git.GitManager;
+import nl.tudelft.ewi.gitolite.git.GitManagerFactory;
+import nl.tudelft.ewi.gitolite.keystore.KeyHolder;
+import nl.tudelft.ewi.gitolite.objects.Identifier;
+import nl.tudelft.ewi.gitolite.parser.rules.AccessRule;
+import nl.tudelft.ewi.gitolite.parser.rules.RepositoryRule;
+import nl.tudelft.ewi.gitolite.permission.BasePermission;
+import org.apache.commons.io.FileUtils;
+import org.hamcrest.Matchers;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for a {@link ManagedConfig} that journals its write operations.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class TestJournaledConfig implements GitManagerFactory {
+
+	@Mock private GitManager gitManager;
+	@Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+	private File repositoryFolder;
+	private File journal;
+	private ManagedConfigFactory managedConfigFactory;
+	private ManagedConfig managedConfig;
+
+	@Override
+	public GitManager create(File repositoryFolder) {
+		when(gitManager.getWorkingDirectory()).thenReturn(repositoryFolder);
+		return gitManager;
+	}
+
+	@Before
+	public void setUp() throws IOException, InterruptedException {
+		repositoryFolder = temporaryFolder.newFolder("gitolite-admin");
+		journal = new File(temporaryFolder.getRoot(), "journal");
+		FileUtils.copyDirectory(new File("src/test/resources/gitolite-admin-1"), repositoryFolder);
+		managedConfigFactory = new ManagedConfigFactory()
+			.gitManagerFactory(this)
+			.repositoryFolder(repositoryFolder)
+			.journal(journal);
+	}
+
+	@After
+	public void tearDown() {
+		if(managedConfig != null) {
+			managedConfig.close();
+		}
+	}
+
+	@SneakyThrows
+	protected ManagedConfig initManagedConfig() {
+		return managedConfigFactory.init("mocked-gitolite-admin");
+	}
+
+	private static RepositoryRule repositoryRule(String name) {
+		return new RepositoryRule(name, new AccessRule(BasePermission.RW_PLUS, Identifier.valueOf("git")));
+	}
+
+	@SneakyThrows
+	private static KeyHolder readTestKey() {
+		return new KeyHolder("git", Files.readFirstLine(new File("src/test/resources/keydir/test_rsa.pub"), Charset.defaultCharset()));
+	}
+
+	@Test
+	public void writeReturnsOnceJournaled() throws Exception {
+		CountDownLatch releasePush = new CountDownLatch(1);
+		doAnswer(invocation -> {
+			releasePush.await();
+			return null;
+		}).when(gitManager).push();
+		managedConfig = initManagedConfig();
+
+		managedConfig.writeConfig(config -> config.addRepositoryRule(repositoryRule("a")));
+		assertTrue(journal.length() > 0);
+
+		releasePush.countDown();
+		verify(gitManager, timeout(10_000)).push();
+		for(int i = 0; i < 100 && journal.length() > 0; i++) {
+			TimeUnit.MILLISECONDS.sleep(50);
+		}
+		assertEquals(0, journal.length());
+	}
+
+	@Test
+	public void pushFailureIsReported() throws Exception {
+		doThrow(new GitException()).when(gitManager).push();
+		managedConfig = initManagedConfig();
+
+		managedConfig.writeConfig(config -> config.addRepositoryRule(repositoryRule("a")));
+		try {
+			managedConfig.getPushFuture().get(10, TimeUnit.SECONDS);
+			fail("The push should have failed");
+		}
+		catch (ExecutionException e) {
+			assertThat(e.getCause(), Matchers.instanceOf(GitException.class));
+		}
+	}
+
+	@Test
+	public void journalIsReplayedOnInit() throws Exception {
+		doThrow(new GitException()).when(gitManager).push();
+		managedConfig = initManagedConfig();
+
+		managedConfig.writeConfig(config -> config.addRepositoryRule(repositoryRule("a")));
+		managedConfig.writeKeyStore(keyStore -> keyStore.put(readTestKey()));
+		verify(gitManager, timeout(10_000).atLeastOnce()).push();
+		managedConfig.close();
+
+		// The working directory is lost, only the journal remains
+		FileUtils.cleanDirectory(repositoryFolder);
+		FileUtils.copyDirectory(new File("src/test/resources/gitolite-admin-1"), repositoryFolder);
+		reset(gitManager);
+		managedConfig = initManagedConfig();
+
+		verify(gitManager).push();
+		assertEquals(0, journal.length());
+		assertThat(managedConfig.getSnapshot().getRules(), Matchers.hasItem(repositoryRule("a")));
+		assertThat(managedConfig.readKeyStore(keyStore -> keyStore.getKeys("git")), Matchers.hasSize(1));
+	}
+
+	@Test
+	public void recoveryKeepsTheRulesOfOtherWriters() throws Exception {
+		doThrow(new GitException()).when(gitManager).push();
+		managedConfig = initManagedConfig();
+
+		managedConfig.writeConfig(config -> config.getGroup("@staff").add(Identifier.valueOf("carol")));
+		verify(gitManager, timeout(10_000).atLeastOnce()).push();
+		managedConfig.close();
+
+		// Another writer pushed a rule in the meantime
+		FileUtils.cleanDirectory(repositoryFolder);
+		FileUtils.copyDirectory(new File("src/test/resources/gitolite-admin-1"), repositoryFolder);
+		RepositoryRule other = repositoryRule("other");
+		FileUtils.write(new File(repositoryFolder, "conf/gitolite.conf"), other.toString(), Charset.defaultCharset(), true);
+		reset(gitManager);
+		managedConfig = initManagedConfig();
+
+		verify(gitManager).push();
+		assertThat(managedConfig.getSnapshot().getRules(), Matchers.hasItem(other));
+		assertThat(managedConfig.getSnapshot().getGroup("@staff").getMembers(), Matchers.hasItem(Identifier.valueOf("carol")));
+	}
+
+	@Test
+	public void replayRefersToTheGroupsOfTheRemote() throws Exception {
+		doThrow(new GitException()).when(gitManager).push();
+		managedConfig = initManagedConfig();
+
+		managedConfig.writeConfig(config -> config.addRepositoryRule(
+			new RepositoryRule("a", new AccessRule(BasePermission.RW_PLUS, config.getGroup("@staff")))));
+		verify(gitManager, timeout(10_000).atLeastOnce()).push();
+		managedConfig.close();
+
+		// Another writer added a member to the group in the meantime
+		FileUtils.cleanDirectory(repositoryFolder);
+		FileUtils.copyDirectory(new File("src/test/resources/gitolite-admin-1"), repositoryFolder);
+		File conf = new File(repositoryFolder, "conf/gitolite.conf");
+		String remote = FileUtils.readFileToString(conf, Charset.defaultCharset());
+		FileUtils.write(conf, remote.replace("dilbert alice", "dilbert alice carol"), Charset.defaultCharset());
+		reset(gitManager);
+		managedConfig = initManagedConfig();
+
+		verify(gitManager).push();
+		List<String> definitions = FileUtils.readLines(conf, Charset.defaultCharset()).stream()
+			.filter(line -> line.startsWith("@staff"))
+			.collect(Collectors.toList());
+		assertThat(definitions, Matchers.hasSize(1));
+		assertThat(definitions.get(0), Matchers.containsString("carol"));
+		assertThat(managedConfig.getSnapshot().getRepositoryRule(Identifier.valueOf("a")), Matchers.hasSize(1));
+	}
+
+	@Test
+	public void changeThatCannotBeJournaledIsReverted() throws Exception {
+		// Every write to /dev/full fails
+		File full = new File("/dev/full");
+		assumeTrue(full.exists());
+		managedConfigFactory.journal(full).pipelined(true);
+		managedConfig = initManagedConfig();
+
+		try {
+			managedConfig.writeConfig(config -> config.addRepositoryRule(repositoryRule("a")));
+			fail("The change should not have been journaled");
+		}
+		catch (Exception e) {
+			assertThat(e, Matchers.instanceOf(IOException.class));
+		}
+
+		verify(gitManager).resetToRemote();
+		verify(gitManager, never()).push();
+		assertThat(managedConfig.readConfigForUpdateWithReturn(config -> config.getRules()),
+			Matchers.not(Matchers.hasItem(repositoryRule("a"))));
+	}
+
+}
@@ -14,6 +14,8 @@ import org.junit.rules.TemporaryFolder;
 import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.Map;
 
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
@@ -94,6 +96,68 @@ public class JGitManagerTest {
         );
     }
 
+    @Test
+    public void testCommitChangesStagesOnlyGivenPaths() throws Exception {
+        Files.write("Hello world2".getBytes(), new File(clone, "README.md"));
+        Files.write("Hello world".getBytes(), new File(clone, "newFile.md"));
+        FileUtils.forceDelete(new File(clone, "anotherFile.md"));
+
+        JGitManager jGitManager = getGitManager();
+        jGitManager.open();
+        jGitManager.commitChanges(Arrays.asList("newFile.md", "anotherFile.md"));
+        jGitManager.push();
+
+        clone = cloneRepository(remote);
+        assertTrue(new File(clone, "newFile.md").exists());
+        assertFalse(new File(clone, "anotherFile.md").exists());
+        assertThat(FileUtils.readFileToString(new File(clone, "README.md")), equalTo("Hello world"));
+    }
+
+    @Test
+    public void testReadFolderReadsCommittedTree() throws Exception {
+        File confDir = new File(clone, "conf");
+        FileUtils.forceMkdir(new File(confDir, "subconf"));
+        Files.write("repo foo\n".getBytes(), new File(confDir, "gitolite.conf"));
+        Files.write("repo bar\n".getBytes(), new File(confDir, "subconf/bar.conf"));
+
+        JGitManager jGitManager = getGitManager();
+        jGitManager.open();
+        jGitManager.commitChanges();
+
+        // Changes to the working directory are not committed, and are not read
+        Files.write("repo baz\n".getBytes(), new File(confDir, "gitolite.conf"));
+        FileUtils.forceDelete(new File(confDir, "subconf"));
+
+        Map<String, byte[]> files = jGitManager.readFolder("conf");
+        assertThat(files.keySet(), contains("gitolite.conf", "subconf/bar.conf"));
+        assertThat(new String(files.get("gitolite.conf")), equalTo("repo foo\n"));
+        assertThat(jGitManager.readFolder("keydir").isEmpty(), is(true));
+    }
+
+    @Test
+    public void testBareCommitChangesWithoutWorkingDirectory() throws Exception {
+        File bareFolder = new File(TEMPORARY_FOLDER.getRoot(), "bare");
+        JGitManager jGitManager = new JGitManager(bareFolder, null, true);
+        jGitManager.clone(remote.getAbsolutePath());
+        assertTrue(jGitManager.exists());
+
+        jGitManager.writeFile("conf/gitolite.conf", "repo foo\n".getBytes());
+        jGitManager.deleteFile("anotherFile.md");
+        jGitManager.commitChanges();
+        jGitManager.writeFile("keydir/foo.pub", "ssh-rsa AAAA foo".getBytes());
+        jGitManager.commitChanges();
+        jGitManager.push();
+
+        assertFalse(new File(bareFolder, "conf").exists());
+        assertThat(jGitManager.readFolder("conf").keySet(), contains("gitolite.conf"));
+
+        clone = cloneRepository(remote);
+        assertThat(FileUtils.readFileToString(new File(clone, "conf/gitolite.conf")), equalTo("repo foo\n"));
+        assertThat(FileUtils.readFileToString(new File(clone, "keydir/foo.pub")), equalTo("ssh-rsa AAAA foo"));
+        assertThat(FileUtils.readFileToString(new File(clone, "README.md")), equalTo("Hello world"));
+        assertFalse(new File(clone, "anotherFile.md").exists());
+    }
+
     private JGitManager getGitManager() {
         return new JGitManager(clone, null);
     }
@@ -0,0 +1,155 @@
+package nl.tudelft.ewi.gitolite.git;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Tests for the {@link NativeGitManager}. Skipped if git is not available on the path.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+public class NativeGitManagerTest {
+
+    @Rule public TemporaryFolder TEMPORARY_FOLDER = new TemporaryFolder();
+
+    private File remote;
+
+    @Before
+    public void prepareTest() throws Exception {
+        assumeTrue(isGitAvailable());
+        remote = TEMPORARY_FOLDER.newFolder("gitolite-admin.git");
+        NativeGitManager bare = new NativeGitManager(remote);
+        bare.run("init", "--bare").check();
+
+        NativeGitManager gitManager = cloneRemote("initial");
+        write(gitManager, "conf/gitolite.conf", "repo gitolite-admin\n");
+        write(gitManager, "keydir/admin.pub", "ssh-rsa AAAA admin");
+        gitManager.commitChanges(Arrays.asList("conf/gitolite.conf", "keydir/admin.pub"));
+        gitManager.run("push", "origin", "HEAD").check();
+    }
+
+    @Test
+    public void testFastImportCommitsChangedFiles() throws Exception {
+        NativeGitManager gitManager = cloneRemote("fast-import");
+        gitManager.setFastImport(true);
+        try {
+            write(gitManager, "conf/gitolite.conf", "repo foo\n");
+            gitManager.commitChanges(Collections.singletonList("conf/gitolite.conf"));
+            FileUtils.forceDelete(new File(gitManager.getWorkingDirectory(), "keydir/admin.pub"));
+            gitManager.commitChanges(Collections.singletonList("keydir/admin.pub"));
+            gitManager.push();
+        }
+        finally {
+            gitManager.close();
+        }
+
+        File clone = cloneRemote("verify").getWorkingDirectory();
+        assertThat(FileUtils.readFileToString(new File(clone, "conf/gitolite.conf"), StandardCharsets.UTF_8), equalTo("repo foo\n"));
+        assertFalse(new File(clone, "keydir/admin.pub").exists());
+    }
+
+    @Test
+    public void testCommitChangesStagesNewAndDeletedFiles() throws Exception {
+        NativeGitManager gitManager = cloneRemote("commit-all");
+        write(gitManager, "keydir/user.pub", "ssh-rsa AAAA user");
+        FileUtils.forceDelete(new File(gitManager.getWorkingDirectory(), "keydir/admin.pub"));
+        gitManager.commitChanges();
+        gitManager.push();
+
+        File clone = cloneRemote("verify").getWorkingDirectory();
+        assertTrue(new File(clone, "keydir/user.pub").exists());
+        assertFalse(new File(clone, "keydir/admin.pub").exists());
+    }
+
+    @Test(expected = GitException.class)
+    public void testTimeoutKillsProcess() throws Exception {
+        NativeGitManager gitManager = cloneRemote("timeout");
+        gitManager.run("config", "alias.wait", "!sleep 10").check();
+        gitManager.setTimeout("wait", 100, TimeUnit.MILLISECONDS);
+        gitManager.run("wait").check();
+    }
+
+    @Test(expected = GitException.class)
+    public void testCommandsFailWithoutWorkingDirectory() throws Exception {
+        NativeGitManager gitManager = new NativeGitManager(new File(TEMPORARY_FOLDER.getRoot(), "missing"));
+        gitManager.resetToRemote();
+    }
+
+    @Test(expected = PushRejectedException.class)
+    public void testNonFastForwardPushIsRejected() throws Exception {
+        NativeGitManager first = cloneRemote("first");
+        NativeGitManager second = cloneRemote("second");
+        write(first, "conf/gitolite.conf", "repo first\n");
+        first.commitChanges(Collections.singletonList("conf/gitolite.conf"));
+        first.push();
+
+        write(second, "conf/gitolite.conf", "repo second\n");
+        second.commitChanges(Collections.singletonList("conf/gitolite.conf"));
+        second.push();
+    }
+
+    @Test
+    public void testFastImportMatchesPorcelain() throws Exception {
+        int commits = 10;
+        String[] trees = new String[2];
+        for(boolean fastImport : new boolean[] { false, true }) {
+            NativeGitManager gitManager = cloneRemote("commits-" + fastImport);
+            gitManager.setFastImport(fastImport);
+            try {
+                for(int i = 0; i < commits; i++) {
+                    write(gitManager, "keydir/user" + i + ".pub", "ssh-rsa AAAA user" + i);
+                    write(gitManager, "conf/gitolite.conf", "repo user" + i + "\n");
+                    gitManager.commitChanges(Arrays.asList("keydir/user" + i + ".pub", "conf/gitolite.conf"));
+                }
+                FileUtils.forceDelete(new File(gitManager.getWorkingDirectory(), "keydir/user0.pub"));
+                gitManager.commitChanges(Collections.singletonList("keydir/user0.pub"));
+
+                String count = gitManager.run("rev-list", "--count", "HEAD").check().getOutput().trim();
+                assertThat(Integer.parseInt(count), equalTo(commits + 2));
+                trees[fastImport ? 1 : 0] = gitManager.run("rev-parse", "HEAD^{tree}").check().getOutput().trim();
+            }
+            finally {
+                gitManager.close();
+            }
+        }
+        assertThat(trees[1], equalTo(trees[0]));
+    }
+
+    private NativeGitManager cloneRemote(String name) throws Exception {
+        NativeGitManager gitManager = new NativeGitManager(TEMPORARY_FOLDER.newFolder(name));
+        gitManager.clone(remote.getAbsolutePath());
+        gitManager.run("config", "user.name", "Test").check();
+        gitManager.run("config", "user.email", "test@localhost").check();
+        return gitManager;
+    }
+
+    private static void write(GitManager gitManager, String path, String contents) throws IOException {
+        gitManager.writeFile(path, contents.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static boolean isGitAvailable() {
+        try {
+            return new ProcessBuilder("git", "--version").start().waitFor() == 0;
+        }
+        catch (IOException | InterruptedException e) {
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,128 @@
+package nl.tudelft.ewi.gitolite.git;
+
+import org.eclipse.jgit.transport.CredentialsProvider;
+import org.eclipse.jgit.transport.RemoteSession;
+import org.eclipse.jgit.transport.SshSessionFactory;
+import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.transport.UsernamePasswordCredentialsProvider;
+import org.eclipse.jgit.util.FS;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests for the {@link PooledSshSessionFactory}.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+public class PooledSshSessionFactoryTest {
+
+    private static final URIish URI = uri("ssh://git@localhost:2222/gitolite-admin");
+
+    private final CredentialsProvider credentialsProvider = new UsernamePasswordCredentialsProvider("git", "");
+
+    private final List<RemoteSession> openedSessions = new ArrayList<>();
+
+    private SshSessionFactory delegate;
+
+    private PooledSshSessionFactory sessionFactory;
+
+    @Before
+    public void setUp() {
+        delegate = new SshSessionFactory() {
+            @Override
+            public RemoteSession getSession(URIish uri, CredentialsProvider credentialsProvider, FS fs, int tms) {
+                RemoteSession session = mock(RemoteSession.class);
+                openedSessions.add(session);
+                return session;
+            }
+        };
+        sessionFactory = new PooledSshSessionFactory(delegate, 1, TimeUnit.HOURS);
+    }
+
+    @After
+    public void tearDown() {
+        sessionFactory.close();
+    }
+
+    @Test
+    public void releasedSessionIsReused() throws Exception {
+        RemoteSession first = sessionFactory.getSession(URI, credentialsProvider, FS.DETECTED, 0);
+        sessionFactory.releaseSession(first);
+        RemoteSession second = sessionFactory.getSession(URI, credentialsProvider, FS.DETECTED, 0);
+
+        assertThat(second, sameInstance(first));
+        assertThat(openedSessions, hasSize(1));
+        verify(openedSessions.get(0), never()).disconnect();
+    }
+
+    @Test
+    public void sessionInUseIsNotShared() throws Exception {
+        sessionFactory.getSession(URI, credentialsProvider, FS.DETECTED, 0);
+        sessionFactory.getSession(URI, credentialsProvider, FS.DETECTED, 0);
+        assertThat(openedSessions, hasSize(2));
+    }
+
+    @Test
+    public void sessionsAreNotSharedBetweenCredentials() throws Exception {
+        sessionFactory.releaseSession(sessionFactory.getSession(URI, credentialsProvider, FS.DETECTED, 0));
+        sessionFactory.getSession(URI, new UsernamePasswordCredentialsProvider("git", ""), FS.DETECTED, 0);
+        assertThat(openedSessions, hasSize(2));
+    }
+
+    @Test
+    public void idleSessionIsDisconnected() throws Exception {
+        PooledSshSessionFactory sessionFactory = new PooledSshSessionFactory(delegate, 0, TimeUnit.MILLISECONDS);
+        try {
+            sessionFactory.releaseSession(sessionFactory.getSession(URI, credentialsProvider, FS.DETECTED, 0));
+            sessionFactory.evictIdleSessions();
+            assertThat(sessionFactory.getIdleSessions(), equalTo(0));
+            verify(openedSessions.get(0)).disconnect();
+        }
+        finally {
+            sessionFactory.close();
+        }
+    }
+
+    @Test
+    public void closedReusedSessionIsReplaced() throws Exception {
+        RemoteSession session = sessionFactory.getSession(URI, credentialsProvider, FS.DETECTED, 0);
+        sessionFactory.releaseSession(session);
+        when(openedSessions.get(0).exec(anyString(), anyInt())).thenThrow(new IOException("Session closed"));
+
+        session = sessionFactory.getSession(URI, credentialsProvider, FS.DETECTED, 0);
+        session.exec("git-upload-pack 'gitolite-admin'", 0);
+
+        assertThat(openedSessions, hasSize(2));
+        verify(openedSessions.get(0)).disconnect();
+        verify(openedSessions.get(1)).exec("git-upload-pack 'gitolite-admin'", 0);
+    }
+
+    @Test
+    public void closeDisconnectsIdleSessions() throws Exception {
+        sessionFactory.releaseSession(sessionFactory.getSession(URI, credentialsProvider, FS.DETECTED, 0));
+        sessionFactory.close();
+        verify(openedSessions.get(0)).disconnect();
+    }
+
+    private static URIish uri(String uri) {
+        try {
+            return new URIish(uri);
+        }
+        catch (Exception e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+}
@@ -126,6 +126,13 @@ public class KeyStoreTest {
 			assertThat(otherKeyStore.getKeys(identifiable), Matchers.empty());
 		}
 
+		@Test
+		public void testScanClearsChangedFiles() throws IOException {
+			keyStore.put(createKeyHolder(new File("src/test/resources/keydir/test_rsa.pub")));
+			keyStore.scan();
+			assertThat(keyStore.pollChangedFiles(), Matchers.empty());
+		}
+
 	}
 
 	@SneakyThrows
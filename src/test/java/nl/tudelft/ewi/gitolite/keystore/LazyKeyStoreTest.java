@@ -0,0 +1,54 @@
+package nl.tudelft.ewi.gitolite.keystore;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+import static org.hamcrest.Matchers.hasSize;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the {@link LazyKeyStore}.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+public class LazyKeyStoreTest {
+
+	@Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Test
+	public void versionIsAvailableBeforeLoad() throws IOException {
+		CompletableFuture<KeyStore> future = new CompletableFuture<>();
+		LazyKeyStore lazyKeyStore = new LazyKeyStore(future);
+
+		assertFalse(lazyKeyStore.isLoaded());
+		assertEquals(0, lazyKeyStore.getVersion());
+
+		FileUtils.copyDirectory(new File("src/test/resources/gitolite-admin-1/keydir"), temporaryFolder.getRoot());
+		KeyStoreImpl keyStore = new KeyStoreImpl(temporaryFolder.getRoot());
+		future.complete(keyStore);
+
+		assertTrue(lazyKeyStore.isLoaded());
+		assertEquals(0, lazyKeyStore.getVersion());
+		assertThat(lazyKeyStore.getUsers(), hasSize(keyStore.getUsers().size()));
+
+		keyStore.scan();
+		assertEquals(1, lazyKeyStore.getVersion());
+	}
+
+	@Test(expected = IOException.class)
+	public void loadFailureIsPropagated() throws IOException {
+		CompletableFuture<KeyStore> future = new CompletableFuture<>();
+		future.completeExceptionally(new IOException("Failed to scan"));
+		new LazyKeyStore(future).await();
+	}
+
+}
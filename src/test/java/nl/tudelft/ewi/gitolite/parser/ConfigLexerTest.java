@@ -0,0 +1,135 @@
+package nl.tudelft.ewi.gitolite.parser;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StreamTokenizer;
+import java.io.StringReader;
+import java.nio.CharBuffer;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the {@link ConfigLexer}.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+public class ConfigLexerTest {
+
+	private static final String ALPHABET = "ab@=+-/.*_ \t\r\n#'\"\\01é€";
+
+	@Test
+	public void tokensMatchStreamTokenizer() throws IOException {
+		assertSameTokens("repo foo/bar  # comment\n\tRW+ = @all alice\n");
+		assertSameTokens("config hooks.mailinglist = \"foo bar\"\noption x = 'y\\n\\101'\n");
+		assertSameTokens("\"unterminated\nword#comment\r\nnext\\");
+		assertSameTokens("\"escape at end\\");
+
+		Random random = new Random(1);
+		for(int i = 0; i < 1000; i++) {
+			StringBuilder input = new StringBuilder();
+			for(int j = random.nextInt(64); j > 0; j--) {
+				input.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+			}
+			assertSameTokens(input.toString());
+		}
+	}
+
+	@Test
+	public void tokensMatchWhenReadInChunks() throws IOException {
+		StringBuilder longWord = new StringBuilder();
+		for(int i = 0; i < 20000; i++) {
+			longWord.append((char) ('a' + i % 26));
+		}
+		String input = "repo " + longWord + " \"quoted\\tvalue\" # comment\n\tRW+ = alice\n";
+
+		List<String> expected = streamTokenizerTokens(input);
+		assertEquals(expected, lexerTokens(new OneCharReader(input)));
+		assertEquals(expected, lexerTokens(new StringReader(input)));
+	}
+
+	@Test
+	public void valuesAreInterned() throws IOException {
+		ConfigLexer lexer = new ConfigLexer(CharBuffer.wrap("alice bob alice"));
+		lexer.nextToken();
+		String first = lexer.value();
+		lexer.nextToken();
+		lexer.nextToken();
+		assertSame(first, lexer.value());
+	}
+
+	@Test
+	public void startsWithDoesNotConsume() throws IOException {
+		ConfigLexer lexer = new ConfigLexer(CharBuffer.wrap("repo foo"));
+		assertEquals(ConfigLexer.WORD, lexer.nextToken());
+		assertTrue(lexer.startsWith("rep"));
+		lexer.pushBack();
+		assertEquals(ConfigLexer.WORD, lexer.nextToken());
+		assertEquals("repo", lexer.value());
+	}
+
+	private static void assertSameTokens(String input) throws IOException {
+		assertEquals(input, streamTokenizerTokens(input), lexerTokens(input));
+	}
+
+	private static List<String> lexerTokens(String input) throws IOException {
+		return lexerTokens(new StringReader(input));
+	}
+
+	private static List<String> lexerTokens(Reader reader) throws IOException {
+		List<String> tokens = Lists.newArrayList();
+		ConfigLexer lexer = new ConfigLexer(reader);
+		for(int type; (type = lexer.nextToken()) != ConfigLexer.EOF;) {
+			tokens.add(type == ConfigLexer.EOL ? "EOL" : lexer.value());
+		}
+		return tokens;
+	}
+
+	private static List<String> streamTokenizerTokens(String input) throws IOException {
+		StreamTokenizer streamTokenizer = new StreamTokenizer(new StringReader(input));
+		streamTokenizer.resetSyntax();
+		streamTokenizer.wordChars(33, 126);
+		streamTokenizer.quoteChar('\'');
+		streamTokenizer.quoteChar('\"');
+		streamTokenizer.eolIsSignificant(true);
+		streamTokenizer.commentChar('#');
+
+		List<String> tokens = Lists.newArrayList();
+		for(int type; (type = streamTokenizer.nextToken()) != StreamTokenizer.TT_EOF;) {
+			switch (type) {
+				case StreamTokenizer.TT_EOL:
+					tokens.add("EOL");
+					break;
+				case StreamTokenizer.TT_WORD:
+				case '\'':
+				case '\"':
+					tokens.add(streamTokenizer.sval);
+					break;
+			}
+		}
+		return tokens;
+	}
+
+	/**
+	 * A {@code Reader} that returns a single character per read, to test the refilling of the buffer.
+	 */
+	private static class OneCharReader extends StringReader {
+
+		OneCharReader(String input) {
+			super(input);
+		}
+
+		@Override
+		public int read(char[] buffer, int offset, int length) throws IOException {
+			return super.read(buffer, offset, Math.min(length, 1));
+		}
+
+	}
+
+}
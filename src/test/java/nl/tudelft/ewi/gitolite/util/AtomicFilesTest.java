@@ -0,0 +1,53 @@
+package nl.tudelft.ewi.gitolite.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.hamcrest.Matchers.contains;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Tests for {@link AtomicFiles}.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+public class AtomicFilesTest {
+
+	@Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Test
+	public void writeReplacesFile() throws IOException {
+		for(FsyncPolicy fsyncPolicy : FsyncPolicy.values()) {
+			Path file = temporaryFolder.getRoot().toPath().resolve(fsyncPolicy.name()).resolve("gitolite.conf");
+			AtomicFiles.write(file, "repo foo\n".getBytes(StandardCharsets.UTF_8), fsyncPolicy);
+			AtomicFiles.write(file, "repo bär\n".getBytes(StandardCharsets.UTF_8), fsyncPolicy);
+
+			assertEquals("repo bär\n", new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+			try(Stream<Path> files = Files.list(file.getParent())) {
+				assertThat(files.map(path -> path.getFileName().toString()).collect(Collectors.toList()),
+					contains("gitolite.conf"));
+			}
+		}
+	}
+
+	@Test
+	public void writeDeletesTemporaryFilesOfACrash() throws IOException {
+		Path file = temporaryFolder.newFile("gitolite.conf").toPath();
+		Path leftOver = Files.write(file.resolveSibling(".gitolite.conf.1234.tmp"), "repo".getBytes(StandardCharsets.UTF_8));
+
+		AtomicFiles.write(file, "repo foo\n".getBytes(StandardCharsets.UTF_8), FsyncPolicy.FILE);
+		assertFalse(Files.exists(leftOver));
+		assertEquals("repo foo\n", new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+	}
+
+}